@@ -0,0 +1,199 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Maps;
+
+import com.opera.core.systems.scope.exceptions.ScopeException;
+import com.opera.core.systems.scope.internal.ServiceCallback;
+import com.opera.core.systems.scope.protos.ConsoleLoggerProtos.ConsoleMessage;
+import com.opera.core.systems.scope.services.ConsoleLogger;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Waits for asynchronous scripts to call back without polling the page.
+ *
+ * An asynchronous script is {@link #wrap(String)}ped so that its callback stores the result in the
+ * page under a token and posts the token to Opera's console, which sends it to us as a console
+ * message.  The waiter sits in front of the callback of the console logger and picks out these
+ * messages, passing all others on.  Console messages are subscribed to for as long as a script is
+ * waited for.
+ */
+public class AsyncScriptWaiter implements ServiceCallback<ConsoleMessage> {
+
+  /**
+   * The property of the window holding the results of asynchronous scripts by token.
+   */
+  public static final String RESULTS_PROPERTY = "__webdriver_async";
+
+  private static final String TOKEN_PREFIX = "__webdriver_async_";
+  private static final Pattern TOKEN = Pattern.compile(TOKEN_PREFIX + "\\d+");
+
+  private final ServiceCallback<ConsoleMessage> delegate;
+  private final ConsoleLogger console;
+  private final AtomicInteger tokens = new AtomicInteger();
+  private final ConcurrentMap<String, CountDownLatch> pending = Maps.newConcurrentMap();
+
+  /**
+   * @param delegate the callback to pass console messages other than callbacks on to
+   */
+  public AsyncScriptWaiter(ServiceCallback<ConsoleMessage> delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * @param delegate the callback to pass console messages other than callbacks on to
+   * @param console  the console logger to subscribe to messages from while waiting, or null if
+   *                 messages are received regardless
+   */
+  public AsyncScriptWaiter(ServiceCallback<ConsoleMessage> delegate, ConsoleLogger console) {
+    this.delegate = delegate;
+    this.console = console;
+  }
+
+  /**
+   * Wraps an asynchronous script so that it is run with a callback appended to its arguments.  The
+   * wrapped script takes a token as its first argument, followed by the arguments of the script.
+   *
+   * @param script the asynchronous script
+   * @return a script running the asynchronous script
+   */
+  public static String wrap(String script) {
+    return "var token = arguments[0], args = Array.prototype.slice.call(arguments, 1);\n"
+           + "var results = window." + RESULTS_PROPERTY + " || (window." + RESULTS_PROPERTY
+           + " = {});\n"
+           + "args.push(function(value) {\n"
+           + "  if (!(token in results)) {\n"
+           + "    results[token] = value;\n"
+           + "    opera.postError(token);\n"
+           + "  }\n"
+           + "});\n"
+           + "(function() {" + script + "\n}).apply(this, args);";
+  }
+
+  /**
+   * @param token the token of the script
+   * @return a script returning the result of the script with the given token and forgetting it, so
+   *         that the script cannot call back any longer
+   */
+  public static String takeResult(String token) {
+    return "var results = window." + RESULTS_PROPERTY + " || {}, value = results['" + token
+           + "'];\n"
+           + "results['" + token + "'] = null;\n"
+           + "return value;";
+  }
+
+  /**
+   * Creates a token for the next script to be waited for.  The callback of the script may be called
+   * as soon as the script runs, so the token must be created before running it.
+   *
+   * @return a token unique to this waiter
+   */
+  public String expect() {
+    String token = TOKEN_PREFIX + tokens.incrementAndGet();
+    if (console != null) {
+      console.subscribe();
+    }
+    pending.put(token, new CountDownLatch(1));
+    return token;
+  }
+
+  /**
+   * Waits for the script with the given token to call back.
+   *
+   * @param token   the token of the script
+   * @param timeout the time to wait in milliseconds
+   * @return true if the script called back, false if it timed out
+   */
+  public boolean await(String token, long timeout) {
+    return await(token, timeout, timeout, Suppliers.ofInstance(false));
+  }
+
+  /**
+   * Waits for the script with the given token to call back, giving up early if it is abandoned,
+   * e.g. because the page it runs in has gone away and it will never call back.  Whether it is
+   * abandoned is checked at the given interval, so it should be cheap to tell.
+   *
+   * @param token     the token of the script
+   * @param timeout   the time to wait in milliseconds
+   * @param interval  the time between checks of whether the script is abandoned, in milliseconds
+   * @param abandoned tells whether the script is abandoned
+   * @return true if the script called back, false if it timed out or was abandoned
+   */
+  public boolean await(String token, long timeout, long interval, Supplier<Boolean> abandoned) {
+    CountDownLatch signal = pending.get(token);
+    if (signal == null) {
+      throw new IllegalArgumentException("Not expecting a callback for " + token);
+    }
+
+    try {
+      long end = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      while (!signal.await(Math.min(remaining, interval), TimeUnit.MILLISECONDS)) {
+        remaining = end - System.currentTimeMillis();
+        if (remaining <= 0 || abandoned.get()) {
+          return false;
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScopeException(e);
+    } finally {
+      forget(token);
+    }
+  }
+
+  /**
+   * Stops expecting the script with the given token to call back, e.g. because it failed to run.
+   *
+   * @param token the token of the script
+   */
+  public void cancel(String token) {
+    forget(token);
+  }
+
+  private void forget(String token) {
+    if (pending.remove(token) != null && console != null) {
+      console.unsubscribe();
+    }
+  }
+
+  public void call(ConsoleMessage message) {
+    // Only the token on its own, as posted by the callback, e.g. not a page logging something
+    // mentioning it
+    String description = message.getDescription();
+    if (!TOKEN.matcher(description).matches()) {
+      delegate.call(message);
+      return;
+    }
+
+    // Callbacks of scripts that are not waited for any longer are dropped
+    CountDownLatch signal = pending.get(description);
+    if (signal != null) {
+      signal.countDown();
+    }
+  }
+
+}
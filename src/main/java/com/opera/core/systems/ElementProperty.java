@@ -0,0 +1,145 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * A property of elements to extract in bulk with {@link OperaDriver#extract(java.util.List,
+ * ElementProperty...)}: the text, an attribute, a computed style or the rectangle of the element,
+ * or of the first element within it matching a CSS selector.
+ *
+ * The values are computed as by {@link OperaWebElement#getText()}, {@link
+ * OperaWebElement#getAttribute(String)}, {@link OperaWebElement#getCssValue(String)} and {@link
+ * OperaWebElement#getLocation()} and {@link OperaWebElement#getSize()} respectively.
+ */
+public class ElementProperty {
+
+  private enum Kind {
+    TEXT, ATTRIBUTE, CSS_VALUE, RECT
+  }
+
+  private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+  private final Kind kind;
+  private final String name;
+  private final String within;
+
+  private ElementProperty(Kind kind, String name, String within) {
+    this.kind = kind;
+    this.name = name;
+    this.within = within;
+  }
+
+  /**
+   * @return the visible text of the element
+   */
+  public static ElementProperty text() {
+    return new ElementProperty(Kind.TEXT, null, null);
+  }
+
+  /**
+   * @param name the name of the attribute
+   * @return the value of the attribute or property of the element
+   */
+  public static ElementProperty attribute(String name) {
+    return new ElementProperty(Kind.ATTRIBUTE, name, null);
+  }
+
+  /**
+   * @param name the name of the CSS property
+   * @return the computed value of the CSS property of the element, with colors in RGBA format
+   */
+  public static ElementProperty cssValue(String name) {
+    return new ElementProperty(Kind.CSS_VALUE, name, null);
+  }
+
+  /**
+   * @return the location and size of the element, as read by {@link
+   *         PropertyTable#getLocation(int, int)} and {@link PropertyTable#getSize(int, int)}
+   */
+  public static ElementProperty rect() {
+    return new ElementProperty(Kind.RECT, null, null);
+  }
+
+  /**
+   * @param cssSelector a CSS selector relative to the element, e.g. "td:nth-child(2)"
+   * @return this property of the first element within the element matching the selector, or null
+   *         if there is none
+   */
+  public ElementProperty within(String cssSelector) {
+    return new ElementProperty(kind, name, cssSelector);
+  }
+
+  boolean isRect() {
+    return kind == Kind.RECT;
+  }
+
+  /**
+   * @return true if the value is a computed color, which needs to be converted to RGBA format
+   */
+  boolean isColor() {
+    return kind == Kind.CSS_VALUE && name.contains("color");
+  }
+
+  /**
+   * @param atoms the atoms to read the property with
+   * @return a function taking an element and returning the property as a string, or null
+   */
+  String reader(InstalledAtoms atoms) {
+    String read;
+    switch (kind) {
+      case TEXT:
+        read = "return " + atoms.get(OperaAtom.GET_TEXT) + "(e);";
+        break;
+      case ATTRIBUTE:
+        if (name.equalsIgnoreCase("value")) {
+          read = "return /^input|select|option|textarea$/i.test(e.nodeName) ? e.value"
+                 + " : e.textContent;";
+        } else {
+          read = "return " + atoms.get(OperaAtom.GET_ATTRIBUTE) + "(e, " + quote(name) + ");";
+        }
+        break;
+      case CSS_VALUE:
+        read = "return " + atoms.get(OperaAtom.GET_EFFECTIVE_STYLE) + "(e, " + quote(name) + ");";
+        break;
+      default:
+        read = "var l = " + atoms.get(OperaAtom.GET_LOCATION) + "(e), s = "
+               + atoms.get(OperaAtom.GET_SIZE) + "(e);"
+               + " return l.x + ',' + l.y + ',' + s.width + ',' + s.height;";
+        break;
+    }
+
+    if (within != null) {
+      read = "e = e.querySelector(" + quote(within) + "); if (!e) { return null; } " + read;
+    }
+
+    return "function(e) { " + read + " }";
+  }
+
+  @Override
+  public String toString() {
+    String property = kind.name().toLowerCase() + (name == null ? "" : " " + name);
+    return within == null ? property : property + " within " + within;
+  }
+
+  private static String quote(String string) {
+    return gson.toJson(string);
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.opera.core.systems.internal.OperaDefaults;
+import com.opera.core.systems.scope.services.Debugger;
+
+import org.openqa.selenium.WebDriverException;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the ECMAScript objects held by elements, so that an object can be released in
+ * Opera once no element refers to it any longer.
+ *
+ * Elements are tracked with phantom references rather than finalizers, so that they are collected
+ * as cheaply as any other object.  The objects of collected elements are released in batches of
+ * {@link OperaDefaults#ELEMENT_RELEASE_BATCH_SIZE} when the next element is tracked.  When the user
+ * navigates, the driver releases all objects and calls {@link #forgetAll()}, after which the
+ * elements tracked until then are no longer known and their objects are not released again.
+ *
+ * Several elements may refer to the same object, which is released when the last of them has been
+ * collected.  This class is thread safe.
+ */
+public class ElementTracker {
+
+  private static final Logger logger = Logger.getLogger(ElementTracker.class.getName());
+
+  private final Debugger debugger;
+  private final int batchSize;
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  private final Set<Handle> handles = Sets.newHashSet();
+  private final Map<Integer, Integer> references = Maps.newHashMap();
+  private final List<Integer> unreferenced = Lists.newArrayList();
+
+  public ElementTracker(Debugger debugger) {
+    this(debugger, OperaDefaults.ELEMENT_RELEASE_BATCH_SIZE);
+  }
+
+  /**
+   * @param debugger  the debugger to release objects through
+   * @param batchSize the number of unreferenced objects to release at once
+   */
+  public ElementTracker(Debugger debugger, int batchSize) {
+    this.debugger = debugger;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Tracks an element, and releases the objects of collected elements if there are enough of them.
+   *
+   * @param element  the element
+   * @param objectId the ID of the object the element refers to
+   */
+  public void track(Object element, int objectId) {
+    List<Integer> batch = null;
+
+    synchronized (this) {
+      poll();
+
+      // An object found again is no longer waiting to be released
+      unreferenced.remove(Integer.valueOf(objectId));
+      Integer count = references.get(objectId);
+      references.put(objectId, count == null ? 1 : count + 1);
+      handles.add(new Handle(element, objectId, queue));
+
+      if (unreferenced.size() >= batchSize) {
+        batch = Lists.newArrayList(unreferenced);
+        unreferenced.clear();
+      }
+    }
+
+    if (batch != null) {
+      release(batch);
+    }
+  }
+
+  /**
+   * @param objectId the ID of an object
+   * @return true if an element refers to the object, and it has not been forgotten since
+   */
+  public synchronized boolean isTracked(int objectId) {
+    return references.containsKey(objectId);
+  }
+
+  /**
+   * Forgets all elements and objects, e.g. because all objects have been released in Opera.
+   */
+  public synchronized void forgetAll() {
+    handles.clear();
+    references.clear();
+    unreferenced.clear();
+  }
+
+  /**
+   * @return the number of unreferenced objects waiting to be released
+   */
+  public synchronized int getUnreferencedCount() {
+    poll();
+    return unreferenced.size();
+  }
+
+  private void poll() {
+    Reference<?> reference;
+    while ((reference = queue.poll()) != null) {
+      Handle handle = (Handle) reference;
+      if (!handles.remove(handle)) {
+        // Forgotten since
+        continue;
+      }
+
+      int count = references.get(handle.objectId);
+      if (count > 1) {
+        references.put(handle.objectId, count - 1);
+      } else {
+        references.remove(handle.objectId);
+        unreferenced.add(handle.objectId);
+      }
+    }
+  }
+
+  private void release(List<Integer> objectIds) {
+    try {
+      debugger.releaseObjects(objectIds);
+    } catch (WebDriverException e) {
+      // The objects will be released when the user navigates
+      logger.warning("Unable to release " + objectIds.size() + " objects: " + e.getMessage());
+    }
+  }
+
+  private static class Handle extends PhantomReference<Object> {
+
+    private final int objectId;
+
+    public Handle(Object element, int objectId, ReferenceQueue<Object> queue) {
+      super(element, queue);
+      this.objectId = objectId;
+    }
+
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebElement;
+
+import java.util.List;
+
+/**
+ * The result of a single locator in a batch of locators resolved by {@link
+ * OperaDriver#findAll(java.util.Map)}: either the elements found, which may be none, or the reason
+ * the locator is invalid.
+ */
+public class FoundElements {
+
+  private final By by;
+  private final List<WebElement> elements;
+  private final InvalidSelectorException error;
+
+  private FoundElements(By by, List<WebElement> elements, InvalidSelectorException error) {
+    this.by = by;
+    this.elements = elements;
+    this.error = error;
+  }
+
+  /**
+   * @param by       the locator
+   * @param elements the elements found by it
+   */
+  public static FoundElements found(By by, List<? extends WebElement> elements) {
+    return new FoundElements(by, ImmutableList.<WebElement>copyOf(elements), null);
+  }
+
+  /**
+   * @param by    the locator
+   * @param error why the locator is invalid
+   */
+  public static FoundElements invalid(By by, InvalidSelectorException error) {
+    return new FoundElements(by, ImmutableList.<WebElement>of(), error);
+  }
+
+  public By getBy() {
+    return by;
+  }
+
+  /**
+   * @return true if the locator is valid, whether or not it found any elements
+   */
+  public boolean isValid() {
+    return error == null;
+  }
+
+  /**
+   * @return true if the locator found at least one element
+   */
+  public boolean isFound() {
+    return !elements.isEmpty();
+  }
+
+  /**
+   * @return why the locator is invalid, or null if it is valid
+   */
+  public InvalidSelectorException getError() {
+    return error;
+  }
+
+  /**
+   * @return the elements found, in document order, or an empty list if none were found
+   * @throws InvalidSelectorException if the locator is invalid
+   */
+  public List<WebElement> getElements() {
+    if (error != null) {
+      throw error;
+    }
+    return elements;
+  }
+
+  /**
+   * @return the first element found
+   * @throws NoSuchElementException   if no element was found
+   * @throws InvalidSelectorException if the locator is invalid
+   */
+  public WebElement getElement() {
+    if (getElements().isEmpty()) {
+      throw new NoSuchElementException("Cannot find element with " + by);
+    }
+    return elements.get(0);
+  }
+
+}
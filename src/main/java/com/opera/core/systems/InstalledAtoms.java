@@ -0,0 +1,204 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.opera.core.systems.scope.NavigationEpochs;
+import com.opera.core.systems.scope.services.Debugger;
+
+import org.openqa.selenium.WebDriverException;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Installs the WebDriver atoms in the pages they are used in, so that they are sent to Opera once
+ * per ECMAScript runtime rather than with every command.  Some atoms are tens of kilobytes of
+ * script.
+ *
+ * An atom is installed the first time it is used in a runtime, as a property of a namespace object
+ * on the runtime's global object, and from then on it is referred to by that property.  When the
+ * runtime goes away, as reported by {@link NavigationEpochs}, its atoms are forgotten and installed
+ * again in whichever runtime takes its place.  If an atom cannot be installed its full source is
+ * used instead.
+ *
+ * The page may also lose its atoms while the runtime stays, e.g. by {@code document.open()} or by
+ * a script of its own overwriting the namespace.  Scripts referring to installed atoms should be
+ * run through {@link #run(String, Function)}, which installs them again and retries once if so.
+ */
+public class InstalledAtoms {
+
+  /**
+   * The name of the global object the atoms are installed on.
+   */
+  public static final String NAMESPACE = "__webdriver_atoms";
+
+  /**
+   * The number of runtimes to remember atoms for.  Runtimes are forgotten all at once when there
+   * are more, after which atoms are installed again as they are used.
+   */
+  private static final int MAX_RUNTIMES = 64;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final Debugger debugger;
+  private final NavigationEpochs epochs;
+  private final ConcurrentMap<Integer, Installation> runtimes = Maps.newConcurrentMap();
+
+  /**
+   * @param debugger the debugger to install atoms through
+   * @param epochs   the navigation epochs telling when runtimes go away
+   */
+  public InstalledAtoms(Debugger debugger, NavigationEpochs epochs) {
+    this.debugger = debugger;
+    this.epochs = epochs;
+  }
+
+  /**
+   * Gets an expression evaluating to the given atom in the current runtime, installing the atom
+   * first if it is not installed there yet.
+   *
+   * @param atom the atom to use
+   * @return an expression evaluating to the atom's function
+   */
+  public String get(OperaAtom atom) {
+    int runtimeId = debugger.getRuntimeId();
+    long epoch = epochs.getRuntimeEpoch(runtimeId);
+
+    Installation installation = runtimes.get(runtimeId);
+    if (installation == null || installation.epoch != epoch) {
+      if (runtimes.size() >= MAX_RUNTIMES) {
+        runtimes.clear();
+      }
+      installation = new Installation(epoch);
+      runtimes.put(runtimeId, installation);
+    }
+
+    if (!installation.atoms.contains(atom)) {
+      if (!install(atom)) {
+        return atom.getValue();
+      }
+      installation.atoms.add(atom);
+    }
+
+    return reference(atom);
+  }
+
+  /**
+   * Runs a script referring to installed atoms.  If it fails and the atoms it refers to turn out to
+   * be lost from the page, the installation in the current runtime is forgotten, the atoms are
+   * installed again and the script is run once more.
+   *
+   * @param script  the script to run
+   * @param execute runs the script and returns its result
+   * @param <T>     the type of result
+   * @return the result of the script
+   * @throws WebDriverException if the script fails for any other reason, or fails again
+   */
+  public <T> T run(String script, Function<String, T> execute) {
+    try {
+      return execute.apply(script);
+    } catch (WebDriverException e) {
+      if (!reinstall(script)) {
+        throw e;
+      }
+      return execute.apply(script);
+    }
+  }
+
+  /**
+   * Installs the atoms referred to by a failed script again, if they are no longer in the page.
+   *
+   * @return true if the atoms were installed again, so that the script may be retried
+   */
+  private boolean reinstall(String script) {
+    List<OperaAtom> referred = Lists.newArrayList();
+    for (OperaAtom atom : OperaAtom.values()) {
+      if (script.contains(reference(atom) + "(")) {
+        referred.add(atom);
+      }
+    }
+    if (referred.isEmpty()) {
+      return false;
+    }
+
+    try {
+      if (Boolean.TRUE.equals(debugger.executeScript(probeScript(referred), true))) {
+        return false;
+      }
+    } catch (WebDriverException e) {
+      return false;
+    }
+
+    logger.fine("Atoms lost from runtime " + debugger.getRuntimeId() + ", installing them again");
+    runtimes.remove(debugger.getRuntimeId());
+    for (OperaAtom atom : referred) {
+      if (!get(atom).equals(reference(atom))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean install(OperaAtom atom) {
+    try {
+      return Boolean.TRUE.equals(debugger.executeScript(installScript(atom), true));
+    } catch (WebDriverException e) {
+      logger.fine("Unable to install atom " + atom.name() + ", sending it in full: "
+                  + e.getMessage());
+      return false;
+    }
+  }
+
+  static String installScript(OperaAtom atom) {
+    return String.format("!!((window.%s||(window.%s={})).%s=%s)",
+                         NAMESPACE, NAMESPACE, atom.name(), atom.getValue());
+  }
+
+  static String probeScript(List<OperaAtom> atoms) {
+    StringBuilder probe = new StringBuilder("!!window." + NAMESPACE);
+    for (OperaAtom atom : atoms) {
+      probe.append("&&typeof ").append(reference(atom)).append("=='function'");
+    }
+    return probe.toString();
+  }
+
+  static String reference(OperaAtom atom) {
+    return NAMESPACE + "." + atom.name();
+  }
+
+  /**
+   * The atoms installed in a runtime, as of the runtime's epoch when it was first seen.
+   */
+  private static class Installation {
+
+    private final long epoch;
+    private final Set<OperaAtom> atoms =
+        Sets.newSetFromMap(Maps.<OperaAtom, Boolean>newConcurrentMap());
+
+    public Installation(long epoch) {
+      this.epoch = epoch;
+    }
+
+  }
+
+}
@@ -0,0 +1,313 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.SearchContext;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.FindsByClassName;
+import org.openqa.selenium.internal.FindsByCssSelector;
+import org.openqa.selenium.internal.FindsById;
+import org.openqa.selenium.internal.FindsByLinkText;
+import org.openqa.selenium.internal.FindsByName;
+import org.openqa.selenium.internal.FindsByTagName;
+import org.openqa.selenium.internal.FindsByXPath;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles locators into scripts finding elements with the DOM methods made for them, e.g. {@code
+ * getElementById} for IDs and {@code querySelector} for CSS selectors, rather than going through
+ * the find atoms.  XPath expressions are compiled once per page and cached in it.  Locators that
+ * have no such method, e.g. link texts or compound class names, are left to the atoms.
+ *
+ * A compiled script takes the element to search within as its first argument, or null to search the
+ * document, and checks the result in the same evaluation:
+ *
+ * <ul> <li>an element, or a list of elements when finding several, if found;</li> <li>null if no
+ * element is found;</li> <li>a string holding the error message if the locator is invalid;</li>
+ * <li>false if the element found is no longer part of the DOM.</li> </ul>
+ */
+public class LocatorCompiler {
+
+  /**
+   * The property of the window caching compiled XPath expressions.
+   */
+  public static final String XPATH_CACHE_PROPERTY = "__webdriver_xpath";
+
+  /**
+   * The number of compiled XPath expressions to cache in a page before starting over.
+   */
+  public static final int XPATH_CACHE_SIZE = 100;
+
+  private static final Pattern SIMPLE_NAME = Pattern.compile("[\\w-]+");
+  private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+  private LocatorCompiler() {
+  }
+
+  /**
+   * @param by       how to find the element, strings defined in RemoteWebDriver
+   * @param using    the value to use to find the element
+   * @param multiple whether to find all matching elements rather than the first
+   * @param atoms    the atoms to fall back to
+   * @return a script finding the element or elements
+   */
+  public static String compile(String by, String using, boolean multiple, InstalledAtoms atoms) {
+    String find = nativeFind(by, using, multiple);
+    String lost = null;
+    if (find == null) {
+      OperaAtom atom = multiple ? OperaAtom.FIND_ELEMENTS : OperaAtom.FIND_ELEMENT;
+      find = atoms.get(atom) + "({" + quote(by) + ": " + quote(using) + "}, arguments[0])";
+      lost = "!(" + InstalledAtoms.probeScript(ImmutableList.of(atom)) + ")";
+    }
+
+    StringBuilder script = new StringBuilder()
+        .append("var root = arguments[0] || document, r;\n")
+        .append("try {\n")
+        .append("  r = ").append(find).append(";\n")
+        .append("} catch (e) {\n");
+    if (lost != null) {
+      // The atom went away with the page rather than the locator being invalid, so let the error
+      // through for the atom to be installed again
+      script.append("  if (").append(lost).append(") { throw e; }\n");
+    }
+    script.append("  return String(e && e.message || e);\n")
+        .append("}\n")
+        .append("if (r instanceof Error) { return String(r.message); }\n");
+
+    if (multiple) {
+      script.append("var elements = [];\n")
+          .append("for (var i = 0; r && i < r.length; i++) { elements.push(r[i]); }\n")
+          .append("return elements;");
+    } else {
+      script.append("if (!r) { return null; }\n")
+          .append("return r.parentNode ? r : false;");
+    }
+
+    return script.toString();
+  }
+
+  /**
+   * Compiles scripts finding all elements for several locators into a single script, which returns
+   * a list holding the result of each script in order.  Like the scripts, it takes the element to
+   * search within as its first argument, or null to search the document.
+   *
+   * @param scripts scripts compiled to find several elements
+   * @return a script running all the scripts
+   */
+  public static String compileBatch(List<String> scripts) {
+    StringBuilder script = new StringBuilder("var root = arguments[0], results = [];\n");
+    for (String find : scripts) {
+      script.append("results.push((function() {\n").append(find).append("\n})(root));\n");
+    }
+    return script.append("return results;").toString();
+  }
+
+  /**
+   * Tells how a locator finds elements, in the terms of RemoteWebDriver.
+   *
+   * @param by the locator
+   * @return the strategy and the value it uses, or null if the locator is not one of the standard
+   *         locators, e.g. because it chains other locators
+   */
+  public static String[] describe(By by) {
+    // Locators combining other locators would describe the first of them
+    if (by.getClass().getEnclosingClass() != By.class) {
+      return null;
+    }
+
+    Recorder recorder = new Recorder();
+    try {
+      by.findElements(recorder);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+    return recorder.using == null ? null : new String[]{recorder.by, recorder.using};
+  }
+
+  /**
+   * @return an expression finding the element or elements natively from {@code root}, or null if
+   *         the locator should be left to the atoms
+   */
+  private static String nativeFind(String by, String using, boolean multiple) {
+    if (using.isEmpty()) {
+      return null;
+    }
+
+    String select = multiple ? "querySelectorAll" : "querySelector";
+
+    if (by.equals("id")) {
+      if (!multiple) {
+        return "arguments[0] ? root.querySelector(" + quote(attributeSelector("id", using))
+               + ") : document.getElementById(" + quote(using) + ")";
+      }
+      return "root.querySelectorAll(" + quote(attributeSelector("id", using)) + ")";
+    } else if (by.equals("name")) {
+      return "root." + select + "(" + quote(attributeSelector("name", using)) + ")";
+    } else if (by.equals("css selector")) {
+      return "root." + select + "(" + quote(using) + ")";
+    } else if (by.equals("tag name") && SIMPLE_NAME.matcher(using).matches()) {
+      return "root.getElementsByTagName(" + quote(using) + ")" + (multiple ? "" : "[0]");
+    } else if (by.equals("class name") && SIMPLE_NAME.matcher(using).matches()) {
+      return "root.getElementsByClassName(" + quote(using) + ")" + (multiple ? "" : "[0]");
+    } else if (by.equals("xpath")) {
+      return xpath(using, multiple);
+    }
+
+    return null;
+  }
+
+  /**
+   * Evaluates an XPath expression compiled by {@code document.createExpression}, compiling it only
+   * the first time it is used in the page.
+   */
+  private static String xpath(String using, boolean multiple) {
+    String check = "if (n.nodeType != 1) { throw new Error('The result of the xpath expression '"
+                   + " + " + quote(using) + " + ' is: ' + n + '. It should be an element.'); }";
+
+    String evaluate;
+    if (multiple) {
+      evaluate = "var s = x.evaluate(root, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null), a = [];"
+                 + " for (var i = 0; i < s.snapshotLength; i++) {"
+                 + " var n = s.snapshotItem(i); " + check + " a.push(n); }"
+                 + " return a;";
+    } else {
+      evaluate = "var n = x.evaluate(root, XPathResult.FIRST_ORDERED_NODE_TYPE, null)"
+                 + ".singleNodeValue;"
+                 + " if (n) { " + check + " } return n;";
+    }
+
+    return "(function() {"
+           + " var c = window." + XPATH_CACHE_PROPERTY + ";"
+           + " if (!c || c.size >= " + XPATH_CACHE_SIZE + ") {"
+           + " c = window." + XPATH_CACHE_PROPERTY + " = {size: 0, expressions: {}}; }"
+           + " var key = '$' + " + quote(using) + ", x = c.expressions[key];"
+           + " if (!x) {"
+           + " var doc = root.ownerDocument || root;"
+           + " x = c.expressions[key] = doc.createExpression(" + quote(using) + ","
+           + " doc.createNSResolver(doc.documentElement));"
+           + " c.size++; }"
+           + " " + evaluate
+           + " })()";
+  }
+
+  private static String attributeSelector(String attribute, String value) {
+    return "[" + attribute + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\a ") + "\"]";
+  }
+
+  private static String quote(String string) {
+    return gson.toJson(string);
+  }
+
+  /**
+   * A search context that records how a locator asks it to find elements, rather than finding them.
+   */
+  private static class Recorder implements SearchContext, FindsById, FindsByName, FindsByClassName,
+                                           FindsByCssSelector, FindsByTagName, FindsByXPath,
+                                           FindsByLinkText {
+
+    private String by;
+    private String using;
+
+    private List<WebElement> record(String by, String using) {
+      this.by = by;
+      this.using = using;
+      return ImmutableList.of();
+    }
+
+    public List<WebElement> findElements(By by) {
+      throw new UnsupportedOperationException();
+    }
+
+    public WebElement findElement(By by) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsById(String using) {
+      return record("id", using);
+    }
+
+    public WebElement findElementById(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByName(String using) {
+      return record("name", using);
+    }
+
+    public WebElement findElementByName(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByClassName(String using) {
+      return record("class name", using);
+    }
+
+    public WebElement findElementByClassName(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByCssSelector(String using) {
+      return record("css selector", using);
+    }
+
+    public WebElement findElementByCssSelector(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByTagName(String using) {
+      return record("tag name", using);
+    }
+
+    public WebElement findElementByTagName(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByXPath(String using) {
+      return record("xpath", using);
+    }
+
+    public WebElement findElementByXPath(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByLinkText(String using) {
+      return record("link text", using);
+    }
+
+    public WebElement findElementByLinkText(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<WebElement> findElementsByPartialLinkText(String using) {
+      return record("partial link text", using);
+    }
+
+    public WebElement findElementByPartialLinkText(String using) {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
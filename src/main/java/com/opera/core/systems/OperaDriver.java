@@ -16,27 +16,34 @@ limitations under the License.
 
 package com.opera.core.systems;
 
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import com.opera.core.systems.OperaLogs.ConsoleMessageConverter;
 import com.opera.core.systems.common.io.Closeables;
-import com.opera.core.systems.common.lang.OperaStrings;
 import com.opera.core.systems.internal.OperaDefaults;
+import com.opera.core.systems.internal.StartupTimeline;
 import com.opera.core.systems.model.ScreenCaptureReply;
 import com.opera.core.systems.model.ScriptResult;
 import com.opera.core.systems.preferences.OperaScopePreferences;
 import com.opera.core.systems.runner.OperaRunner;
+import com.opera.core.systems.scope.NavigationEpochs;
 import com.opera.core.systems.scope.ScopeService;
 import com.opera.core.systems.scope.ScopeServices;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
 import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.internal.ServiceCallback;
+import com.opera.core.systems.scope.protos.ConsoleLoggerProtos.ConsoleMessage;
 import com.opera.core.systems.scope.protos.SelftestProtos;
+import com.opera.core.systems.scope.services.ConsoleLogger;
 import com.opera.core.systems.scope.services.CookieManager;
 import com.opera.core.systems.scope.services.Core;
 import com.opera.core.systems.scope.services.Debugger;
@@ -57,8 +64,10 @@ import org.openqa.selenium.NoSuchFrameException;
 import org.openqa.selenium.NoSuchWindowException;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Platform;
+import org.openqa.selenium.SearchContext;
 import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.TimeoutException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
@@ -75,6 +84,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.Callable;
@@ -124,7 +134,6 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
 
   protected final OperaSettings settings;
   protected OperaRunner runner = null;
-  protected Set<Integer> objectIds = Sets.newHashSet();
 
   private final Logger logger = Logger.getLogger(getClass().getName());
 
@@ -132,6 +141,9 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
   private Exec exec;
   private Core core;
   private Debugger debugger;
+  private InstalledAtoms atoms;
+  private ElementTracker elementTracker;
+  private AsyncScriptWaiter asyncScripts;
   private WindowManager windowManager;
   private CookieManager cookieManager;
 
@@ -207,15 +219,19 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     }
 
     createScopeServices();
+    StartupTimeline timeline = services.getStartupTimeline();
 
     // Launch Opera if the runner has been setup
     if (runner != null) {
+      timeline.start("launch");
       runner.startOpera();
     }
 
     services.init();
     debugger = services.getDebugger();
     debugger.setDriver(this);
+    atoms = new InstalledAtoms(debugger, services.getNavigationEpochs());
+    elementTracker = new ElementTracker(debugger);
 
     windowManager = services.getWindowManager();
     exec = services.getExec();
@@ -225,13 +241,25 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
 
     mouse = new OperaMouse(this);
     keyboard = new OperaKeyboard(this);
-    services.getConsoleLogger().onConsoleMessage(new ConsoleMessageConverter(logs));
+    ConsoleLogger console = services.getConsoleLogger();
+    if (settings.collectBrowserLogs()) {
+      asyncScripts = new AsyncScriptWaiter(new ConsoleMessageConverter(logs), console);
+      console.subscribe();
+    } else {
+      // Other messages may arrive while waiting for a script, which are not asked for
+      asyncScripts = new AsyncScriptWaiter(new ServiceCallback<ConsoleMessage>() {
+        public void call(ConsoleMessage message) {
+        }
+      }, console);
+    }
+    console.onConsoleMessage(asyncScripts);
 
     // Get product from Opera
     settings.setProduct(utils().getProduct());
 
     // TODO(andreastt): Expose profile on core service
     if (!utils().getUserAgent().contains("Mini")) {
+      timeline.start("preferences");
       preferences = new OperaScopePreferences(services.getPrefs());
 
       // Enable popups for testing purposes
@@ -244,8 +272,12 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     }
 
     // Update browser's proxy configuration
+    timeline.start("proxy");
     proxy = new OperaProxy(this);
     proxy.parse(settings.getProxy());
+    timeline.finish();
+
+    logger.config("Started session in " + timeline);
   }
 
   /**
@@ -277,7 +309,9 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     try {
       services = new ScopeServices(getRequiredServices(),
                                    settings.getPort(),
-                                   !settings.autostart());
+                                   !settings.autostart(),
+                                   settings.useSharedSocketMonitor());
+      services.setPipelinedStartup(settings.usePipelinedStartup());
       services.startStpThread();
     } catch (IOException e) {
       throw new CommunicationException(e);
@@ -434,68 +468,57 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
   }
 
   protected WebElement findElement(final String by, final String using) {
-    return implicitlyWaitFor(new Callable<WebElement>() {
-      public WebElement call() {
-        return findElement(by, using, null);
+    return waitForElement(by, using, null);
+  }
+
+  /**
+   * Finds a single element, waiting for it to appear for as long as the implicit wait allows.
+   *
+   * @param by    how to find the element, strings defined in RemoteWebDriver
+   * @param using the value to use to find the element
+   * @param el    the element to search within, or null to search the document
+   * @return an element
+   */
+  protected WebElement waitForElement(final String by, final String using,
+                                      final OperaWebElement el) {
+    long end = System.currentTimeMillis() + OperaIntervals.IMPLICIT_WAIT.getMs();
+    while (true) {
+      try {
+        return findElement(by, using, el);
+      } catch (NoSuchElementException e) {
+        if (System.currentTimeMillis() >= end) {
+          throw e;
+        } else if (!waitForDomChange(LocatorCompiler.compile(by, using, false, atoms), el, end)) {
+          // The page may have changed in a way the watcher could not see
+          return findElement(by, using, el);
+        }
       }
-    });
+    }
   }
 
   /**
-   * Find a single element using the selenium atoms.
+   * Find a single element, using the DOM directly for simple locators and the selenium atoms
+   * otherwise.
    *
    * @param by    how to find the element, strings defined in RemoteWebDriver
    * @param using the value to use to find the element
    * @param el    the element to search within
    * @return an element
+   * @see LocatorCompiler
    */
   protected WebElement findElement(String by, String using, OperaWebElement el) {
     checkNotNull(using, "Cannot find elements when the selector is null");
     assertConnected();
 
-    using = OperaStrings.escapeJsString(using);
-    boolean isAvailable;
-    Integer id;
-    String script;
-
-    if (el == null) {
-      // Search the document
-      script =
-          "return " + OperaAtom.FIND_ELEMENT + "({\"" + by + "\": \"" + using + "\"})";
-    } else {
-      // Search within an element
-      script =
-          "return " + OperaAtom.FIND_ELEMENT + "({\"" + by + "\": \"" + using
-          + "\"}, locator)";
-    }
+    Object result = findWith(LocatorCompiler.compile(by, using, false, atoms), el);
 
-    if (el == null) {
-      id = debugger.getObject(script);
-    } else {
-      id = debugger.executeScriptOnObject(script, el.getObjectId());
+    if (result instanceof WebElement) {
+      return (WebElement) result;
+    } else if (Boolean.FALSE.equals(result)) {
+      throw new StaleElementReferenceException("This element is no longer part of DOM");
     }
 
-    isAvailable = (id != null);
-
-    if (isAvailable) {
-      String error =
-          debugger.callFunctionOnObject("return (locator instanceof Error) ? locator.message : ''",
-                                        id);
-      if (!error.isEmpty()) {
-        throw new InvalidSelectorException(error);
-      }
-
-      Boolean isStale =
-          Boolean.valueOf(debugger.callFunctionOnObject("locator.parentNode == undefined", id));
-
-      if (isStale) {
-        throw new StaleElementReferenceException("This element is no longer part of DOM");
-      }
-
-      return new OperaWebElement(this, id);
-    } else {
-      throw new NoSuchElementException("Cannot find element(s) with " + by);
-    }
+    throw new NoSuchElementException("Cannot find element(s) with " + by);
   }
 
   public List<WebElement> findElements(By by) {
@@ -510,59 +533,189 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     assertConnected();
     checkNotNull(using, "Cannot find elements when the selector is null");
 
-    using = OperaStrings.escapeJsString(using);
-
-    Integer id;
-
+    String script = LocatorCompiler.compile(by, using, true, atoms);
     long start = System.currentTimeMillis();
-    int count = 0;
-
     List<WebElement> elements;
-
-    String script;
-    if (el == null) {
-      // Search in document
-      script =
-          "return " + OperaAtom.FIND_ELEMENTS + "({\"" + by + "\": \"" + using + "\"})";
-    } else {
-      // Search within an element
-      script =
-          "return " + OperaAtom.FIND_ELEMENTS + "({\"" + by + "\": \"" + using
-          + "\"}, locator)";
-    }
+    boolean lastLook = false;
 
     do {
-      if (el == null) {
-        id = debugger.getObject(script);
+      Object result = findWith(script, el);
+      if (!(result instanceof List)) {
+        throw new NoSuchElementException("Cannot find element(s) with " + by);
+      }
+
+      elements = toElements((List<?>) result);
+
+      if (elements.isEmpty() && !lastLook && hasTimeRemaining(start)) {
+        if (!waitForDomChange(script, el, start + OperaIntervals.IMPLICIT_WAIT.getMs())) {
+          // The page may have changed in a way the watcher could not see
+          lastLook = true;
+        }
       } else {
-        id = debugger.executeScriptOnObject(script, el.getObjectId());
+        break;
       }
 
-      String error = debugger.callFunctionOnObject(
-          "return (locator instanceof Error) ? locator.message : ''", id);
-      if (!error.isEmpty()) {
-        throw new InvalidSelectorException(error);
+    } while (true);
+
+    return elements;
+  }
+
+  /**
+   * Finds the elements of several locators at once.  The standard locators are all resolved in a
+   * single call into the page, so that resolving the locators of a page object costs about as much
+   * as resolving one of them.  Other locators, e.g. chained ones, are resolved one by one.
+   *
+   * Unlike {@link #findElements(By)}, this does not wait for the elements of standard locators to
+   * appear; it tells what the page holds at the moment.  Other locators are resolved through {@link
+   * By#findElements(SearchContext)}, and so still wait for as long as the implicit wait allows when
+   * they find nothing.
+   *
+   * @param locators the locators, by any key
+   * @param <K>      the type of key
+   * @return the elements found by each locator, or why it is invalid, by the same keys and in the
+   *         same order
+   */
+  public <K> Map<K, FoundElements> findAll(Map<K, By> locators) {
+    return findAll(locators, null);
+  }
+
+  /**
+   * Finds the elements of several locators at once, as described in {@link #findAll(Map)}.
+   *
+   * @param locators the locators, by any key
+   * @param el       the element to search within, or null to search the document
+   * @param <K>      the type of key
+   * @return the elements found by each locator, or why it is invalid
+   */
+  protected <K> Map<K, FoundElements> findAll(Map<K, By> locators, OperaWebElement el) {
+    assertConnected();
+
+    List<K> batched = Lists.newArrayList();
+    List<String> scripts = Lists.newArrayList();
+    Map<K, FoundElements> resolved = Maps.newHashMap();
+    SearchContext context = el == null ? this : el;
+
+    for (Map.Entry<K, By> entry : locators.entrySet()) {
+      String[] locator = LocatorCompiler.describe(entry.getValue());
+      if (locator != null) {
+        batched.add(entry.getKey());
+        scripts.add(LocatorCompiler.compile(locator[0], locator[1], true, atoms));
+        continue;
       }
 
-      elements = processElements(id);
+      By by = entry.getValue();
+      try {
+        resolved.put(entry.getKey(), FoundElements.found(by, by.findElements(context)));
+      } catch (InvalidSelectorException e) {
+        resolved.put(entry.getKey(), FoundElements.invalid(by, e));
+      }
+    }
 
-      if (elements != null) {
-        count = elements.size();
+    if (!scripts.isEmpty()) {
+      Object result = executeScript(LocatorCompiler.compileBatch(scripts), el);
+      if (!(result instanceof List) || ((List<?>) result).size() != batched.size()) {
+        throw new WebDriverException("Unexpected result when finding elements: " + result);
       }
 
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.IMPLICIT_WAIT.getMs());
-      } else {
-        break;
+      List<?> results = (List<?>) result;
+      for (int i = 0; i < batched.size(); i++) {
+        K key = batched.get(i);
+        Object found = results.get(i);
+        if (found instanceof String) {
+          resolved.put(key, FoundElements.invalid(locators.get(key),
+                                                  new InvalidSelectorException((String) found)));
+        } else {
+          resolved.put(key, FoundElements.found(
+              locators.get(key), found instanceof List ? toElements((List<?>) found)
+                                                       : ImmutableList.<WebElement>of()));
+        }
       }
+    }
 
-    } while (true);
+    Map<K, FoundElements> ordered = Maps.newLinkedHashMap();
+    for (K key : locators.keySet()) {
+      ordered.put(key, resolved.get(key));
+    }
+    return ordered;
+  }
+
+  /**
+   * Extracts properties of many elements in a single evaluation, e.g. the cells of a table, rather
+   * than asking for each property of each element in turn.
+   *
+   * @param elements   the elements, the rows of the table
+   * @param properties the properties to extract, the columns of the table
+   * @return the properties of the elements
+   */
+  public PropertyTable extract(List<? extends WebElement> elements, ElementProperty... properties) {
+    assertConnected();
 
-    if (id != null) {
-      return elements;
+    List<ElementProperty> columns = ImmutableList.copyOf(properties);
+    if (elements.isEmpty()) {
+      return PropertyTable.empty(columns);
     }
 
-    throw new NoSuchElementException("Cannot find element(s) with " + by);
+    String script = PropertyTable.compile("arguments[0]", columns, atoms);
+    return decodeTable(executeScript(script, elements), columns);
+  }
+
+  /**
+   * Extracts properties of all elements found by a locator in a single evaluation, as described in
+   * {@link #extract(List, ElementProperty...)}.  The elements are found in the same evaluation,
+   * and no references to them are kept.
+   *
+   * @param by         the locator finding the elements, the rows of the table
+   * @param properties the properties to extract, the columns of the table
+   * @return the properties of the elements
+   * @throws InvalidSelectorException if the locator is invalid
+   */
+  public PropertyTable extract(By by, ElementProperty... properties) {
+    String[] locator = LocatorCompiler.describe(by);
+    if (locator == null) {
+      return extract(findElements(by), properties);
+    }
+
+    assertConnected();
+
+    List<ElementProperty> columns = ImmutableList.copyOf(properties);
+    String rows =
+        "(function() {\n" + LocatorCompiler.compile(locator[0], locator[1], true, atoms) + "\n})()";
+    return decodeTable(executeScript(PropertyTable.compile(rows, columns, atoms)), columns);
+  }
+
+  private static PropertyTable decodeTable(Object result, List<ElementProperty> columns) {
+    if (!(result instanceof String)) {
+      throw new WebDriverException("Unexpected result when extracting properties: " + result);
+    }
+    return PropertyTable.decode((String) result, columns);
+  }
+
+  private static List<WebElement> toElements(List<?> result) {
+    List<WebElement> elements = Lists.newArrayList();
+    for (Object element : result) {
+      if (element instanceof WebElement) {
+        elements.add((WebElement) element);
+      }
+    }
+    return elements;
+  }
+
+  /**
+   * Runs a script compiled by {@link LocatorCompiler}.  The root is always passed, even when
+   * searching the document, so that the script runs in a function of its own rather than at the top
+   * level of the page, and its result is serialized in the same evaluation.
+   *
+   * @param script the compiled script
+   * @param el     the element to search within, or null to search the document
+   * @return the element or elements found, null or false
+   * @throws InvalidSelectorException if the locator is invalid
+   */
+  private Object findWith(String script, OperaWebElement el) {
+    Object result = executeScript(script, el);
+    if (result instanceof String) {
+      throw new InvalidSelectorException((String) result);
+    }
+    return result;
   }
 
   /**
@@ -716,15 +869,17 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
 
     // TODO: Implement need to find a way to link an element to a runtime
     public WebDriver frame(WebElement frameElement) {
-      String script = "return " + OperaAtom.GET_FRAME_INDEX + "(locator)";
+      String script = "return " + atoms.get(OperaAtom.GET_FRAME_INDEX) + "(locator)";
       // PageObject fields are wrapped by PageFactory
       while (frameElement instanceof WrapsElement) {
         frameElement = ((WrapsElement) frameElement).getWrappedElement();
       }
-      Long frameIndex =
-          (Long) debugger.callFunctionOnObject(script,
-                                               ((OperaWebElement) frameElement).getObjectId(),
-                                               true);
+      final int objectId = ((OperaWebElement) frameElement).getObjectId();
+      Long frameIndex = (Long) atoms.run(script, new Function<String, Object>() {
+        public Object apply(String script) {
+          return debugger.callFunctionOnObject(script, objectId, true);
+        }
+      });
 
       if (frameIndex == null) {
         throw new NoSuchFrameException("Non-frame element or frame not in current DOM");
@@ -749,17 +904,6 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
 
   }
 
-  public WebElement findElementByName(String using) {
-    return findSingleElement(
-        "document.getElementsByName('" + OperaStrings.escapeJsString(using, "'") + "')[0];",
-        "name");
-  }
-
-  public List<WebElement> findElementsByName(String using) {
-    return findMultipleElements(
-        "document.getElementsByName('" + OperaStrings.escapeJsString(using, "'") + "');", "name");
-  }
-
   public Navigation navigate() {
     return new OperaNavigation();
   }
@@ -947,8 +1091,12 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     return target.convertFromPngBytes(body.captureScreen().getPng());
   }
 
-  public Object executeScript(String script, Object... args) {
-    Object object = debugger.scriptExecutor(script, args);
+  public Object executeScript(String script, final Object... args) {
+    Object object = atoms.run(script, new Function<String, Object>() {
+      public Object apply(String script) {
+        return debugger.scriptExecutor(script, args);
+      }
+    });
 
     // We probably have an element _or_ a list.
     if (object instanceof ScriptResult) {
@@ -969,8 +1117,53 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     return object;
   }
 
+  /**
+   * Executes an asynchronous script, which signals its result by calling the callback passed as its
+   * last argument.  The callback notifies the driver through the console, so that the driver does
+   * not need to poll the page while waiting.
+   *
+   * @param script the script to execute
+   * @param args   the arguments to the script, which are followed by the callback
+   * @return the value passed to the callback
+   * @throws TimeoutException if the script does not call back within the script timeout
+   */
   public Object executeAsyncScript(String script, Object... args) {
-    throw new UnsupportedOperationException();
+    return executeAsyncScript(OperaIntervals.SCRIPT_TIMEOUT.getMs(), null, script, args);
+  }
+
+  /**
+   * @param abandoned tells whether to give up waiting for the script before it times out, or null
+   *                  to wait until it does
+   * @see #executeAsyncScript(String, Object...)
+   */
+  private Object executeAsyncScript(long timeout, Supplier<Boolean> abandoned, String script,
+                                    Object... args) {
+    String token = asyncScripts.expect();
+    Object[] params = new Object[args == null ? 1 : args.length + 1];
+    params[0] = token;
+    if (args != null) {
+      System.arraycopy(args, 0, params, 1, args.length);
+    }
+
+    try {
+      executeScript(AsyncScriptWaiter.wrap(script), params);
+    } catch (RuntimeException e) {
+      asyncScripts.cancel(token);
+      throw e;
+    }
+
+    boolean called = abandoned == null
+                     ? asyncScripts.await(token, timeout)
+                     : asyncScripts.await(token, timeout, OperaIntervals.POLL_INTERVAL.getMs(),
+                                          abandoned);
+    Object result = executeScript(AsyncScriptWaiter.takeResult(token));
+
+    if (!called) {
+      throw new TimeoutException(
+          String.format("Timed out waiting for asynchronous script result after %d ms", timeout));
+    }
+
+    return result;
   }
 
   // RemoteWebDriver still uses old Keyboard interface:
@@ -1126,6 +1319,14 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     return services;
   }
 
+  protected InstalledAtoms getAtoms() {
+    return atoms;
+  }
+
+  protected ElementTracker getElementTracker() {
+    return elementTracker;
+  }
+
   protected List<WebElement> processElements(Integer id) {
     List<Integer> ids = debugger.examineObjects(id);
     List<WebElement> toReturn = Lists.newArrayList();
@@ -1239,44 +1440,106 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot, Run
     if ((services != null && services.isConnected()) && debugger != null) {
       debugger.releaseObjects();
     }
-    objectIds.clear();
-  }
-
-  private WebElement findActiveElement() {
-    return findSingleElement("document.activeElement;", "active element");
+    if (elementTracker != null) {
+      elementTracker.forgetAll();
+    }
   }
 
-  private List<WebElement> findMultipleElements(String script, String type) {
-    Integer id;
-
-    long start = System.currentTimeMillis();
-    int count = 0;
-
-    List<WebElement> elements;
-
-    do {
-      id = debugger.getObject(script);
-      elements = processElements(id);
-
-      if (elements != null) {
-        count = elements.size();
-      }
+  /**
+   * Waits until the DOM changes so that the locator finds something, without polling the page.  A
+   * watcher installed in the page looks for elements again only when the DOM changes, using {@code
+   * MutationObserver} if available and mutation events otherwise, and calls back once it finds
+   * something, or when the time runs out.
+   *
+   * The watcher cannot call back once the page it was installed in goes away, so waiting stops
+   * early if the page unloads, or if the runtime or window navigates as told by {@link
+   * NavigationEpochs}, and the caller should look again, installing a new watcher if need be.  As
+   * the watcher may also miss changes, e.g. when the page is replaced without unloading, the caller
+   * should look once more when the time runs out.
+   *
+   * @param find a script compiled by {@link LocatorCompiler} finding the element or elements
+   * @param el   the element to search within, or null to search the document
+   * @param end  the time at which to stop waiting, in milliseconds since the epoch
+   * @return true if the locator may now find something, false if the time ran out
+   */
+  private boolean waitForDomChange(String find, OperaWebElement el, long end) {
+    long timeout = end - System.currentTimeMillis();
+    if (timeout <= 0) {
+      return false;
+    }
 
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.POLL_INTERVAL.getMs());
-      } else {
-        break;
+    String script =
+        "var callback = arguments[arguments.length - 1];\n"
+        + "var root = arguments.length > 2 ? arguments[1] : undefined;\n"
+        + "var find = function() {\n" + find + "\n};\n"
+        + "var done = false, scheduled = false, observer, timer;\n"
+        + "var events = ['DOMNodeInserted', 'DOMNodeRemoved', 'DOMAttrModified',\n"
+        + "              'DOMCharacterDataModified'];\n"
+        + "function test() {\n"
+        + "  try { var r = find(root); return r !== null && !(r instanceof Array && !r.length); }\n"
+        + "  catch (e) { return true; }\n"
+        + "}\n"
+        + "function finish(result) {\n"
+        + "  if (done) { return; }\n"
+        + "  done = true;\n"
+        + "  clearTimeout(timer);\n"
+        + "  window.removeEventListener('unload', unloaded, false);\n"
+        + "  if (observer) { observer.disconnect(); }\n"
+        + "  else { for (var i = 0; i < events.length; i++) {\n"
+        + "    document.removeEventListener(events[i], changed, true); } }\n"
+        + "  callback(result);\n"
+        + "}\n"
+        + "function changed() {\n"
+        + "  if (done || scheduled) { return; }\n"
+        + "  scheduled = true;\n"
+        + "  setTimeout(function() {\n"
+        + "    scheduled = false;\n"
+        + "    if (!done && test()) { finish(true); }\n"
+        + "  }, 0);\n"
+        + "}\n"
+        + "function unloaded() { finish(true); }\n"
+        + "if (test()) { return callback(true); }\n"
+        + "window.addEventListener('unload', unloaded, false);\n"
+        + "var Observer = window.MutationObserver || window.WebKitMutationObserver;\n"
+        + "if (Observer) {\n"
+        + "  observer = new Observer(changed);\n"
+        + "  observer.observe(document, {childList: true, subtree: true, attributes: true,\n"
+        + "                              characterData: true});\n"
+        + "} else { for (var i = 0; i < events.length; i++) {\n"
+        + "  document.addEventListener(events[i], changed, true); } }\n"
+        + "timer = setTimeout(function() { finish(false); }, arguments[0]);";
+
+    final NavigationEpochs epochs = services.getNavigationEpochs();
+    final int runtimeId = debugger.getRuntimeId();
+    final int windowId = windowManager.getActiveWindowId();
+    final long runtimeEpoch = epochs.getRuntimeEpoch(runtimeId);
+    final long windowEpoch = epochs.getWindowEpoch(windowId);
+    Supplier<Boolean> navigated = new Supplier<Boolean>() {
+      public Boolean get() {
+        return debugger.getRuntimeId() != runtimeId
+               || epochs.getRuntimeEpoch(runtimeId) != runtimeEpoch
+               || epochs.getWindowEpoch(windowId) != windowEpoch;
       }
+    };
 
-    } while (true);
-
-    if (id != null) {
-      return elements;
-    } else {
-      throw new NoSuchElementException("Cannot find element(s) with " + type);
+    try {
+      Object[] args = el == null ? new Object[]{timeout} : new Object[]{timeout, el};
+      return Boolean.TRUE.equals(executeAsyncScript(timeout, navigated, script, args));
+    } catch (TimeoutException e) {
+      // The watcher went away with the page it was installed in, so look again
+      return navigated.get() && System.currentTimeMillis() < end;
+    } catch (WebDriverException e) {
+      // The page could not be watched, so look again after the poll interval
+      logger.fine("Unable to watch the DOM for changes: " + e.getMessage());
+      sleep(OperaIntervals.POLL_INTERVAL.getMs());
+      return System.currentTimeMillis() < end;
     }
   }
 
+  private WebElement findActiveElement() {
+    return findSingleElement("document.activeElement;", "active element");
+  }
+
   private WebElement findSingleElement(String script, String type) {
     long start = System.currentTimeMillis();
     boolean isAvailable;
@@ -62,6 +62,8 @@ import static com.opera.core.systems.OperaSettings.Capability.ARGUMENTS;
 import static com.opera.core.systems.OperaSettings.Capability.AUTOSTART;
 import static com.opera.core.systems.OperaSettings.Capability.BACKEND;
 import static com.opera.core.systems.OperaSettings.Capability.BINARY;
+import static com.opera.core.systems.OperaSettings.Capability.BROWSER_LOGS;
+import static com.opera.core.systems.OperaSettings.Capability.CACHE_TAG_NAMES;
 import static com.opera.core.systems.OperaSettings.Capability.DETACH;
 import static com.opera.core.systems.OperaSettings.Capability.DISPLAY;
 import static com.opera.core.systems.OperaSettings.Capability.EMULATION_PROFILE;
@@ -73,9 +75,11 @@ import static com.opera.core.systems.OperaSettings.Capability.NO_RESTART;
 import static com.opera.core.systems.OperaSettings.Capability.OPERAIDLE;
 import static com.opera.core.systems.OperaSettings.Capability.PORT;
 import static com.opera.core.systems.OperaSettings.Capability.PRODUCT;
+import static com.opera.core.systems.OperaSettings.Capability.PIPELINED_STARTUP;
 import static com.opera.core.systems.OperaSettings.Capability.PROFILE;
 import static com.opera.core.systems.OperaSettings.Capability.PROXY;
 import static com.opera.core.systems.OperaSettings.Capability.RUNNER;
+import static com.opera.core.systems.OperaSettings.Capability.SHARED_SOCKET_MONITOR;
 import static com.opera.core.systems.runner.launcher.OperaLauncherRunner.LAUNCHER_ENV_VAR;
 import static com.opera.core.systems.internal.OperaDefaults.SERVER_DEFAULT_PORT;
 import static com.opera.core.systems.internal.OperaDefaults.SERVER_DEFAULT_PORT_IDENTIFIER;
@@ -321,6 +325,77 @@ public class OperaSettings {
       }
     },
 
+    /**
+     * (Boolean) Whether to share a small, fixed pool of socket monitor threads with the other
+     * sessions in this process instead of running a dedicated thread for this session.  Useful when
+     * running many instances of Opera from the same JVM.  Default is false.
+     *
+     * @since 1.6
+     */
+    SHARED_SOCKET_MONITOR("opera.sharedSocketMonitor") {
+      Boolean getDefaultValue() {
+        return OperaDefaults.ENABLE_SHARED_SOCKET_MONITOR;
+      }
+
+      Boolean sanitize(Object enabled) {
+        checkNotNull(enabled);
+        return OperaBoolean.parseBoolean(String.valueOf(enabled));
+      }
+    },
+
+    /**
+     * (Boolean) Whether to send independent commands back-to-back when setting up the connection to
+     * Opera, rather than waiting for the response to each command before sending the next.  This
+     * cuts the time it takes to start a session.  Default is false.
+     *
+     * @since 1.6
+     */
+    PIPELINED_STARTUP("opera.pipelinedStartup") {
+      Boolean getDefaultValue() {
+        return OperaDefaults.ENABLE_PIPELINED_STARTUP;
+      }
+
+      Boolean sanitize(Object enabled) {
+        checkNotNull(enabled);
+        return OperaBoolean.parseBoolean(String.valueOf(enabled));
+      }
+    },
+
+    /**
+     * (Boolean) Whether to collect messages sent to Opera's console as browser logs.  When false,
+     * console messages are only received while an asynchronous script is waited for, and are
+     * otherwise dropped by the connection unread.  Default is true.
+     *
+     * @since 1.6
+     */
+    BROWSER_LOGS("opera.browserLogs") {
+      Boolean getDefaultValue() {
+        return OperaDefaults.COLLECT_BROWSER_LOGS;
+      }
+
+      Boolean sanitize(Object enabled) {
+        checkNotNull(enabled);
+        return OperaBoolean.parseBoolean(String.valueOf(enabled));
+      }
+    },
+
+    /**
+     * (Boolean) Whether elements keep their tag name once it has been read, and return it without
+     * asking Opera for as long as the page they are in has not been left.  Default is false.
+     *
+     * @since 1.6
+     */
+    CACHE_TAG_NAMES("opera.cacheTagNames") {
+      Boolean getDefaultValue() {
+        return OperaDefaults.CACHE_TAG_NAMES;
+      }
+
+      Boolean sanitize(Object enabled) {
+        checkNotNull(enabled);
+        return OperaBoolean.parseBoolean(String.valueOf(enabled));
+      }
+    },
+
     /**
      * (Integer) The X display to use.  If set, Opera will be started on the specified display.
      * (Only works on GNU/Linux.)
@@ -991,6 +1066,87 @@ public class OperaSettings {
     options.get(OPERAIDLE).setValue(enabled);
   }
 
+  /**
+   * Whether this session shares its socket monitor thread with the other sessions in the process.
+   * It is false by default.
+   *
+   * @return true if a shared socket monitor is used, false if the session has a dedicated thread
+   */
+  public boolean useSharedSocketMonitor() {
+    return (Boolean) options.get(SHARED_SOCKET_MONITOR).getValue();
+  }
+
+  /**
+   * Specifies whether to share a process wide pool of socket monitor threads with other sessions,
+   * rather than running a dedicated thread for this session.  This keeps the number of threads
+   * constant when running many instances of Opera from the same JVM.
+   *
+   * @param enabled true to use the shared socket monitor, false to use a dedicated thread
+   */
+  public void setSharedSocketMonitor(boolean enabled) {
+    options.get(SHARED_SOCKET_MONITOR).setValue(enabled);
+  }
+
+  /**
+   * Whether independent commands are sent back-to-back when starting a session.  It is false by
+   * default.
+   *
+   * @return true if startup commands are pipelined, false if they are sent one at a time
+   */
+  public boolean usePipelinedStartup() {
+    return (Boolean) options.get(PIPELINED_STARTUP).getValue();
+  }
+
+  /**
+   * Specifies whether to send independent commands back-to-back when starting a session, and wait
+   * for their responses together, rather than waiting for each response before sending the next
+   * command.
+   *
+   * @param enabled true to pipeline startup commands, false to send them one at a time
+   */
+  public void setPipelinedStartup(boolean enabled) {
+    options.get(PIPELINED_STARTUP).setValue(enabled);
+  }
+
+  /**
+   * Whether messages sent to Opera's console are collected as browser logs.  It is true by
+   * default.
+   *
+   * @return true if console messages are collected, false if they are dropped
+   */
+  public boolean collectBrowserLogs() {
+    return (Boolean) options.get(BROWSER_LOGS).getValue();
+  }
+
+  /**
+   * Specifies whether to collect messages sent to Opera's console as browser logs.  Not collecting
+   * them spares the connection from parsing every console message a page produces.
+   *
+   * @param enabled true to collect console messages, false to drop them
+   */
+  public void setBrowserLogs(boolean enabled) {
+    options.get(BROWSER_LOGS).setValue(enabled);
+  }
+
+  /**
+   * Whether elements keep their tag name once it has been read.  The tag name of an element never
+   * changes, so it need only be read once, after which it is returned without asking Opera.
+   *
+   * @return true if tag names are cached, false otherwise
+   */
+  public boolean cacheTagNames() {
+    return (Boolean) options.get(CACHE_TAG_NAMES).getValue();
+  }
+
+  /**
+   * Specifies whether elements keep their tag name once it has been read.
+   *
+   * @param enabled true to cache tag names, false to read them every time
+   */
+  public void setCacheTagNames(boolean enabled) {
+    options.get(CACHE_TAG_NAMES).setValue(enabled);
+  }
+
   /**
    * Gets the X display used.  Only works on GNU/Linux.
    *
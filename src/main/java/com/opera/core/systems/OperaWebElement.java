@@ -16,13 +16,16 @@ limitations under the License.
 
 package com.opera.core.systems;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 
 import com.opera.core.systems.internal.OperaColors;
 import com.opera.core.systems.model.Canvas;
 import com.opera.core.systems.model.ColorResult;
+import com.opera.core.systems.model.ElementState;
 import com.opera.core.systems.model.ScreenCaptureReply;
+import com.opera.core.systems.scope.NavigationEpochs;
 import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
 import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.internal.OperaMouseKeys;
@@ -33,7 +36,6 @@ import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
 import org.openqa.selenium.ElementNotVisibleException;
 import org.openqa.selenium.InvalidElementStateException;
-import org.openqa.selenium.NoSuchElementException;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.WebDriver;
@@ -50,6 +52,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
@@ -62,12 +65,16 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
       ImmutableList.of("datetime", "date", "month", "week", "time", "datetime-local", "range",
                        "color", "file");
 
-  private final Logger logger = Logger.getLogger(getClass().getName());
+  private static final Logger logger = Logger.getLogger(OperaWebElement.class.getName());
+
   private final int objectId;
   private final int runtimeId;
+  private final long runtimeEpoch;
   private final OperaDriver parent;
   private final Exec exec;
   private final Debugger debugger;
+  private final boolean cacheTagName;
+  private volatile String tagName;
 
   /**
    * @param driver driver that this element belongs to
@@ -76,10 +83,12 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
   public OperaWebElement(final OperaDriver driver, final int id) {
     parent = driver;
     objectId = id;
-    parent.objectIds.add(objectId);
+    parent.getElementTracker().track(this, objectId);
     debugger = parent.getDebugger();
     exec = parent.getScopeServices().getExec();
     runtimeId = debugger.getRuntimeId();
+    runtimeEpoch = parent.getScopeServices().getNavigationEpochs().getRuntimeEpoch(runtimeId);
+    cacheTagName = parent.settings.cacheTagNames();
     setId(String.valueOf(hashCode()));
     setFileDetector(parent.getFileDetector());
   }
@@ -92,17 +101,11 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
    */
   public final String callMethod(String method) {
     parent.assertConnected();
-    return debugger.callFunctionOnObject(method, objectId);
-  }
-
-  /**
-   * Executes the given script with the element's object ID, but does not parse the response.
-   *
-   * @param script the script to execute
-   */
-  private void executeMethod(String script) {
-    parent.assertConnected();
-    debugger.callFunctionOnObject(script, objectId, false);
+    return parent.getAtoms().run(method, new Function<String, String>() {
+      public String apply(String script) {
+        return debugger.callFunctionOnObject(script, objectId);
+      }
+    });
   }
 
   /**
@@ -112,20 +115,24 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
    * @return a parsed result object from the executor
    */
   private Object evaluateMethod(String script) {
-    return debugger.callFunctionOnObject(script, objectId, true);
+    return parent.getAtoms().run(script, new Function<String, Object>() {
+      public Object apply(String script) {
+        return debugger.callFunctionOnObject(script, objectId, true);
+      }
+    });
   }
 
   // TODO(andreastt): OPDRV-199
   public void click() {
-    assertElementNotStale();
-    assertElementDisplayed();
-
     parent.getScopeServices().captureOperaIdle();
 
-    if (getTagName().equals("OPTION")) {
-      callMethod("return " + OperaAtom.CLICK + "(locator)");
-    } else {
-      parent.getMouse().click(getCoordinates());
+    // Options are clicked in the page as part of the same round trip
+    ElementState state =
+        assertCanInteract(false, true, "if(locator.tagName=='OPTION')" + atom(OperaAtom.CLICK)
+                                       + "(locator);");
+
+    if (!state.getTagName().equals("OPTION")) {
+      parent.getMouse().click(coordinatesAt(state.getLocation()));
     }
 
     try {
@@ -166,66 +173,57 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
       return callMethod("if(/^input|select|option|textarea$/i.test(locator.nodeName)){"
                         + "return locator.value;" + "}" + "return locator.textContent;");
     } else {
-      return callMethod("return " + OperaAtom.GET_ATTRIBUTE + "(locator, '" + attribute
+      return callMethod("return " + atom(OperaAtom.GET_ATTRIBUTE) + "(locator, '" + attribute
                         + "')");
     }
   }
 
   public String getText() {
     assertElementNotStale();
-    return callMethod("return " + OperaAtom.GET_TEXT + "(locator)");
+    return callMethod("return " + atom(OperaAtom.GET_TEXT) + "(locator)");
   }
 
   public boolean isDisplayed() {
     assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_DISPLAYED + "(locator)");
+    return (Boolean) evaluateMethod("return " + atom(OperaAtom.IS_DISPLAYED) + "(locator)");
   }
 
   public boolean isEnabled() {
     assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_ENABLED + "(locator)");
+    return (Boolean) evaluateMethod("return " + atom(OperaAtom.IS_ENABLED) + "(locator)");
   }
 
   public boolean isSelected() {
     assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_SELECTED + "(locator)");
+    return (Boolean) evaluateMethod("return " + atom(OperaAtom.IS_SELECTED) + "(locator)");
   }
 
   public void clear() {
-    verifyCanInteractWithElement();
-
-    if (isEnabled() && !Boolean.valueOf(getAttribute("readonly"))) {
-      executeMethod("return " + OperaAtom.CLEAR + "(locator)");
-    }
+    assertCanInteract(true, false, "if(!locator.readOnly)" + atom(OperaAtom.CLEAR) + "(locator);");
   }
 
   public void sendKeys(CharSequence... keysToSend) {
-    verifyCanInteractWithElement();
+    ElementState state = assertCanInteract(true, false, focusScript());
 
     // Handle special input types
-    String typeAttribute = getAttribute("type");
+    String type = state.getType().toLowerCase();
 
-    if (typeAttribute != null) {
-      typeAttribute = typeAttribute.toLowerCase();
+    if (state.getTagName().equals("INPUT") && SPECIAL_INPUTS.contains(type)) {
+      if (type.equals("file")) {
+        File localFile = fileDetector.getLocalFile(keysToSend);
 
-      if (getTagName().equals("INPUT") && SPECIAL_INPUTS.contains(typeAttribute)) {
-        if (typeAttribute.equals("file")) {
-          File localFile = fileDetector.getLocalFile(keysToSend);
-
-          if (localFile != null) {
-            debugger.setFormElementValue(objectId, localFile.getAbsolutePath());
-          }
-        } else {
-          debugger.setFormElementValue(objectId, Joiner.on("").join(keysToSend));
+        if (localFile != null) {
+          debugger.setFormElementValue(objectId, localFile.getAbsolutePath());
         }
-
-        return;
+      } else {
+        debugger.setFormElementValue(objectId, Joiner.on("").join(keysToSend));
       }
+
+      return;
     }
 
     parent.getScopeServices().captureOperaIdle();
 
-    switchFocusToThisIfNeeded();
     parent.getKeyboard().sendKeys(keysToSend);
 
     try {
@@ -235,7 +233,11 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     }
   }
 
-  private void switchFocusToThisIfNeeded() {
+  /**
+   * Builds the script focusing this element before keys are sent to it, which does nothing for the
+   * special input types whose value is set directly.
+   */
+  private String focusScript() {
     // TODO(andreastt): Check if element is already focused, if not click
 
     // When a TEXTAREA element is focused it returns the cursor to the last position was at, or
@@ -243,19 +245,18 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     // the beginning.  Because of this we are forced to move the caret to the end of the input
     // field.  We do this by setting the selection range through JavaScript, which should move the
     // cursor to the end of the field upon the next focus event.
-    String type = callMethod("locator.type");
-
-    if (type != null && (type.equals("text") || type.equals("textarea"))) {
-      executeMethod(OperaAtom.MOVE_CARET_TO_END + "(locator)");
-    }
-
-    executeMethod("locator.focus()");
+    return "if(locator.tagName!='INPUT'||!/^(" + Joiner.on('|').join(SPECIAL_INPUTS)
+           + ")$/i.test(locator.type)){"
+           + "if(locator.type=='text'||locator.type=='textarea')"
+           + atom(OperaAtom.MOVE_CARET_TO_END) + "(locator);"
+           + "locator.focus();"
+           + "}";
   }
 
   public void submit() {
     parent.getScopeServices().captureOperaIdle();
 
-    evaluateMethod("return " + OperaAtom.SUBMIT + "(locator)");
+    evaluateMethod("return " + atom(OperaAtom.SUBMIT) + "(locator)");
 
     try {
       parent.waitForLoadToComplete();
@@ -272,8 +273,8 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     assertElementNotStale();
 
     String coordinates =
-        debugger.callFunctionOnObject("var coords = " + OperaAtom.GET_LOCATION
-                                      + "(locator); return coords.x + ',' + coords.y;", objectId);
+        callMethod("var coords = " + atom(OperaAtom.GET_LOCATION)
+                   + "(locator); return coords.x + ',' + coords.y;");
 
     // TODO: The goog.dom.getDocumentScrollElement_() function the Google closure library doesn't
     // return the document for SVG documents. This is used by the above atom. In this case the
@@ -282,9 +283,9 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     if (coordinates.isEmpty()) {
       logger.warning("Falling back to non-atom positioning code in getLocation");
       coordinates =
-          debugger.callFunctionOnObject("var coords = locator.getBoundingClientRect();"
-                                        + "return (coords.left-window.pageXOffset)+','+(coords.top-window.pageYOffset)",
-                                        objectId);
+          callMethod("var coords = locator.getBoundingClientRect();"
+                     + "return (coords.left-window.pageXOffset)+','"
+                     + "+(coords.top-window.pageYOffset)");
     }
 
     String[] location = coordinates.split(",");
@@ -295,8 +296,7 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     assertElementNotStale();
 
     String widthAndHeight =
-        debugger.callFunctionOnObject("var s=" + OperaAtom.GET_SIZE
-                                      + "(locator);return s.width+','+s.height;", objectId);
+        callMethod("var s=" + atom(OperaAtom.GET_SIZE) + "(locator);return s.width+','+s.height;");
 
     String[] dimension = widthAndHeight.split(",");
     return new Dimension(Integer.valueOf(dimension[0]), Integer.valueOf(dimension[1]));
@@ -359,8 +359,6 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
    */
   public String saveScreenshot(String filename, long timeout, boolean includeImage,
                                List<String> hashes) {
-    assertElementNotStale();
-
     Canvas canvas = buildCanvas();
     ScreenCaptureReply reply =
         exec.screenWatcher(canvas, timeout, includeImage, hashes);
@@ -389,7 +387,6 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
   }
 
   public ScreenCaptureReply captureScreen(long timeout, List<String> knownMD5s) {
-    assertElementNotStale();
     Canvas canvas = buildCanvas();
     return exec.screenWatcher(canvas, timeout, true, knownMD5s);
   }
@@ -405,8 +402,6 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
   @SuppressWarnings("unused")
   @Deprecated
   public boolean containsColor(OperaColors... colors) {
-    assertElementNotStale();
-
     Canvas canvas = buildCanvas();
     ScreenCaptureReply reply = exec.containsColor(canvas, 100L, colors);
 
@@ -427,9 +422,14 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
    * @return a canvas representing the size and position of this element.
    */
   private Canvas buildCanvas() {
+    ElementState state = readState(false, true, "");
+    if (state.isStale()) {
+      throw disconnected();
+    }
+
     Canvas canvas = new Canvas();
-    Dimension dimension = getSize();
-    Point point = coordinates.inViewPort();
+    Dimension dimension = state.getSize();
+    Point point = state.getLocation();
     int x = point.x;
     int y = point.y;
 
@@ -446,9 +446,24 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     return canvas;
   }
 
+  /**
+   * Gets the tag name of this element.  The tag name never changes, so if tag names are cached (see
+   * {@link OperaSettings#cacheTagNames()}) it is read at most once, and is then returned as long as
+   * the page has not been left, without asking Opera.
+   */
   public String getTagName() {
+    String cached = tagName;
+    if (cached != null) {
+      assertPageNotLeft();
+      return cached;
+    }
+
     assertElementNotStale();
-    return callMethod("return (locator.tagName);");
+    String read = callMethod("return (locator.tagName);");
+    if (cacheTagName) {
+      tagName = read;
+    }
+    return read;
   }
 
   /**
@@ -487,60 +502,24 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     return "element" + hashCode();
   }
 
-  private WebElement findSingleElement(String using, String type) {
-    Integer id = debugger.executeScriptOnObject(using, objectId);
-    if (id != null) {
-      return new OperaWebElement(parent, id);
-    }
-
-    throw new NoSuchElementException("Cannot find element with " + type);
-  }
-
-  protected WebElement findElement(final String by, final String using) {
-    final OperaWebElement el = this;
-
-    return parent.implicitlyWaitFor(new Callable<WebElement>() {
-      public WebElement call() {
-        return parent.findElement(by, using, el);
-      }
-    });
+  protected WebElement findElement(String by, String using) {
+    return parent.waitForElement(by, using, this);
   }
 
   protected List<WebElement> findElements(String by, String using) {
     return parent.findElements(by, using, this);
   }
 
-  private List<WebElement> findMultipleElements(String using, String type) {
-    Integer id = debugger.executeScriptOnObject(using, objectId);
-
-    if (id == null) {
-      throw new NoSuchElementException("Cannot find element(s) with " + type);
-    }
-
-    return parent.processElements(id);
-  }
-
-  public WebElement findElementByName(String using) {
-    return findSingleElement("document.evaluate(\"descendant-or-self::*[@name='" + using
-                             + "']\",locator,null,XPathResult.ORDERED_NODE_ITERATOR_TYPE,null).iterateNext()",
-                             "name");
-  }
-
-  public List<WebElement> findElementsByName(String using) {
-    return findMultipleElements("var result = document.evaluate"
-                                + "(\"descendant-or-self::*[@name='" + using + "']\""
-                                + ", locator, null, XPathResult.ORDERED_NODE_ITERATOR_TYPE,  null);\n"
-                                + "var elements = new Array();\n"
-                                + "var element = result.iterateNext();\n"
-                                + "while (element) {\n" + "  elements.push(element);\n"
-                                + "  element = result.iterateNext();\n" + "}\n" + "return elements",
-                                "XPath");
-  }
-
-  @Override
-  protected void finalize() throws Throwable {
-    debugger.releaseObject(objectId);
-    super.finalize();
+  /**
+   * Finds the elements of several locators within this element at once.
+   *
+   * @param locators the locators, by any key
+   * @param <K>      the type of key
+   * @return the elements found by each locator, or why it is invalid, by the same keys
+   * @see OperaDriver#findAll(Map)
+   */
+  public <K> Map<K, FoundElements> findAll(Map<K, By> locators) {
+    return parent.findAll(locators, this);
   }
 
   public Coordinates getCoordinates() {
@@ -606,7 +585,8 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     assertElementNotStale();
 
     String value =
-        callMethod("return " + OperaAtom.GET_EFFECTIVE_STYLE + "(locator, '" + property + "')");
+        callMethod("return " + atom(OperaAtom.GET_EFFECTIVE_STYLE) + "(locator, '" + property
+                   + "')");
 
     // WebDriver specifies that the output from getCssValue() must be in RGBA format
     if (property.contains("color") && value.contains("rgb")) {
@@ -620,52 +600,129 @@ public class OperaWebElement extends RemoteWebElement implements CapturesScreen
     return parent;
   }
 
-  private void verifyCanInteractWithElement() {
-    assertElementNotStale();
-    assertElementDisplayed();
-    assertElementEnabled();
+  /**
+   * Verifies that the user can interact with this element, waiting for it to be displayed for as
+   * long as the implicit wait allows, and then runs the given script on it.  The element is checked
+   * for staleness, visibility and being enabled, and the script is run, in a single round trip to
+   * Opera per attempt.
+   *
+   * @param requireEnabled whether the element must also be enabled
+   * @param scrollIntoView whether to scroll the element into view before reading its location
+   * @param action         script to run on the element once it is known that it can be interacted
+   *                       with
+   * @return the state of the element as it was before running the script
+   */
+  private ElementState assertCanInteract(final boolean requireEnabled,
+                                         final boolean scrollIntoView, final String action) {
+    ElementState state = parent.implicitlyWaitFor(new Callable<ElementState>() {
+      public ElementState call() {
+        ElementState current = readState(requireEnabled, scrollIntoView, action);
+        return current.isStale() || current.isDisplayed() ? current : null;
+      }
+    });
+
+    if (state == null) {
+      throw new ElementNotVisibleException("You may only interact with visible elements");
+    } else if (state.isStale()) {
+      throw disconnected();
+    } else if (requireEnabled && !state.isEnabled()) {
+      throw new InvalidElementStateException("You may only interact with enabled elements");
+    }
+
+    return state;
   }
 
-  private void assertElementDisplayed() {
-    assertElementDisplayed("You may only interact with visible elements");
+  /**
+   * Reads the state of this element in a single round trip, running the given script on it if it
+   * is displayed, and enabled if so required.  See {@link ElementState} for the format.
+   */
+  private ElementState readState(boolean requireEnabled, boolean scrollIntoView, String action) {
+    assertPageNotLeft();
+
+    String script =
+        "if(locator.parentNode==undefined)return '';"
+        + "var d=!!" + atom(OperaAtom.IS_DISPLAYED) + "(locator),"
+        + "e=!!" + atom(OperaAtom.IS_ENABLED) + "(locator);"
+        + (scrollIntoView ? "if(d)locator.scrollIntoView();" : "")
+        + "var x=0,y=0;"
+        + "if(window.top!==window.self){"
+        + "x=(window.screenLeft-window.top.screenLeft)+window.scrollX;"
+        + "y=(window.screenTop-window.top.screenTop)+window.scrollY;"
+        + "}"
+        + "var r=locator.getBoundingClientRect();"
+        + "var s=[d?1:0,e?1:0,locator.readOnly?1:0,locator.tagName,"
+        + "Math.round(x+r.left),Math.round(y+r.top),Math.round(r.width),Math.round(r.height),"
+        + "locator.type||''].join(',');"
+        + "if(d&&" + (requireEnabled ? "e" : "true") + "){" + action + "}"
+        + "return s;";
+
+    ElementState state = ElementState.parse(callMethod(script));
+    if (cacheTagName && !state.isStale()) {
+      tagName = state.getTagName();
+    }
+
+    return state;
   }
 
-  private void assertElementDisplayed(String message) {
-    Boolean displayed = parent.implicitlyWaitFor(new Callable<Boolean>() {
-      public Boolean call() {
-        return isDisplayed();
+  /**
+   * Gets the coordinates of this element at an already known location in the viewport, so that it
+   * need not be scrolled into view again.
+   */
+  private Coordinates coordinatesAt(final Point inViewPort) {
+    return new Coordinates() {
+      public Point onScreen() {
+        return coordinates.onScreen();
       }
-    });
 
-    if (displayed == null || !displayed) {
-      throw new ElementNotVisibleException(message);
-    }
+      public Point inViewPort() {
+        return inViewPort;
+      }
+
+      public Point onPage() {
+        return coordinates.onPage();
+      }
+
+      public Object getAuxiliary() {
+        return coordinates.getAuxiliary();
+      }
+    };
   }
 
-  private void assertElementEnabled() {
-    assertElementEnabled("You may only interact with enabled elements");
+  /**
+   * Gets an expression evaluating to the given atom in the page, installing it in the page first if
+   * needed.
+   */
+  private String atom(OperaAtom atom) {
+    return parent.getAtoms().get(atom);
   }
 
-  private void assertElementEnabled(String message) {
-    if (!isEnabled()) {
-      throw new InvalidElementStateException(message);
+  private void assertElementNotStale() {
+    assertPageNotLeft();
+
+    // Check if current document contains this element
+    if (Boolean.valueOf(callMethod("locator.parentNode == undefined"))) {
+      throw disconnected();
     }
   }
 
-  private void assertElementNotStale() {
-    // Has the user navigated away from the page this object belongs to?
-    if (!parent.objectIds.contains(objectId)) {
+  /**
+   * Checks whether the user has navigated away from the page this element belongs to, without
+   * asking Opera.
+   */
+  private void assertPageNotLeft() {
+    NavigationEpochs epochs = parent.getScopeServices().getNavigationEpochs();
+    if (!parent.getElementTracker().isTracked(objectId)
+        || epochs.getRuntimeEpoch(runtimeId) != runtimeEpoch) {
       throw new StaleElementReferenceException(
           "Element appears to be stale.  Did you navigate away from the page that contained it?  "
           + "And is the current window focussed the same as the one holding this element?");
     }
+  }
 
-    // Check if current document contains this element
-    if (Boolean.valueOf(callMethod("locator.parentNode == undefined"))) {
-      throw new StaleElementReferenceException(
-          "The element seems to be disconnected from the DOM.  This means that the user cannot "
-          + "interact with it.");
-    }
+  private StaleElementReferenceException disconnected() {
+    return new StaleElementReferenceException(
+        "The element seems to be disconnected from the DOM.  This means that the user cannot "
+        + "interact with it.");
   }
 
 }
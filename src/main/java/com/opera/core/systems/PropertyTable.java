@@ -0,0 +1,194 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.support.Color;
+
+import java.util.List;
+
+/**
+ * Properties of a list of elements, extracted in a single evaluation by {@link
+ * OperaDriver#extract(java.util.List, ElementProperty...)}, with a row per element and a column
+ * per property.
+ *
+ * The page sends the table as a single string, which holds the number of rows followed by a
+ * semicolon and the cells row by row.  A cell is either a dash if it has no value, or the length
+ * of the value followed by a colon and the value itself.  The string is decoded in one pass, into
+ * one string per cell.  If the rows were to be found by an invalid locator, the string is the
+ * letter E followed by the error message instead.
+ */
+public class PropertyTable {
+
+  private final List<ElementProperty> columns;
+  private final int rows;
+  private final String[] cells;
+
+  private PropertyTable(List<ElementProperty> columns, int rows, String[] cells) {
+    this.columns = columns;
+    this.rows = rows;
+    this.cells = cells;
+  }
+
+  /**
+   * @param rows    an expression evaluating to a list of elements, the rows of the table, or to a
+   *                string holding an error message
+   * @param columns the properties to extract
+   * @param atoms   the atoms to extract them with
+   * @return a script returning the encoded table, whose variables are kept in a function of their
+   *         own so that they do not end up in the page
+   */
+  static String compile(String rows, List<ElementProperty> columns, InstalledAtoms atoms) {
+    StringBuilder script = new StringBuilder()
+        .append("return (function(rows) {\n")
+        .append("if (typeof rows == 'string') { return 'E' + rows; }\n")
+        .append("var readers = [");
+    for (int i = 0; i < columns.size(); i++) {
+      script.append(i == 0 ? "\n  " : ",\n  ").append(columns.get(i).reader(atoms));
+    }
+    return script
+        .append("];\n")
+        .append("var out = [rows.length, ';'];\n")
+        .append("for (var i = 0; i < rows.length; i++) {\n")
+        .append("  for (var j = 0; j < readers.length; j++) {\n")
+        .append("    var v = rows[i] ? readers[j](rows[i]) : null;\n")
+        .append("    if (v == null) { out.push('-'); }\n")
+        .append("    else { v = String(v); out.push(v.length, ':', v); }\n")
+        .append("  }\n")
+        .append("}\n")
+        .append("return out.join('');\n")
+        .append("})(").append(rows).append(");")
+        .toString();
+  }
+
+  /**
+   * @param encoded the table as sent by the page
+   * @param columns the properties extracted
+   * @return the decoded table
+   * @throws InvalidSelectorException if the rows were to be found by an invalid locator
+   */
+  static PropertyTable decode(String encoded, List<ElementProperty> columns) {
+    if (encoded.startsWith("E")) {
+      throw new InvalidSelectorException(encoded.substring(1));
+    }
+
+    try {
+      int position = encoded.indexOf(';');
+      int rows = Integer.parseInt(encoded.substring(0, position++));
+      String[] cells = new String[rows * columns.size()];
+
+      for (int i = 0; i < cells.length; i++) {
+        if (encoded.charAt(position) == '-') {
+          position++;
+          continue;
+        }
+
+        int colon = encoded.indexOf(':', position);
+        int end = colon + 1 + Integer.parseInt(encoded.substring(position, colon));
+        cells[i] = encoded.substring(colon + 1, end);
+        position = end;
+      }
+
+      if (position != encoded.length()) {
+        throw new IllegalArgumentException("Trailing data");
+      }
+
+      return new PropertyTable(ImmutableList.copyOf(columns), rows, cells);
+    } catch (RuntimeException e) {
+      throw new WebDriverException("Malformed table of element properties", e);
+    }
+  }
+
+  /**
+   * @return an empty table with the given columns
+   */
+  static PropertyTable empty(List<ElementProperty> columns) {
+    return new PropertyTable(ImmutableList.copyOf(columns), 0, new String[0]);
+  }
+
+  public int getRowCount() {
+    return rows;
+  }
+
+  public List<ElementProperty> getColumns() {
+    return columns;
+  }
+
+  /**
+   * @param row    the index of the element
+   * @param column the index of the property
+   * @return the value of the property, or null if it has none
+   */
+  public String get(int row, int column) {
+    String value = cell(row, column);
+    if (value != null && columns.get(column).isColor() && value.contains("rgb")) {
+      return Color.fromString(value).asRgba();
+    }
+    return value;
+  }
+
+  /**
+   * @param row    the index of the element
+   * @param column the index of an {@link ElementProperty#rect()} property
+   * @return the location of the element, or null if it has none
+   */
+  public Point getLocation(int row, int column) {
+    int[] rect = rect(row, column);
+    return rect == null ? null : new Point(rect[0], rect[1]);
+  }
+
+  /**
+   * @param row    the index of the element
+   * @param column the index of an {@link ElementProperty#rect()} property
+   * @return the size of the element, or null if it has none
+   */
+  public Dimension getSize(int row, int column) {
+    int[] rect = rect(row, column);
+    return rect == null ? null : new Dimension(rect[2], rect[3]);
+  }
+
+  private String cell(int row, int column) {
+    if (row < 0 || row >= rows || column < 0 || column >= columns.size()) {
+      throw new IndexOutOfBoundsException("No cell at row " + row + ", column " + column);
+    }
+    return cells[row * columns.size() + column];
+  }
+
+  private int[] rect(int row, int column) {
+    if (!columns.get(column).isRect()) {
+      throw new IllegalArgumentException("Not a rectangle: " + columns.get(column));
+    }
+
+    String value = cell(row, column);
+    if (value == null) {
+      return null;
+    }
+
+    String[] parts = value.split(",");
+    int[] rect = new int[4];
+    for (int i = 0; i < rect.length; i++) {
+      rect[i] = (int) Math.round(Double.parseDouble(parts[i]));
+    }
+    return rect;
+  }
+
+}
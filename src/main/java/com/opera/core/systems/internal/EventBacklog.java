@@ -0,0 +1,278 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.internal;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds events that nobody has claimed yet, in a queue per event type.  The backlog is bounded both
+ * in size and in age, so that events nobody will ever wait for do not pile up in long sessions:
+ *
+ * <ul> <li>each type holds at most its own capacity, and when it is full the type's {@link
+ * Eviction} policy decides whether the oldest or the new event is dropped,</li> <li>all types
+ * together hold at most the capacity of the backlog, and when it is full the oldest event of any
+ * type is dropped, and</li> <li>events older than the maximum age are dropped.</li> </ul>
+ *
+ * Every dropped event is counted per type.  Events discarded through {@link #clear(Enum)} are not
+ * counted as dropped.
+ *
+ * This class is not thread safe.
+ *
+ * @param <K> the event type
+ * @param <E> the event
+ */
+public class EventBacklog<K extends Enum<K>, E> {
+
+  /**
+   * What to drop when an event arrives for a type that is full.
+   */
+  public enum Eviction {
+    /**
+     * Drops the oldest event of the type to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drops the new event, keeping the ones that arrived first.
+     */
+    DROP_NEWEST
+  }
+
+  private final int capacity;
+  private final long maxAge;
+  private final Ticker ticker;
+  private final List<Deque<Entry<E>>> queues;
+  private final int[] capacities;
+  private final Eviction[] evictions;
+  private final long[] dropped;
+  private int size;
+
+  /**
+   * @param types    the class of the event type
+   * @param capacity the maximum number of events held of all types together
+   * @param maxAge   the maximum age of an event held
+   * @param unit     the unit of <code>maxAge</code>
+   */
+  public EventBacklog(Class<K> types, int capacity, long maxAge, TimeUnit unit) {
+    this(types, capacity, maxAge, unit, Ticker.systemTicker());
+  }
+
+  /**
+   * @param types    the class of the event type
+   * @param capacity the maximum number of events held of all types together
+   * @param maxAge   the maximum age of an event held
+   * @param unit     the unit of <code>maxAge</code>
+   * @param ticker   the time source to age events by
+   */
+  public EventBacklog(Class<K> types, int capacity, long maxAge, TimeUnit unit, Ticker ticker) {
+    int count = types.getEnumConstants().length;
+
+    this.capacity = capacity;
+    this.maxAge = unit.toNanos(maxAge);
+    this.ticker = ticker;
+    queues = Lists.newArrayListWithCapacity(count);
+    capacities = new int[count];
+    evictions = new Eviction[count];
+    dropped = new long[count];
+
+    for (int i = 0; i < count; i++) {
+      queues.add(new ArrayDeque<Entry<E>>());
+      capacities[i] = capacity;
+      evictions[i] = Eviction.DROP_OLDEST;
+    }
+  }
+
+  /**
+   * Sets the number of events held of a type, and what to drop when it is full.  By default every
+   * type may take up the whole backlog, dropping its oldest events.
+   *
+   * @param type     the event type
+   * @param capacity the maximum number of events of the type held
+   * @param eviction what to drop when the type is full
+   */
+  public void setPolicy(K type, int capacity, Eviction eviction) {
+    int i = type.ordinal();
+    capacities[i] = capacity;
+    evictions[i] = eviction;
+
+    while (queues.get(i).size() > capacity) {
+      queues.get(i).removeFirst();
+      drop(i);
+    }
+  }
+
+  /**
+   * Adds an event to the end of the queue of its type.
+   *
+   * @param type  the event type
+   * @param event the event
+   * @return true if the event was added, false if it was dropped straight away
+   */
+  public boolean add(K type, E event) {
+    long now = ticker.read();
+    expire(now);
+
+    int i = type.ordinal();
+    Deque<Entry<E>> queue = queues.get(i);
+
+    if (queue.size() >= capacities[i]) {
+      if (evictions[i] == Eviction.DROP_NEWEST || queue.isEmpty()) {
+        dropped[i]++;
+        return false;
+      }
+      queue.removeFirst();
+      drop(i);
+    }
+
+    if (size >= capacity) {
+      dropOldest();
+    }
+
+    queue.addLast(new Entry<E>(event, now));
+    size++;
+    return true;
+  }
+
+  /**
+   * Removes the first event of a type that matches the predicate.
+   *
+   * @param type      the event type
+   * @param predicate the predicate the event must match
+   * @return the event, or null if there is none
+   */
+  public E take(K type, Predicate<? super E> predicate) {
+    expire(ticker.read());
+
+    Iterator<Entry<E>> iterator = queues.get(type.ordinal()).iterator();
+    while (iterator.hasNext()) {
+      Entry<E> entry = iterator.next();
+      if (predicate.apply(entry.event)) {
+        iterator.remove();
+        size--;
+        return entry.event;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Discards all events of a type, without counting them as dropped.
+   *
+   * @param type the event type
+   */
+  public void clear(K type) {
+    Deque<Entry<E>> queue = queues.get(type.ordinal());
+    size -= queue.size();
+    queue.clear();
+  }
+
+  /**
+   * @param type the event type
+   * @return the number of events of the type held
+   */
+  public int size(K type) {
+    expire(ticker.read());
+    return queues.get(type.ordinal()).size();
+  }
+
+  /**
+   * @return the number of events of all types held
+   */
+  public int size() {
+    expire(ticker.read());
+    return size;
+  }
+
+  /**
+   * @param type the event type
+   * @return the number of events of the type dropped because the backlog was full or because they
+   *         were too old
+   */
+  public long getDropped(K type) {
+    return dropped[type.ordinal()];
+  }
+
+  /**
+   * @return the number of events of all types dropped because the backlog was full or because they
+   *         were too old
+   */
+  public long getDropped() {
+    long total = 0;
+    for (long count : dropped) {
+      total += count;
+    }
+    return total;
+  }
+
+  private void expire(long now) {
+    if (size == 0) {
+      return;
+    }
+
+    // Events are added in order, so the oldest of each type is at the front of its queue
+    for (int i = 0; i < queues.size(); i++) {
+      Deque<Entry<E>> queue = queues.get(i);
+      while (!queue.isEmpty() && now - queue.peekFirst().timestamp > maxAge) {
+        queue.removeFirst();
+        drop(i);
+      }
+    }
+  }
+
+  private void dropOldest() {
+    int oldest = -1;
+    for (int i = 0; i < queues.size(); i++) {
+      Entry<E> head = queues.get(i).peekFirst();
+      if (head != null &&
+          (oldest < 0 || head.timestamp - queues.get(oldest).peekFirst().timestamp < 0)) {
+        oldest = i;
+      }
+    }
+
+    if (oldest >= 0) {
+      queues.get(oldest).removeFirst();
+      drop(oldest);
+    }
+  }
+
+  private void drop(int type) {
+    dropped[type]++;
+    size--;
+  }
+
+  private static class Entry<E> {
+
+    private final E event;
+    private final long timestamp;
+
+    public Entry(E event, long timestamp) {
+      this.event = event;
+      this.timestamp = timestamp;
+    }
+
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a distribution of latencies cheaply enough to be used on the I/O thread.  Samples are
+ * counted in power-of-two buckets of nanoseconds, so percentiles are approximate (within a factor
+ * of two) while the count, mean and maximum are exact.
+ *
+ * Recording is thread safe and lock free.  Reading while samples are being recorded may give a
+ * slightly inconsistent view.
+ */
+public class LatencyRecorder {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Records a single sample.
+   *
+   * @param nanos the latency in nanoseconds, negative values are counted as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    buckets.incrementAndGet(bucketOf(nanos));
+
+    long current;
+    while (nanos > (current = max.get())) {
+      if (max.compareAndSet(current, nanos)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return the number of recorded samples
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the sum of all recorded samples, in nanoseconds
+   */
+  public long getTotal() {
+    return total.get();
+  }
+
+  /**
+   * @return the mean latency in nanoseconds, or 0 if nothing has been recorded
+   */
+  public long getMean() {
+    long samples = getCount();
+    return samples == 0 ? 0 : getTotal() / samples;
+  }
+
+  /**
+   * @return the highest recorded latency in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Estimates the latency below which the given fraction of samples fall.  The result is the upper
+   * bound of the bucket the percentile falls in, capped at the maximum recorded latency.
+   *
+   * @param fraction a value between 0 and 1, e.g. 0.99 for the 99th percentile
+   * @return the estimated latency in nanoseconds, or 0 if nothing has been recorded
+   */
+  public long getPercentile(double fraction) {
+    long samples = getCount();
+    if (samples == 0) {
+      return 0;
+    }
+
+    long threshold = (long) Math.ceil(samples * Math.min(Math.max(fraction, 0), 1));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= threshold) {
+        return Math.min(upperBoundOf(i), getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  /**
+   * Discards all recorded samples.
+   */
+  public void reset() {
+    count.set(0);
+    total.set(0);
+    max.set(0);
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d, mean=%dus, p50=%dus, p99=%dus, max=%dus",
+                         getCount(), micros(getMean()), micros(getPercentile(0.5)),
+                         micros(getPercentile(0.99)), micros(getMax()));
+  }
+
+  /**
+   * Bucket <em>n</em> holds values that need exactly <em>n</em> bits, i.e. 0 goes in bucket 0 and
+   * values in [2^(n-1), 2^n) go in bucket <em>n</em>.
+   */
+  private static int bucketOf(long nanos) {
+    return BUCKETS - Long.numberOfLeadingZeros(nanos);
+  }
+
+  private static long upperBoundOf(int bucket) {
+    return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+}
@@ -63,4 +63,52 @@ public class OperaDefaults {
    */
   public static final int SCRIPT_RETRIES = 5;
 
+  /**
+   * The number of levels of nested arrays and objects to return from a script, counting the
+   * returned object itself.  Objects nested deeper than this are returned as null.
+   */
+  public static final int SCRIPT_RESULT_MAX_DEPTH = 32;
+
+  /**
+   * The number of arrays and objects in total to return from a script.  Objects beyond this are
+   * returned as null.
+   */
+  public static final int SCRIPT_RESULT_MAX_OBJECTS = 10000;
+
+  /**
+   * The number of objects of elements that have been garbage collected to release in Opera at once.
+   * All objects are released regardless when the user navigates.
+   */
+  public static final int ELEMENT_RELEASE_BATCH_SIZE = 100;
+
+  /**
+   * Whether elements keep their tag name once it has been read, rather than reading it again every
+   * time it is asked for.
+   */
+  public static final boolean CACHE_TAG_NAMES = false;
+
+  /**
+   * Whether sessions share a process wide pool of socket monitor threads by default, rather than
+   * running one thread each.
+   */
+  public static final boolean ENABLE_SHARED_SOCKET_MONITOR = false;
+
+  /**
+   * The number of socket monitor threads shared by all sessions when the shared socket monitor is
+   * enabled.
+   */
+  public static final int SHARED_SOCKET_MONITORS = 2;
+
+  /**
+   * Whether sessions send independent startup commands back-to-back by default, rather than
+   * waiting for each response before sending the next command.
+   */
+  public static final boolean ENABLE_PIPELINED_STARTUP = false;
+
+  /**
+   * Whether sessions collect messages sent to Opera's console as browser logs by default, which
+   * has the connection parse every console message.
+   */
+  public static final boolean COLLECT_BROWSER_LOGS = true;
+
 }
\ No newline at end of file
@@ -16,20 +16,24 @@ limitations under the License.
 
 package com.opera.core.systems.internal;
 
-import com.google.common.collect.Lists;
-
 import com.opera.core.systems.common.io.Closeables;
 
 import java.io.IOException;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -42,8 +46,13 @@ public class SocketMonitor {
 
   private final Logger logger = Logger.getLogger(getClass().getName());
   private final ReentrantLock lock = new ReentrantLock();
-  private final List<SelectorChangeRequest> changes = Lists.newLinkedList();
+  private final Queue<SelectorChangeRequest> changes =
+      new ConcurrentLinkedQueue<SelectorChangeRequest>();
+  private final AtomicBoolean selecting = new AtomicBoolean();
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+  private final AtomicLong wakeups = new AtomicLong();
   private Selector selector;
+  private volatile long selectedAt;
 
   private enum Operation {
     ADD, MODIFY, REMOVE
@@ -58,28 +67,23 @@ public class SocketMonitor {
   }
 
   public boolean add(SelectableChannel channel, SocketListener listener, int selectMask) {
-    logger.finest(String.format("Add channel: %s, mask=%s", channel, debugMask(selectMask)));
-
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.ADD, selectMask, listener));
-      selector.wakeup();
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest(String.format("Add channel: %s, mask=%s", channel, debugMask(selectMask)));
     }
-
+    enqueue(new SelectorChangeRequest(channel, Operation.ADD, selectMask, listener));
     return true;
   }
 
   public boolean modify(SelectableChannel channel, SocketListener listener, int selectMask) {
-    logger.finest(String.format("Modify channel: %s, mask=%s", channel, debugMask(selectMask)));
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest(String.format("Modify channel: %s, mask=%s", channel, debugMask(selectMask)));
+    }
 
     if (channel == null) {
       return false;
     }
 
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.MODIFY, selectMask, listener));
-      selector.wakeup();
-    }
-
+    enqueue(new SelectorChangeRequest(channel, Operation.MODIFY, selectMask, listener));
     return true;
   }
 
@@ -90,35 +94,86 @@ public class SocketMonitor {
       return;
     }
 
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.REMOVE));
+    enqueue(new SelectorChangeRequest(channel, Operation.REMOVE));
+  }
+
+  /**
+   * Queues a change to be applied by the polling thread.  The selector is only woken up if it is
+   * blocked in {@link Selector#select(long)}, and only once until it has returned from it.  If the
+   * polling thread is not selecting it will find the change before it blocks again.
+   */
+  private void enqueue(SelectorChangeRequest request) {
+    changes.offer(request);
+
+    if (selecting.get() && wakeupPending.compareAndSet(false, true)) {
+      wakeups.incrementAndGet();
       selector.wakeup();
     }
   }
 
+  /**
+   * Gets the time at which the selector last returned from a select, as given by {@link
+   * System#nanoTime()}.  When called from a listener callback this is the time the readiness of the
+   * listener's channel was detected.
+   *
+   * @return the time of the last selection in nanoseconds
+   */
+  public long getSelectedAt() {
+    return selectedAt;
+  }
+
+  /**
+   * @return the number of times the selector has been woken up to apply changes
+   */
+  public long getWakeups() {
+    return wakeups.get();
+  }
+
   public void stop() {
     Closeables.closeQuietly(selector);
   }
 
+  /**
+   * @return true if the monitor has not been stopped
+   */
+  public boolean isOpen() {
+    return selector != null && selector.isOpen();
+  }
+
   public boolean poll() {
     return poll(Long.MAX_VALUE);
   }
 
   public boolean poll(long ms) {
-    boolean ok = pollSockets(ms);
-    applyChanges();
-    return ok;
+    try {
+      boolean ok = pollSockets(ms);
+      applyChanges();
+      return ok;
+    } catch (ClosedSelectorException e) {
+      return false;
+    }
   }
 
   private boolean pollSockets(long ms) {
-    if (selector.keys().isEmpty()) {
-      return true;
-    }
-
+    // Block even when no channels are registered yet: registering one wakes the selector up, and
+    // returning straight away would have the polling thread spin until then.
     lock.lock();
     try {
       synchronized (selector) {
-        selector.select(ms);
+        // Announce that we are about to block before checking for changes, so that a change queued
+        // concurrently is either seen here or triggers a wakeup
+        selecting.set(true);
+        try {
+          if (changes.isEmpty()) {
+            selector.select(ms);
+          } else {
+            selector.selectNow();
+          }
+        } finally {
+          selecting.set(false);
+          wakeupPending.set(false);
+          selectedAt = System.nanoTime();
+        }
       }
     } catch (IOException e) {
       e.printStackTrace();
@@ -129,7 +184,13 @@ public class SocketMonitor {
 
     lock.lock();
     try {
-      for (SelectionKey key : selector.selectedKeys()) {
+      // Remove keys as they are handled, otherwise the selector keeps them in the selected set and
+      // we would call back listeners whose channels are not ready on every subsequent poll
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+
         try {
           processSelectionKey(key);
         } catch (AsynchronousCloseException e) {
@@ -141,6 +202,10 @@ public class SocketMonitor {
           //SelectableChannel channel = key.channel();
           e.printStackTrace();
           key.cancel();
+        } catch (RuntimeException e) {
+          // A failing listener must not take the channels of other listeners down with it
+          logger.log(Level.WARNING, "Listener failed, dropping channel " + key.channel(), e);
+          key.cancel();
         }
       }
     } finally {
@@ -151,40 +216,34 @@ public class SocketMonitor {
   }
 
   private void applyChanges() {
-    synchronized (changes) {
-      if (changes.isEmpty()) {
-        return;
-      }
-
-      for (SelectorChangeRequest request : changes) {
-        try {
-          request.dump();
-          switch (request.operation) {
-            case ADD:
-              try {
-                request.channel.register(selector, request.mask, request.listener);
-              } catch (ClosedChannelException e) {
-                e.printStackTrace();
-              }
-              break;
-            case MODIFY:
-              SelectionKey key = request.channel.keyFor(selector);
-              if (key != null) {
-                key.interestOps(request.mask);
-              }
-              break;
-            case REMOVE:
-              SelectionKey selKey = request.channel.keyFor(selector);
-              if (selKey != null) {
-                selKey.cancel();
-              }
-              break;
-          }
-        } catch (CancelledKeyException e) {
-          logger.finest("Key was cancelled - ignoring...");
+    SelectorChangeRequest request;
+    while ((request = changes.poll()) != null) {
+      try {
+        request.dump();
+        switch (request.operation) {
+          case ADD:
+            try {
+              request.channel.register(selector, request.mask, request.listener);
+            } catch (ClosedChannelException e) {
+              e.printStackTrace();
+            }
+            break;
+          case MODIFY:
+            SelectionKey key = request.channel.keyFor(selector);
+            if (key != null && key.interestOps() != request.mask) {
+              key.interestOps(request.mask);
+            }
+            break;
+          case REMOVE:
+            SelectionKey selKey = request.channel.keyFor(selector);
+            if (selKey != null) {
+              selKey.cancel();
+            }
+            break;
         }
+      } catch (CancelledKeyException e) {
+        logger.finest("Key was cancelled - ignoring...");
       }
-      changes.clear();
     }
   }
 
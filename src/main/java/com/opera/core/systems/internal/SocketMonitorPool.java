@@ -0,0 +1,183 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.internal;
+
+import com.opera.core.systems.scope.internal.OperaIntervals;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed number of {@link SocketMonitor}s, each polled by its own daemon thread, that are shared
+ * by all sessions in the process.  Rather than running one selector thread per driver instance,
+ * sessions {@link #acquire()} one of the monitors in a round-robin fashion and register their
+ * channels with it, so that the number of threads stays constant as the number of sessions grows.
+ *
+ * The threads are started when the first session acquires a monitor and stopped again when the
+ * last session has released its monitor.
+ */
+public class SocketMonitorPool {
+
+  private static SocketMonitorPool shared;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final int size;
+  private SocketMonitor[] monitors;
+  private PollerThread[] threads;
+  private int next = 0;
+  private int sessions = 0;
+
+  public SocketMonitorPool(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Pool must have at least one monitor, got " + size);
+    }
+    this.size = size;
+  }
+
+  /**
+   * Returns the pool shared by all sessions in this process, sized by {@link
+   * OperaDefaults#SHARED_SOCKET_MONITORS}.
+   *
+   * @return the process wide pool
+   */
+  public static synchronized SocketMonitorPool shared() {
+    if (shared == null) {
+      shared = new SocketMonitorPool(OperaDefaults.SHARED_SOCKET_MONITORS);
+    }
+    return shared;
+  }
+
+  /**
+   * Assigns a monitor to a new session, starting the pool's threads if they are not running.
+   * Every call must be paired with a call to {@link #release(SocketMonitor)}.
+   *
+   * @return the monitor the session should register its channels with
+   */
+  public synchronized SocketMonitor acquire() {
+    if (sessions == 0) {
+      start();
+    }
+
+    sessions++;
+    SocketMonitor monitor = monitors[next];
+    next = (next + 1) % size;
+    return monitor;
+  }
+
+  /**
+   * Releases a monitor previously obtained through {@link #acquire()}.  The session must already
+   * have removed its channels from the monitor.  When no sessions remain the threads are stopped.
+   *
+   * @param monitor the monitor to release
+   */
+  public synchronized void release(SocketMonitor monitor) {
+    if (sessions == 0) {
+      return;
+    }
+
+    if (--sessions == 0) {
+      stop();
+    }
+  }
+
+  /**
+   * @return the number of sessions currently using the pool
+   */
+  public synchronized int getSessions() {
+    return sessions;
+  }
+
+  /**
+   * @return the number of monitors, and threads, in the pool
+   */
+  public int getSize() {
+    return size;
+  }
+
+  private void start() {
+    logger.finer(String.format("Starting %d shared socket monitor(s)", size));
+
+    monitors = new SocketMonitor[size];
+    threads = new PollerThread[size];
+    next = 0;
+
+    for (int i = 0; i < size; i++) {
+      monitors[i] = new SocketMonitor();
+      threads[i] = new PollerThread(monitors[i], i);
+      threads[i].start();
+    }
+  }
+
+  private void stop() {
+    logger.finer("Stopping shared socket monitors");
+
+    for (PollerThread thread : threads) {
+      thread.shutdown();
+    }
+
+    for (PollerThread thread : threads) {
+      if (thread == Thread.currentThread()) {
+        continue;
+      }
+
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    monitors = null;
+    threads = null;
+  }
+
+  private static class PollerThread extends Thread {
+
+    private static final Logger logger = Logger.getLogger(PollerThread.class.getName());
+
+    private final SocketMonitor monitor;
+    private volatile boolean cancelled;
+
+    public PollerThread(SocketMonitor monitor, int index) {
+      this.monitor = monitor;
+      setName("stp-shared-" + index);
+      setDaemon(true);
+    }
+
+    public void shutdown() {
+      cancelled = true;
+      monitor.stop();
+    }
+
+    @Override
+    public void run() {
+      while (!cancelled) {
+        try {
+          if (!monitor.poll(OperaIntervals.RESPONSE_TIMEOUT.getMs()) && !monitor.isOpen()) {
+            break;
+          }
+        } catch (RuntimeException e) {
+          // The thread is shared by all sessions, so keep polling for the others
+          logger.log(Level.WARNING, "Unexpected error while polling sockets", e);
+        }
+      }
+    }
+
+  }
+
+}
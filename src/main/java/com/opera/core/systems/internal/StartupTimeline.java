@@ -0,0 +1,106 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.internal;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of starting a session takes, e.g. waiting for the handshake, enabling
+ * services and loading preferences.  Phases run one after the other: starting a phase ends the
+ * previous one.
+ */
+public class StartupTimeline {
+
+  private final Map<String, Long> durations = Maps.newLinkedHashMap();
+  private String phase;
+  private long phaseStartedAt;
+
+  /**
+   * Ends the current phase, if any, and starts timing the given phase.  If a phase of the same name
+   * has run before, the time spent in it is added to the earlier time.
+   *
+   * @param name the name of the phase
+   */
+  public synchronized void start(String name) {
+    long now = System.nanoTime();
+    end(now);
+    phase = name;
+    phaseStartedAt = now;
+  }
+
+  /**
+   * Ends the current phase.
+   */
+  public synchronized void finish() {
+    end(System.nanoTime());
+  }
+
+  /**
+   * @return the duration of each finished phase in nanoseconds, in the order they were started
+   */
+  public synchronized Map<String, Long> getDurations() {
+    return ImmutableMap.copyOf(durations);
+  }
+
+  /**
+   * @param name the name of the phase
+   * @return the duration of the phase in nanoseconds, or 0 if it has not finished
+   */
+  public synchronized long getDuration(String name) {
+    Long duration = durations.get(name);
+    return duration == null ? 0 : duration;
+  }
+
+  /**
+   * @return the sum of the durations of all finished phases, in nanoseconds
+   */
+  public synchronized long getTotal() {
+    long total = 0;
+    for (long duration : durations.values()) {
+      total += duration;
+    }
+    return total;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Long> entry : durations.entrySet()) {
+      builder.append(entry.getKey()).append('=').append(millis(entry.getValue())).append("ms, ");
+    }
+    return builder.append("total=").append(millis(getTotal())).append("ms").toString();
+  }
+
+  private void end(long now) {
+    if (phase == null) {
+      return;
+    }
+
+    Long previous = durations.get(phase);
+    durations.put(phase, (previous == null ? 0 : previous) + now - phaseStartedAt);
+    phase = null;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.model;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.Point;
+
+/**
+ * Holds the state of an element as read in a single round trip before interacting with it: whether
+ * it is still attached to the document, displayed and enabled, what it is, and where it is in the
+ * viewport.
+ *
+ * The state is sent by the page as a comma separated string, which is either empty if the element
+ * is stale, or holds the following fields in order: displayed, enabled and read only as 1 or 0, the
+ * tag name, the x and y position in the viewport, the width and height, and the value of the type
+ * property.
+ */
+public class ElementState {
+
+  private static final int FIELDS = 9;
+
+  private final boolean stale;
+  private final boolean displayed;
+  private final boolean enabled;
+  private final boolean readOnly;
+  private final String tagName;
+  private final Point location;
+  private final Dimension size;
+  private final String type;
+
+  private ElementState(boolean stale, boolean displayed, boolean enabled, boolean readOnly,
+                       String tagName, Point location, Dimension size, String type) {
+    this.stale = stale;
+    this.displayed = displayed;
+    this.enabled = enabled;
+    this.readOnly = readOnly;
+    this.tagName = tagName;
+    this.location = location;
+    this.size = size;
+    this.type = type;
+  }
+
+  /**
+   * Parses the state sent by the page.
+   *
+   * @param state the comma separated state, or an empty string or null if the element is stale
+   * @return the state of the element
+   * @throws IllegalArgumentException if the state is malformed
+   */
+  public static ElementState parse(String state) {
+    if (state == null || state.isEmpty()) {
+      return new ElementState(true, false, false, false, "", new Point(0, 0), new Dimension(0, 0),
+                              "");
+    }
+
+    // The type comes last, so that it may contain anything
+    String[] fields = state.split(",", FIELDS);
+    if (fields.length != FIELDS) {
+      throw new IllegalArgumentException("Malformed element state: " + state);
+    }
+
+    try {
+      return new ElementState(false,
+                              fields[0].equals("1"),
+                              fields[1].equals("1"),
+                              fields[2].equals("1"),
+                              fields[3],
+                              new Point(Integer.parseInt(fields[4]), Integer.parseInt(fields[5])),
+                              new Dimension(Integer.parseInt(fields[6]),
+                                            Integer.parseInt(fields[7])),
+                              fields[8]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Malformed element state: " + state, e);
+    }
+  }
+
+  /**
+   * @return true if the element is no longer attached to the document
+   */
+  public boolean isStale() {
+    return stale;
+  }
+
+  public boolean isDisplayed() {
+    return displayed;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * @return the tag name of the element, in upper case for HTML elements
+   */
+  public String getTagName() {
+    return tagName;
+  }
+
+  /**
+   * @return the position of the element's top left corner in the viewport of the top level window
+   */
+  public Point getLocation() {
+    return location;
+  }
+
+  public Dimension getSize() {
+    return size;
+  }
+
+  /**
+   * @return the value of the element's type property, or an empty string if it has none
+   */
+  public String getType() {
+    return type;
+  }
+
+}
@@ -143,7 +143,9 @@ public abstract class AbstractEcmascriptService extends AbstractService
   }
 
   protected void processArgument(Object object, StringBuilder builder, List<WebElement> elements) {
-    if (object instanceof WebElement) {
+    if (object == null) {
+      builder.append("null");
+    } else if (object instanceof WebElement) {
       elements.add((WebElement) object);
       builder.append(String.valueOf(object));
     } else if (object instanceof String) {
@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems.scope;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage.Builder;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -107,6 +109,29 @@ public abstract class AbstractService implements Service {
     return services.executeMessage(message, builder, timeout);
   }
 
+  public ListenableFuture<Response> executeMessageAsync(Message message) {
+    return executeMessageAsync(message, null);
+  }
+
+  public ListenableFuture<Response> executeMessageAsync(Message message, Builder<?> builder) {
+    return executeMessageAsync(message, builder,
+                               OperaIntervals.DEFAULT_RESPONSE_TIMEOUT.getMs());
+  }
+
+  /**
+   * Sends a message to this service without waiting for the response, so that the service can have
+   * several messages in flight at once.
+   *
+   * @see ScopeServices#executeMessageAsync(Message, Builder, long)
+   */
+  public ListenableFuture<Response> executeMessageAsync(Message message, Builder<?> builder,
+                                                        long timeout) {
+    if (services.getConnection() == null) {
+      return Futures.immediateFuture(Response.getDefaultInstance());
+    }
+    return services.executeMessageAsync(message, builder, timeout);
+  }
+
   /**
    * Query a collection JXPath and return a pointer.
    *
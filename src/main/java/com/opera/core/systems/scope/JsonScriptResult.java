@@ -0,0 +1,120 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Has scripts return their result serialized as JSON, so that arrays and objects of plain data
+ * come back with the result of the script rather than having to be examined object by object.
+ *
+ * A script is wrapped so that strings, arrays and objects are returned JSON encoded.  Elements in
+ * arrays and objects are replaced by placeholders holding their index in a side array of elements,
+ * and if there are any, the side array is returned instead, with the JSON as its {@link
+ * #JSON_PROPERTY} property.  Anything else is returned as it is, e.g. numbers, elements and node
+ * lists, but also arrays and objects that cannot be serialized because they have cycles or hold
+ * windows or other nodes.
+ */
+public class JsonScriptResult {
+
+  /**
+   * The property of the side array of elements holding the JSON.
+   */
+  public static final String JSON_PROPERTY = "__webdriver_json";
+
+  /**
+   * The key of the placeholder object standing in for an element in the JSON.
+   */
+  public static final String ELEMENT_KEY = "__webdriver_element";
+
+  private static final Gson gson = new Gson();
+
+  private JsonScriptResult() {
+  }
+
+  /**
+   * Wraps an expression so that its value is serialized as described above.
+   *
+   * @param expression the expression evaluating to the result of the script
+   * @return a script returning the serialized result
+   */
+  public static String wrap(String expression) {
+    return "return (function(v){"
+           + "if(typeof v=='string')return JSON.stringify(v);"
+           + "if(v==null||typeof v!='object')return v;"
+           + "var t=Object.prototype.toString.call(v);"
+           + "if(t!='[object Array]'&&t!='[object Object]')return v;"
+           + "var els=[],json;"
+           + "try{"
+           + "json=JSON.stringify(v,function(k,x){"
+           + "if(x&&typeof x=='object'){"
+           + "if(x.nodeType==1){els.push(x);return {" + ELEMENT_KEY + ":els.length-1};}"
+           + "if(x.nodeType||x.window===x)throw new TypeError('Not serializable');"
+           + "}"
+           + "return x;"
+           + "});"
+           + "}catch(e){return v;}"
+           + "if(!els.length)return json;"
+           + "els." + JSON_PROPERTY + "=json;"
+           + "return els;"
+           + "})(" + expression + ");";
+  }
+
+  /**
+   * Decodes a serialized result.
+   *
+   * @param json     the JSON returned by the script
+   * @param elements the elements the placeholders refer to, in order
+   * @return the decoded result, with lists for arrays and maps for objects
+   * @throws JsonParseException if the JSON is malformed
+   * @throws IndexOutOfBoundsException if a placeholder refers to an element that is not given
+   */
+  public static Object decode(String json, List<?> elements) {
+    return replacePlaceholders(gson.fromJson(json, Object.class), elements);
+  }
+
+  private static Object replacePlaceholders(Object value, List<?> elements) {
+    if (value instanceof List) {
+      List<Object> list = Lists.newArrayList();
+      for (Object item : (List<?>) value) {
+        list.add(replacePlaceholders(item, elements));
+      }
+      return list;
+    } else if (value instanceof Map) {
+      Map<?, ?> object = (Map<?, ?>) value;
+      Object index = object.get(ELEMENT_KEY);
+      if (object.size() == 1 && index instanceof Number) {
+        return elements.get(((Number) index).intValue());
+      }
+
+      Map<String, Object> map = Maps.newHashMap();
+      for (Map.Entry<?, ?> entry : object.entrySet()) {
+        map.put(String.valueOf(entry.getKey()), replacePlaceholders(entry.getValue(), elements));
+      }
+      return map;
+    }
+
+    return value;
+  }
+
+}
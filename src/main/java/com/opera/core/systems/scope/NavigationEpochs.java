@@ -0,0 +1,141 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.google.common.collect.Maps;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of navigation in Opera as generation numbers, so that anything cached about a page
+ * can be checked for staleness without a round trip to Opera.
+ *
+ * Every window and every ECMAScript runtime has an epoch.  The epoch of a window changes whenever a
+ * document in it starts or stops, changes its ready state or finishes loading; the epoch of a
+ * runtime changes only when the runtime goes away.  A cache records the epoch along with what it
+ * caches, and the entry is current as long as the epoch is the same.  All epochs are drawn from a
+ * single counter, so they only ever increase, even for windows and runtimes that are forgotten and
+ * seen again.
+ *
+ * The epochs are fed by the window manager's window loaded and closed events, the ECMAScript
+ * services' runtime started, runtime stopped and ready state changed events and core's idle
+ * event.  Reading an epoch is thread safe and lock free.
+ */
+public class NavigationEpochs {
+
+  private final AtomicLong epoch = new AtomicLong();
+  private final ConcurrentMap<Integer, Long> windows = Maps.newConcurrentMap();
+  private final ConcurrentMap<Integer, Long> runtimes = Maps.newConcurrentMap();
+  private final ConcurrentMap<Integer, Integer> runtimeWindows = Maps.newConcurrentMap();
+  private volatile long settledEpoch;
+
+  /**
+   * @return the current epoch of the browser, which changes on every navigation in any window
+   */
+  public long getEpoch() {
+    return epoch.get();
+  }
+
+  /**
+   * @param windowId the ID of the window
+   * @return the current epoch of the window
+   */
+  public long getWindowEpoch(int windowId) {
+    return epochOf(windows, windowId);
+  }
+
+  /**
+   * @param runtimeId the ID of the ECMAScript runtime
+   * @return the current epoch of the runtime
+   */
+  public long getRuntimeEpoch(int runtimeId) {
+    return epochOf(runtimes, runtimeId);
+  }
+
+  /**
+   * Whether Opera has gone idle since the last navigation in any window, i.e. whether pages have
+   * finished loading and running their scripts.
+   *
+   * @return true if no navigation has happened since Opera last went idle
+   */
+  public boolean isSettled() {
+    return settledEpoch == epoch.get();
+  }
+
+  public void onWindowLoaded(int windowId) {
+    advance(windowId);
+  }
+
+  public void onWindowClosed(int windowId) {
+    advance(windowId);
+    windows.remove(windowId);
+  }
+
+  public void onRuntimeStarted(int runtimeId, int windowId) {
+    runtimeWindows.put(runtimeId, windowId);
+    runtimes.put(runtimeId, advance(windowId));
+  }
+
+  public void onRuntimeStopped(int runtimeId) {
+    Integer windowId = runtimeWindows.remove(runtimeId);
+    if (windowId != null) {
+      advance(windowId);
+    } else {
+      epoch.incrementAndGet();
+    }
+
+    // The runtime gets a new epoch if it is asked for again, which no cache will have recorded
+    runtimes.remove(runtimeId);
+  }
+
+  public void onReadyStateChanged(int runtimeId) {
+    Integer windowId = runtimeWindows.get(runtimeId);
+    if (windowId != null) {
+      advance(windowId);
+    } else {
+      epoch.incrementAndGet();
+    }
+  }
+
+  public void onOperaIdle() {
+    settledEpoch = epoch.get();
+  }
+
+  private long advance(int windowId) {
+    long next = epoch.incrementAndGet();
+    windows.put(windowId, next);
+    return next;
+  }
+
+  /**
+   * Gets the epoch of a window or runtime, giving it the current epoch if it has none yet, e.g.
+   * because it was there before we connected.
+   */
+  private long epochOf(ConcurrentMap<Integer, Long> epochs, int id) {
+    Long current = epochs.get(id);
+    if (current == null) {
+      Long assigned = epoch.get();
+      current = epochs.putIfAbsent(id, assigned);
+      if (current == null) {
+        current = assigned;
+      }
+    }
+    return current;
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.opera.core.systems.internal.OperaDefaults;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Turns an ECMAScript object returned from a script into Java lists, maps and elements, examining
+ * the object graph breadth first so that all objects at the same depth are examined in a single
+ * command to Opera.  An array of 500 objects thus costs two round trips rather than 501.
+ *
+ * Arrays become lists, elements become whatever {@link #createElement(int)} makes of them and
+ * other objects become maps.  An object that has already been seen, because it is referred to more
+ * than once or the graph has cycles, is null the second time it is seen, as are objects deeper or
+ * further into the graph than the limits allow.
+ */
+public abstract class ObjectExaminer {
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final int maxDepth;
+  private final int maxObjects;
+
+  public ObjectExaminer() {
+    this(OperaDefaults.SCRIPT_RESULT_MAX_DEPTH, OperaDefaults.SCRIPT_RESULT_MAX_OBJECTS);
+  }
+
+  /**
+   * @param maxDepth   the number of levels of the object graph to examine, the root being the first
+   * @param maxObjects the number of objects to examine in total
+   */
+  public ObjectExaminer(int maxDepth, int maxObjects) {
+    this.maxDepth = maxDepth;
+    this.maxObjects = maxObjects;
+  }
+
+  /**
+   * Examines the given objects in a single command to Opera.
+   *
+   * @param objectIds the IDs of the objects to examine
+   * @return the examined objects, in any order
+   */
+  protected abstract List<ExaminedObject> examine(List<Integer> objectIds);
+
+  /**
+   * @param objectId the ID of an object whose class name ends with "Element"
+   * @return the element to return in place of the object
+   */
+  protected abstract Object createElement(int objectId);
+
+  /**
+   * Resolves an object and all objects reachable from it.
+   *
+   * @param objectId the ID of the object to resolve
+   * @return a list, map or element, or null if the object could not be examined
+   */
+  public Object resolve(int objectId) {
+    Map<Integer, Object> resolved = Maps.newHashMap();
+    List<Reference> references = Lists.newArrayList();
+    Set<Integer> seen = Sets.newHashSet(objectId);
+    List<Integer> level = Lists.<Integer>newArrayList(objectId);
+    int examined = 0;
+    boolean truncated = false;
+
+    for (int depth = 1; !level.isEmpty(); depth++) {
+      examined += level.size();
+      List<Integer> next = Lists.newArrayList();
+
+      for (ExaminedObject object : examine(level)) {
+        if (object.className.endsWith("Element")) {
+          resolved.put(object.objectId, createElement(object.objectId));
+          continue;
+        }
+
+        boolean isArray = object.className.equals("Array");
+        List<Object> list = Lists.newArrayList();
+        Map<String, Object> map = Maps.newHashMap();
+
+        for (int i = 0; i < object.names.size(); i++) {
+          String name = object.names.get(i);
+          Object value = object.values.get(i);
+          Integer child = object.references.get(i);
+
+          if (child == null && value instanceof Number && name.equals("length")) {
+            // Tells us about the length of the object, which we know anyway
+            continue;
+          }
+
+          if (child != null && seen.add(child)) {
+            if (depth < maxDepth && examined + next.size() < maxObjects) {
+              next.add(child);
+              references.add(isArray ? new Reference(list, list.size(), child)
+                                     : new Reference(map, name, child));
+            } else {
+              truncated = true;
+            }
+          }
+
+          if (isArray) {
+            list.add(value);
+          } else {
+            map.put(name, value);
+          }
+        }
+
+        resolved.put(object.objectId, isArray ? list : map);
+      }
+
+      level = next;
+    }
+
+    if (truncated) {
+      logger.warning(String.format(
+          "Script result is deeper than %d levels or larger than %d objects, omitting the rest",
+          maxDepth, maxObjects));
+    }
+
+    for (Reference reference : references) {
+      reference.set(resolved.get(reference.objectId));
+    }
+
+    return resolved.get(objectId);
+  }
+
+  /**
+   * An object as examined by Opera: its class name and its properties in order, each of which is
+   * either a value or a reference to another object.
+   */
+  public static class ExaminedObject {
+
+    private final int objectId;
+    private final String className;
+    private final List<String> names = Lists.newArrayList();
+    private final List<Object> values = Lists.newArrayList();
+    private final List<Integer> references = Lists.newArrayList();
+
+    public ExaminedObject(int objectId, String className) {
+      this.objectId = objectId;
+      this.className = className;
+    }
+
+    public void addValue(String name, Object value) {
+      names.add(name);
+      values.add(value);
+      references.add(null);
+    }
+
+    public void addReference(String name, int objectId) {
+      names.add(name);
+      values.add(null);
+      references.add(objectId);
+    }
+
+  }
+
+  /**
+   * A place in a list or map that is to hold an object once it has been resolved.
+   */
+  private static class Reference {
+
+    private final List<Object> list;
+    private final int index;
+    private final Map<String, Object> map;
+    private final String name;
+    private final int objectId;
+
+    public Reference(List<Object> list, int index, int objectId) {
+      this.list = list;
+      this.index = index;
+      this.map = null;
+      this.name = null;
+      this.objectId = objectId;
+    }
+
+    public Reference(Map<String, Object> map, String name, int objectId) {
+      this.list = null;
+      this.index = 0;
+      this.map = map;
+      this.name = name;
+      this.objectId = objectId;
+    }
+
+    public void set(Object value) {
+      if (list != null) {
+        list.set(index, value);
+      } else {
+        map.put(name, value);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the ECMAScript runtimes known to a service, indexed by runtime ID and by window and frame
+ * path, so that the runtime of a frame can be looked up without listing all runtimes in Opera.
+ *
+ * The registry is kept current from runtime and window events.  When the events cannot be trusted
+ * to have told the whole story, e.g. when a runtime is heard of that is not in the registry or when
+ * the registry has been cleared, it is marked as out of sync, and the service should then list the
+ * runtimes in Opera again and {@link #replaceAll(Iterable)} what it knows.  A lookup that misses is
+ * also a sign that it should do so.
+ *
+ * The registry is generic over the runtime messages of the different ECMAScript services, which
+ * tell it how to read a runtime's ID, window and frame path.  Lookups are thread safe and lock
+ * free.
+ *
+ * @param <R> the type of runtime kept
+ */
+public abstract class RuntimeRegistry<R> {
+
+  private final ConcurrentMap<Integer, R> runtimes = Maps.newConcurrentMap();
+  private final ConcurrentMap<Integer, ConcurrentMap<String, R>> windows =
+      Maps.newConcurrentMap();
+  private volatile boolean outOfSync = true;
+
+  protected abstract int getRuntimeId(R runtime);
+
+  protected abstract int getWindowId(R runtime);
+
+  protected abstract String getFramePath(R runtime);
+
+  /**
+   * @param runtimeId the ID of the runtime
+   * @return the runtime, or null if it is not known
+   */
+  public R get(int runtimeId) {
+    return runtimes.get(runtimeId);
+  }
+
+  /**
+   * @param windowId  the ID of the window holding the runtime
+   * @param framePath the path of the frame holding the runtime, e.g. "_top"
+   * @return the runtime, or null if it is not known
+   */
+  public R get(int windowId, String framePath) {
+    ConcurrentMap<String, R> frames = windows.get(windowId);
+    return frames == null ? null : frames.get(framePath);
+  }
+
+  /**
+   * @param windowId the ID of the window
+   * @return the known runtimes of all frames in the window
+   */
+  public List<R> getWindow(int windowId) {
+    ConcurrentMap<String, R> frames = windows.get(windowId);
+    return frames == null ? ImmutableList.<R>of() : ImmutableList.copyOf(frames.values());
+  }
+
+  public boolean isEmpty() {
+    return runtimes.isEmpty();
+  }
+
+  /**
+   * Whether the registry may be missing runtimes or hold runtimes that have gone away, so that it
+   * should be replaced with the runtimes listed by Opera before it is relied upon.
+   *
+   * @return true if the registry is out of sync with Opera
+   */
+  public boolean isOutOfSync() {
+    return outOfSync;
+  }
+
+  /**
+   * Marks the registry as out of sync with Opera, keeping what it knows until it is replaced.
+   */
+  public synchronized void invalidate() {
+    outOfSync = true;
+  }
+
+  /**
+   * Adds a runtime, replacing any other runtime in the same frame of the same window.
+   *
+   * @param runtime the runtime to add
+   */
+  public synchronized void put(R runtime) {
+    int runtimeId = getRuntimeId(runtime);
+
+    R previous = runtimes.put(runtimeId, runtime);
+    if (previous != null) {
+      unindex(previous);
+    }
+
+    int windowId = getWindowId(runtime);
+    ConcurrentMap<String, R> frames = windows.get(windowId);
+    if (frames == null) {
+      frames = Maps.newConcurrentMap();
+      windows.put(windowId, frames);
+    }
+
+    R replaced = frames.put(getFramePath(runtime), runtime);
+    if (replaced != null && getRuntimeId(replaced) != runtimeId) {
+      runtimes.remove(getRuntimeId(replaced));
+    }
+  }
+
+  /**
+   * @param runtimeId the ID of the runtime that went away
+   */
+  public synchronized void remove(int runtimeId) {
+    R previous = runtimes.remove(runtimeId);
+    if (previous != null) {
+      unindex(previous);
+    }
+  }
+
+  /**
+   * Removes all runtimes in a window.
+   *
+   * @param windowId the ID of the window
+   */
+  public synchronized void removeWindow(int windowId) {
+    ConcurrentMap<String, R> frames = windows.remove(windowId);
+    if (frames != null) {
+      for (R runtime : frames.values()) {
+        runtimes.remove(getRuntimeId(runtime));
+      }
+    }
+  }
+
+  /**
+   * Forgets all runtimes and marks the registry as out of sync.
+   */
+  public synchronized void clear() {
+    runtimes.clear();
+    windows.clear();
+    outOfSync = true;
+  }
+
+  /**
+   * Replaces all runtimes with the ones listed by Opera, bringing the registry back in sync.
+   *
+   * @param listed all runtimes in Opera
+   */
+  public synchronized void replaceAll(Iterable<R> listed) {
+    runtimes.clear();
+    windows.clear();
+    for (R runtime : listed) {
+      put(runtime);
+    }
+    outOfSync = false;
+  }
+
+  private void unindex(R runtime) {
+    int windowId = getWindowId(runtime);
+    ConcurrentMap<String, R> frames = windows.get(windowId);
+    if (frames == null) {
+      return;
+    }
+
+    String framePath = getFramePath(runtime);
+    R indexed = frames.get(framePath);
+    if (indexed != null && getRuntimeId(indexed) == getRuntimeId(runtime)) {
+      frames.remove(framePath);
+      if (frames.isEmpty()) {
+        windows.remove(windowId);
+      }
+    }
+  }
+
+}
@@ -16,15 +16,23 @@ limitations under the License.
 
 package com.opera.core.systems.scope;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.AbstractMessage.Builder;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import com.opera.core.systems.internal.ImplicitWait;
 import com.opera.core.systems.internal.OperaDefaults;
+import com.opera.core.systems.internal.SocketMonitor;
+import com.opera.core.systems.internal.SocketMonitorPool;
+import com.opera.core.systems.internal.StartupTimeline;
 import com.opera.core.systems.internal.VersionUtil;
 import com.opera.core.systems.runner.OperaRunner;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
@@ -54,19 +62,28 @@ import com.opera.core.systems.scope.services.Selftest;
 import com.opera.core.systems.scope.services.WindowManager;
 import com.opera.core.systems.scope.services.desktop.DesktopUtils;
 import com.opera.core.systems.scope.services.desktop.DesktopWindowManager;
+import com.opera.core.systems.scope.stp.EventDispatcher;
+import com.opera.core.systems.scope.stp.EventSubscriptions;
 import com.opera.core.systems.scope.stp.StpConnection;
+import com.opera.core.systems.scope.stp.StpConnectionListener;
 import com.opera.core.systems.scope.stp.StpThread;
 import com.opera.core.systems.scope.stp.services.MockEcmascriptDebugger;
 import com.opera.core.systems.scope.stp.services.desktop.ScopeSystemInputManager;
 import com.opera.core.systems.scope.stp.services.messages.ScopeMessage;
+import com.opera.core.systems.scope.stp.services.messages.desktop.DesktopWindowManagerMessage;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -75,11 +92,31 @@ import java.util.logging.Logger;
  */
 public class ScopeServices implements ConnectionHandler {
 
+  /**
+   * Services whose initialization neither depends on nor is depended on by other services, and
+   * which may therefore be initialized concurrently when startup is pipelined.  The remaining
+   * services are initialized in order: the window manager needs core, and the ECMAScript services
+   * need the window manager.
+   */
+  private static final Set<ScopeService> INDEPENDENT_SERVICES =
+      EnumSet.of(ScopeService.EXEC, ScopeService.CONSOLE_LOGGER, ScopeService.COOKIE_MANAGER,
+                 ScopeService.PREFS, ScopeService.SELFTEST);
+
   private final Logger logger = Logger.getLogger(getClass().getName());
   private final SortedSet<ScopeService> requiredServices = Sets.newTreeSet();
   private final StpThread stpThread;
+  private final SocketMonitorPool socketMonitorPool;
+  private final StpConnectionListener connectionListener;
+  private SocketMonitor socketMonitor;
   private final AtomicInteger tagCounter;
-  private final WaitState waitState = new WaitState();
+  private final WaitState waitState = new WaitState(new Supplier<EventDispatcher>() {
+    public EventDispatcher get() {
+      StpConnection current = connection;
+      return current == null ? null : current.getEventDispatcher();
+    }
+  });
+  private final StartupTimeline startupTimeline = new StartupTimeline();
+  private final NavigationEpochs navigationEpochs = new NavigationEpochs();
 
   private Core core;
   private Debugger debugger;
@@ -92,8 +129,11 @@ public class ScopeServices implements ConnectionHandler {
   private ScopeSystemInputManager systemInputManager;
   private CookieManager cookieManager;
   private Selftest selftest;
-  private StpConnection connection = null;
+  private volatile StpConnection connection = null;
   private boolean shutdown = false;
+  private boolean pipelinedStartup = OperaDefaults.ENABLE_PIPELINED_STARTUP;
+  private final Object waitSubscriptionLock = new Object();
+  private boolean waitSubscribed = false;
   private Map<ScopeService, Service> services = ImmutableMap.of();
   private Map<ScopeService, String> availableServices = ImmutableMap.of();
 
@@ -108,20 +148,64 @@ public class ScopeServices implements ConnectionHandler {
    */
   public ScopeServices(final SortedSet<ScopeService> requiredServices, final int port,
                        final boolean manualConnect) throws IOException {
+    this(requiredServices, port, manualConnect, false);
+  }
+
+  /**
+   * Creates the Scope server on specified address and port, as well as enabling the required Scope
+   * services.
+   *
+   * @param requiredServices    set of required services
+   * @param port                the port on which to start the Scope server
+   * @param manualConnect       whether to output ready message with port number when starting
+   * @param sharedSocketMonitor whether to use the process wide {@link SocketMonitorPool} instead of
+   *                            a dedicated {@link StpThread}
+   * @throws IOException if an I/O error occurs
+   */
+  public ScopeServices(final SortedSet<ScopeService> requiredServices, final int port,
+                       final boolean manualConnect, final boolean sharedSocketMonitor)
+      throws IOException {
     this.requiredServices.addAll(requiredServices);
     tagCounter = new AtomicInteger();
-    stpThread = new StpThread(port, this, new ScopeEventHandler(this), manualConnect);
+
+    if (sharedSocketMonitor) {
+      socketMonitorPool = SocketMonitorPool.shared();
+      socketMonitor = socketMonitorPool.acquire();
+      try {
+        connectionListener = new StpConnectionListener(port, this, new ScopeEventHandler(this),
+                                                       manualConnect, socketMonitor);
+      } catch (IOException e) {
+        socketMonitorPool.release(socketMonitor);
+        throw e;
+      }
+      stpThread = null;
+    } else {
+      socketMonitorPool = null;
+      socketMonitor = null;
+      connectionListener = null;
+      stpThread = new StpThread(port, this, new ScopeEventHandler(this), manualConnect);
+    }
   }
 
   /**
    * Gets the supported services from Opera and calls methods to enable the ones we requested.
    */
   public void init() {
+    startupTimeline.start("handshake");
     waitForHandshake();
 
-    availableServices = buildAvailableServices(getHostInfo());
-
-    connect();
+    startupTimeline.start("connect");
+    if (pipelinedStartup) {
+      // Neither command depends on the other, so there is no need to wait in between
+      ListenableFuture<Response> hostInfo = executeMessageAsync(ScopeMessage.HOST_INFO, null);
+      ListenableFuture<Response> connect =
+          executeMessageAsync(ScopeMessage.CONNECT, buildClientInfo());
+      availableServices = buildAvailableServices(parseHostInfo(waitForResponse(hostInfo)));
+      waitForResponse(connect);
+    } else {
+      availableServices = buildAvailableServices(getHostInfo());
+      connect();
+    }
 
     // We always need a debugger, and it should never be included in the set of required services
     if (OperaDefaults.ENABLE_DEBUGGER &&
@@ -137,8 +221,44 @@ public class ScopeServices implements ConnectionHandler {
     }
 
     services = createServices(requiredServices);
+
+    startupTimeline.start("enable-services");
     enableServices(services.values());
-    initializeServices(services.values());
+
+    startupTimeline.start("initialize-services");
+    initializeServices(services);
+    startupTimeline.finish();
+
+    logger.fine("Startup timeline: " + startupTimeline);
+  }
+
+  /**
+   * Specifies whether {@link #init()} sends independent commands back-to-back and waits for their
+   * responses together, rather than waiting for the response to each command before sending the
+   * next.  This must be set before calling {@link #init()}.
+   *
+   * @param enabled true to pipeline startup commands
+   */
+  public void setPipelinedStartup(boolean enabled) {
+    pipelinedStartup = enabled;
+  }
+
+  /**
+   * @return the navigation epochs of the browser, with which caches of page state can tell whether
+   *         they are stale
+   */
+  public NavigationEpochs getNavigationEpochs() {
+    return navigationEpochs;
+  }
+
+  /**
+   * Gets the timeline of the phases of starting the session, i.e. waiting for the handshake,
+   * connecting, enabling services and initializing them.  Callers may add phases of their own.
+   *
+   * @return the startup timeline
+   */
+  public StartupTimeline getStartupTimeline() {
+    return startupTimeline;
   }
 
   private Map<ScopeService, String> buildAvailableServices(HostInfo info) {
@@ -176,12 +296,53 @@ public class ScopeServices implements ConnectionHandler {
     return actualServices;
   }
 
-  private void initializeServices(final Collection<Service> services) {
-    for (Service service : services) {
-      logger.finer(String.format("Initializing service %s (version %s)",
-                                 service.getServiceName(), service.getServiceVersion()));
-      service.init();
+  private void initializeServices(final Map<ScopeService, Service> services) {
+    if (!pipelinedStartup) {
+      for (Service service : services.values()) {
+        initializeService(service);
+      }
+      return;
     }
+
+    ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("scope-init-%d").setDaemon(true).build());
+    List<Future<?>> pending = Lists.newArrayList();
+
+    try {
+      for (Map.Entry<ScopeService, Service> entry : services.entrySet()) {
+        if (INDEPENDENT_SERVICES.contains(entry.getKey())) {
+          final Service service = entry.getValue();
+          pending.add(executor.submit(new Runnable() {
+            public void run() {
+              initializeService(service);
+            }
+          }));
+        }
+      }
+
+      for (Map.Entry<ScopeService, Service> entry : services.entrySet()) {
+        if (!INDEPENDENT_SERVICES.contains(entry.getKey())) {
+          initializeService(entry.getValue());
+        }
+      }
+
+      for (Future<?> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScopeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void initializeService(Service service) {
+    logger.finer(String.format("Initializing service %s (version %s)",
+                               service.getServiceName(), service.getServiceVersion()));
+    service.init();
   }
 
   public boolean isConnected() {
@@ -191,16 +352,26 @@ public class ScopeServices implements ConnectionHandler {
   public void shutdown() {
     shutdown = true;  // don't unlock this
 
+    if (connection != null) {
+      logger.fine("Response latency: " + connection.getResponseLatency());
+    }
+
     if (isConnected()) {
       connection.close();
     }
 
-    stpThread.shutdown();
+    if (stpThread != null) {
+      stpThread.shutdown();
 
-    try {
-      stpThread.join();
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
+      try {
+        stpThread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    } else if (socketMonitor != null) {
+      connectionListener.stop();
+      socketMonitorPool.release(socketMonitor);
+      socketMonitor = null;
     }
   }
 
@@ -221,8 +392,10 @@ public class ScopeServices implements ConnectionHandler {
    * @return information about the connected browser's debug capabilities
    */
   private HostInfo getHostInfo() {
-    Response response = executeMessage(ScopeMessage.HOST_INFO, null);
+    return parseHostInfo(executeMessage(ScopeMessage.HOST_INFO, null));
+  }
 
+  private HostInfo parseHostInfo(Response response) {
     try {
       return HostInfo.parseFrom(response.getPayload());
     } catch (InvalidProtocolBufferException e) {
@@ -234,11 +407,30 @@ public class ScopeServices implements ConnectionHandler {
    * Connects and resets any settings and services that the client used earlier.
    */
   private void connect() {
-    ClientInfo.Builder info = ClientInfo.newBuilder().setFormat("protobuf");
-    executeMessage(ScopeMessage.CONNECT, info);
+    executeMessage(ScopeMessage.CONNECT, buildClientInfo());
+  }
+
+  private ClientInfo.Builder buildClientInfo() {
+    return ClientInfo.newBuilder().setFormat("protobuf");
   }
 
   public void enableServices(Collection<Service> services) {
+    if (pipelinedStartup) {
+      List<ListenableFuture<Response>> responses = Lists.newArrayList();
+      for (Service service : services) {
+        responses.add(executeMessageAsync(ScopeMessage.ENABLE, buildServiceSelection(service)));
+      }
+
+      for (ListenableFuture<Response> response : responses) {
+        try {
+          ServiceResult.parseFrom(waitForResponse(response).getPayload());
+        } catch (InvalidProtocolBufferException e) {
+          throw new ScopeException("Could not parse the message", e);
+        }
+      }
+      return;
+    }
+
     for (com.opera.core.systems.scope.Service service : services) {
       try {
         enable(service);
@@ -250,10 +442,14 @@ public class ScopeServices implements ConnectionHandler {
 
   private ServiceResult enable(com.opera.core.systems.scope.Service service)
       throws InvalidProtocolBufferException {
+    Response response = executeMessage(ScopeMessage.ENABLE, buildServiceSelection(service));
+    return ServiceResult.parseFrom(response.getPayload());
+  }
+
+  private ServiceSelection.Builder buildServiceSelection(Service service) {
     ServiceSelection.Builder selection = ServiceSelection.newBuilder();
     selection.setName(service.getServiceName());
-    Response response = executeMessage(ScopeMessage.ENABLE, selection);
-    return ServiceResult.parseFrom(response.getPayload());
+    return selection;
   }
 
   public void quitOpera(final OperaRunner runner) throws IOException {
@@ -445,15 +641,36 @@ public class ScopeServices implements ConnectionHandler {
   }
 
   public void waitStart() {
+    synchronized (waitSubscriptionLock) {
+      if (!waitSubscribed) {
+        subscribe(DesktopWindowManager.SERVICE_NAME, DesktopWindowManagerMessage.WINDOW_UPDATED);
+        waitSubscribed = true;
+      }
+    }
     waitState.setWaitEvents(true);
   }
 
+  /**
+   * Drops the subscription to window updates made by {@link #waitStart()}, once the event waited
+   * for has arrived or the wait has timed out.
+   */
+  private void releaseWaitSubscription() {
+    synchronized (waitSubscriptionLock) {
+      if (waitSubscribed) {
+        unsubscribe(DesktopWindowManager.SERVICE_NAME, DesktopWindowManagerMessage.WINDOW_UPDATED);
+        waitSubscribed = false;
+      }
+    }
+  }
+
   public int waitForDesktopWindowLoaded(String windowName, long timeout) {
     waitState.setWaitEvents(false);
     try {
       return waitState.waitForDesktopWindowLoaded(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -463,15 +680,22 @@ public class ScopeServices implements ConnectionHandler {
       return waitState.waitForDesktopWindowShown(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
   public int waitForDesktopWindowUpdated(String windowName, long timeout) {
+    // Window updates are too frequent to be handled unless somebody is waiting for them
+    subscribe(DesktopWindowManager.SERVICE_NAME, DesktopWindowManagerMessage.WINDOW_UPDATED);
     waitState.setWaitEvents(false);
     try {
       return waitState.waitForDesktopWindowUpdated(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      unsubscribe(DesktopWindowManager.SERVICE_NAME, DesktopWindowManagerMessage.WINDOW_UPDATED);
+      releaseWaitSubscription();
     }
   }
 
@@ -481,6 +705,8 @@ public class ScopeServices implements ConnectionHandler {
       return waitState.waitForDesktopWindowActivated(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -490,6 +716,8 @@ public class ScopeServices implements ConnectionHandler {
       return waitState.waitForDesktopWindowClosed(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -499,6 +727,8 @@ public class ScopeServices implements ConnectionHandler {
       return waitState.waitForWindowPageChanged(windowName, timeout);
     } catch (Exception e) {
       return 0;
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -508,6 +738,8 @@ public class ScopeServices implements ConnectionHandler {
       return waitState.waitForQuickMenuShown(menuName, timeout);
     } catch (Exception e) {
       return "";
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -518,6 +750,8 @@ public class ScopeServices implements ConnectionHandler {
 
     } catch (Exception e) {
       return "";
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -528,6 +762,8 @@ public class ScopeServices implements ConnectionHandler {
 
     } catch (Exception e) {
       return "";
+    } finally {
+      releaseWaitSubscription();
     }
   }
 
@@ -549,15 +785,48 @@ public class ScopeServices implements ConnectionHandler {
     }
   }
 
-  private Response waitForResponse(int tag, long timeout) {
+  private Response waitForResponse(ListenableFuture<Response> response) {
+    return waitForResponse(response, OperaIntervals.RESPONSE_TIMEOUT.getMs());
+  }
+
+  private Response waitForResponse(ListenableFuture<Response> response, long timeout) {
     try {
-      return waitState.waitFor(tag, timeout);
+      return waitState.waitFor(response, timeout);
     } catch (CommunicationException e) {
       shutdown();
       throw e;
     }
   }
 
+  /**
+   * Registers interest in an event, so that it is parsed and handled rather than dropped as soon as
+   * it arrives.  Subscriptions are counted, so every call must be matched by a call to {@link
+   * #unsubscribe(String, Message)}.  Does nothing if Opera is not connected.
+   *
+   * @param service the name of the service sending the event
+   * @param event   the event
+   * @see EventSubscriptions
+   */
+  public void subscribe(String service, Message event) {
+    StpConnection current = connection;
+    if (current != null) {
+      current.getEventSubscriptions().subscribe(service, event.getID());
+    }
+  }
+
+  /**
+   * Withdraws interest in an event registered through {@link #subscribe(String, Message)}.
+   *
+   * @param service the name of the service sending the event
+   * @param event   the event
+   */
+  public void unsubscribe(String service, Message event) {
+    StpConnection current = connection;
+    if (current != null) {
+      current.getEventSubscriptions().unsubscribe(service, event.getID());
+    }
+  }
+
   /**
    * Close the connection and cleanup the channel
    */
@@ -584,15 +853,55 @@ public class ScopeServices implements ConnectionHandler {
   }
 
   public Response executeMessage(Message message, Builder<?> builder, long timeout) {
+    return waitForResponse(executeMessageAsync(message, builder, timeout), timeout);
+  }
+
+  /**
+   * Sends a message without waiting for the response.
+   *
+   * @see #executeMessageAsync(Message, Builder, long)
+   */
+  public ListenableFuture<Response> executeMessageAsync(Message message, Builder<?> builder) {
+    return executeMessageAsync(message, builder, OperaIntervals.RESPONSE_TIMEOUT.getMs());
+  }
+
+  /**
+   * Sends a message without waiting for the response, so that many independent messages can be in
+   * flight at the same time.
+   *
+   * The returned future completes with the response, with null if Opera responded with an error,
+   * or with a {@link com.opera.core.systems.scope.exceptions.ResponseNotReceivedException} if no
+   * response has arrived within the timeout.  Cancelling the future stops waiting for the response,
+   * which is dropped when it arrives.
+   *
+   * @param message the message to send
+   * @param builder the payload of the message, or null if it has none
+   * @param timeout time in milliseconds to wait for the response
+   * @return the future response to the message
+   */
+  public ListenableFuture<Response> executeMessageAsync(Message message, Builder<?> builder,
+                                                        long timeout) {
     ByteString payload = (builder != null) ? builder.build().toByteString() : ByteString.EMPTY;
     Command.Builder messageBuilder = buildMessage(message, payload);
     int tag = messageBuilder.getTag();
-    connection.send(messageBuilder.build());
-    return waitForResponse(tag, timeout);
+
+    ListenableFuture<Response> response = waitState.expectResponse(tag, timeout);
+
+    try {
+      connection.send(messageBuilder.build());
+    } catch (RuntimeException e) {
+      waitState.cancelResponse(tag);
+      throw e;
+    }
+
+    return response;
   }
 
   public void startStpThread() {
-    stpThread.start();
+    // When using the shared socket monitor, the pool's threads are already running
+    if (stpThread != null) {
+      stpThread.start();
+    }
   }
 
   public void onRequest(int windowId) {
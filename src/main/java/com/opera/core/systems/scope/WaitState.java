@@ -16,9 +16,19 @@ limitations under the License.
 
 package com.opera.core.systems.scope;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.opera.core.systems.internal.EventBacklog;
+import com.opera.core.systems.internal.EventBacklog.Eviction;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
 import com.opera.core.systems.scope.exceptions.ScopeException;
@@ -27,655 +37,659 @@ import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuID;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuItemID;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
-
-import java.util.LinkedList;
+import com.opera.core.systems.scope.stp.EventDispatcher;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
- * This class handles a queue of events to be handled from multiple threads.  One thread can wait
- * for events to happen while other threads can post these events by calling the on{Event}
- * handlers.
+ * This class handles events to be waited for from multiple threads.  One thread can wait for events
+ * to happen while other threads can post these events by calling the on{Event} handlers.
+ *
+ * A thread waiting for an event registers a waiter for the type of event it wants, together with
+ * the window ID or name it expects.  An event is handed to the first waiter of its type that it
+ * matches, and only that waiter is woken up.  Events nobody is waiting for yet are kept in a
+ * backlog, so that a waiter registering shortly after its event arrived still finds it.  The
+ * backlog holds at most {@link #MAILBOX_CAPACITY} events per type and {@link #BACKLOG_CAPACITY}
+ * events in all, for at most {@link #BACKLOG_MAX_AGE} milliseconds.  Sending a command discards the
+ * events that cannot be expected in reply to it; see {@link #expectResponse(int)}.  Events are
+ * handled off the thread receiving them, so an event received before the command was sent may
+ * only be posted after it; such events are told apart by the sequence numbers the connection's
+ * {@link EventDispatcher} gives them.
+ *
+ * Responses to commands do not go through the backlog.  Each command's tag is registered through
+ * {@link #expectResponse(int)} before the command is sent, and the response completes the future
+ * for that tag directly, so that any number of threads can wait for their own responses without
+ * waking each other up.
  */
 public class WaitState {
 
+  /**
+   * The maximum number of unclaimed events kept per event type.  When a type is full, its oldest
+   * event is dropped.
+   */
+  public static final int MAILBOX_CAPACITY = 64;
+
+  /**
+   * The maximum number of unclaimed events kept of all types together.  When the backlog is full,
+   * the oldest event of any type is dropped.
+   */
+  public static final int BACKLOG_CAPACITY = 256;
+
+  /**
+   * The time in milliseconds an unclaimed event is kept for.
+   */
+  public static final long BACKLOG_MAX_AGE = TimeUnit.MINUTES.toMillis(1);
+
+  private static final ScheduledExecutorService deadlines =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("scope-deadlines").setDaemon(true).build());
+
   private final Logger logger = Logger.getLogger(getClass().getName());
 
   private boolean connected;
+  private RuntimeException failure;
   private boolean waitEvents;
 
   /**
-   * Whether we should keep a note of any idle events received.
+   * Whether we should keep hold of any idle events received.
    *
    * This is used when we perform an action where we want to wait for an idle event, such as
    * clicking. First one has to wait for the "click" response, but in the mean time there may be an
-   * idle event which would be missed.  The number of missed idle events is stored in
-   * capturedIdleEvents.
+   * idle event which would be missed.  While capturing, idle events stay in the backlog when
+   * commands are sent, so that waitForOperaIdle() finds them.
    */
   private boolean captureIdleEvents = false;
 
+  private final Object lock = new Object();
+
+  enum EventType {
+    HANDSHAKE,
+    WINDOW_LOADED,
+    WINDOW_CLOSED,
+    REQUEST_FIRED,
+    OPERA_IDLE,
+    DESKTOP_WINDOW_SHOWN,
+    DESKTOP_WINDOW_UPDATED,
+    DESKTOP_WINDOW_ACTIVATED,
+    DESKTOP_WINDOW_CLOSED,
+    DESKTOP_WINDOW_LOADED,
+    DESKTOP_WINDOW_PAGE_CHANGED,
+    QUICK_MENU_SHOWN,
+    QUICK_MENU_CLOSED,
+    QUICK_MENU_ITEM_PRESSED,
+    SELFTEST_DONE;
+
+    /**
+     * @return true if events of this type are kept while wait events are enabled, i.e. between
+     *         {@link #setWaitEvents(boolean)} being enabled and waiting for the event
+     */
+    public boolean isEventToWaitFor() {
+      switch (this) {
+        case DESKTOP_WINDOW_ACTIVATED:
+        case DESKTOP_WINDOW_CLOSED:
+        case DESKTOP_WINDOW_UPDATED:
+        case DESKTOP_WINDOW_SHOWN:
+        case DESKTOP_WINDOW_LOADED:
+        case DESKTOP_WINDOW_PAGE_CHANGED:
+        case QUICK_MENU_SHOWN:
+        case QUICK_MENU_CLOSED:
+        case QUICK_MENU_ITEM_PRESSED:
+        case SELFTEST_DONE:
+          return true;
+      }
+      return false;
+    }
+  }
+
   /**
-   * Stores the number of Idle events seen while captureIdleEvent is enabled.
-   *
-   * See the explanation for captureIdleEvent.
+   * An event, with the window ID or name waiters match it against.
    */
-  private int capturedIdleEvents = 0;
+  private static class EventItem {
 
-  private final Object lock = new Object();
-
-  private enum WaitResult {
-    RESPONSE,                        // Got a response
-    ERROR,                           // Got an error response
-    EXCEPTION,                       // An exception occurred (STP connection is not alive)
-    DISCONNECTED,                    // STP connection is disconnected
-    HANDSHAKE,                       // STP Handshake
-    EVENT_WINDOW_ACTIVATED,          // active window changed
-    EVENT_WINDOW_LOADED,             // finished loaded
-    EVENT_WINDOW_CLOSED,             // window closed
-    EVENT_OPERA_IDLE,                // opera is now idle
-    EVENT_DESKTOP_WINDOW_SHOWN,      // desktop window has shown and should be visible
-    EVENT_DESKTOP_WINDOW_CLOSED,     // desktop window closed
-    EVENT_DESKTOP_WINDOW_ACTIVATED,  // desktop window activated
-    EVENT_DESKTOP_WINDOW_UPDATED,    // desktop window updated
-    EVENT_DESKTOP_WINDOW_LOADED,
-    EVENT_REQUEST_FIRED,             // sent when a http request is fired
-    EVENT_QUICK_MENU_SHOWN,          // Quick menu shown
-    EVENT_QUICK_MENU_CLOSED,         // Quick menu was closed
-    EVENT_QUICK_MENU_ITEM_PRESSED,   // Quick menu item was pressed
-    EVENT_SELFTEST_DONE,             // ScopeSelftest service finishes testing
-    EVENT_DESKTOP_WINDOW_PAGE_CHANGED /* new Page shown in a dialog/window */
-  }
-
-  private static class ResultItem {
-
-    private static final Logger logger = Logger.getLogger(ResultItem.class.getName());
-
-    private int data;
-    private final WaitResult waitResult;
-    private Exception exception;
-    private Response response;
-    private boolean seen;
-    private long remainingIdleTimeout;
+    private final EventType type;
+    private final int id;
+    private final String name;
     private DesktopWindowInfo desktopWindowInfo;
     private QuickMenuInfo quickMenuInfo;
     private QuickMenuID quickMenuId;
-    private QuickMenuItemID quickMenuItemID;
+    private QuickMenuItemID quickMenuItemId;
 
-    public ResultItem(Exception ex) {
-      waitResult = WaitResult.EXCEPTION;
-      exception = ex;
-      logger.finest(String.format("EVENT: %s, exception: %s", waitResult, exception));
+    public EventItem(EventType type) {
+      this(type, 0, null);
     }
 
-    public ResultItem(WaitResult result) {
-      this.waitResult = result;
-      logger.finest("EVENT: " + result.toString());
+    public EventItem(EventType type, int id) {
+      this(type, id, null);
     }
 
-    /**
-     * TODO: Explain
-     *
-     * Response events:
-     *
-     * BINARY_EXIT    with exit code WINDOW_LOADED  with windowID ERROR          with tag ID
-     */
-    public ResultItem(WaitResult result, int data) {
-      this.waitResult = result;
-      this.data = data;
-      logger.finest("EVENT: " + result.toString() + ", data=" + data);
+    public EventItem(EventType type, DesktopWindowInfo info) {
+      this(type, info.getWindowID(), info.getName());
+      desktopWindowInfo = info;
     }
 
-    public ResultItem(WaitResult result, DesktopWindowInfo info) {
-      this.waitResult = result;
-      this.desktopWindowInfo = info;
-      logger.finest("EVENT: " + result.toString() + ", desktop window=" + info.getWindowID());
+    public EventItem(EventType type, QuickMenuInfo info) {
+      this(type, 0, info.getMenuId().getMenuName());
+      quickMenuInfo = info;
     }
 
-    public ResultItem(WaitResult result, QuickMenuInfo info) {
-      this.waitResult = result;
-      this.quickMenuInfo = info; // TODO FIXME
-      logger
-          .finest("EVENT: " + result.toString() + ", quick_menu=" + info.getMenuId().getMenuName());
+    public EventItem(EventType type, QuickMenuID id) {
+      this(type, 0, id.getMenuName());
+      quickMenuId = id;
     }
 
-    public ResultItem(WaitResult result, QuickMenuID id) {
-      this.waitResult = result;
-      this.quickMenuId = id;
+    public EventItem(EventType type, QuickMenuItemID id) {
+      this(type, 0, id.getMenuText());
+      quickMenuItemId = id;
+    }
 
-      logger.finest("EVENT: " + result.toString() + ", quick_menu=" + id.getMenuName());
+    private EventItem(EventType type, int id, String name) {
+      this.type = type;
+      this.id = id;
+      this.name = name;
     }
 
-    public ResultItem(WaitResult result, QuickMenuItemID info) {
-      this.waitResult = result;
-      this.quickMenuItemID = info; // TODO FIXME
-      logger.finest("EVENT: " + result.toString() + ", quick_menu_item=" + info.getMenuText());
+    @Override
+    public String toString() {
+      return type + (name == null ? ", id=" + id : ", name=" + name);
     }
 
+  }
 
-    public ResultItem(Response response, int tag) {
-      this.response = response;
-      this.data = tag;
-      waitResult = WaitResult.RESPONSE;
-      logger.finest("EVENT: " + waitResult.toString() + ", data=" + data);
-    }
+  /**
+   * A thread waiting for an event of a given type.  Events carrying a name, such as desktop window
+   * and menu events, are matched by name, where an empty name matches any event.  Other events are
+   * matched by window ID.
+   */
+  private static class Waiter implements Predicate<EventItem> {
+
+    private final EventType type;
+    private final int id;
+    private final String name;
+    private final CountDownLatch signal = new CountDownLatch(1);
+    private EventItem event;
+    private RuntimeException failure;
 
-    public ResultItem() {
-      waitResult = WaitResult.EVENT_SELFTEST_DONE;
+    public Waiter(EventType type, int id, String name) {
+      this.type = type;
+      this.id = id;
+      this.name = name;
     }
 
-    public boolean isEventToWaitFor() {
-      switch (waitResult) {
-        case EVENT_DESKTOP_WINDOW_ACTIVATED:
-        case EVENT_DESKTOP_WINDOW_CLOSED:
-        case EVENT_DESKTOP_WINDOW_UPDATED:
-        case EVENT_DESKTOP_WINDOW_SHOWN:
-        case EVENT_DESKTOP_WINDOW_LOADED:
-        case EVENT_QUICK_MENU_SHOWN:
-        case EVENT_QUICK_MENU_CLOSED:
-        case EVENT_QUICK_MENU_ITEM_PRESSED:
-        case EVENT_SELFTEST_DONE:
-        case EVENT_DESKTOP_WINDOW_PAGE_CHANGED:
-          return true;
+    public boolean apply(EventItem event) {
+      if (event.name == null) {
+        return event.id == id;
       }
-      return false;
+      return name == null || name.length() == 0 || name.equals(event.name);
     }
 
-    public boolean wasSeen() {
-      return seen;
+    public void complete(EventItem event) {
+      this.event = event;
+      signal.countDown();
     }
 
-    public Exception getException() {
-      return exception;
+    public void fail(RuntimeException e) {
+      failure = e;
+      signal.countDown();
     }
 
   }
 
-  // TODO(andreastt): Replace with BlockingQueue, this is a very expensive call
-  private final LinkedList<ResultItem> events = Lists.newLinkedList();
+  private final Map<EventType, List<Waiter>> waiters = Maps.newEnumMap(EventType.class);
 
-  enum ResponseType {
-    HANDSHAKE,
-    RESPONSE,
-    WINDOW_LOADED,
-    REQUEST_FIRED,
-    OPERA_IDLE,
-    DESKTOP_WINDOW_SHOWN,
-    DESKTOP_WINDOW_UPDATED,
-    DESKTOP_WINDOW_ACTIVATED,
-    DESKTOP_WINDOW_CLOSED,
-    DESKTOP_WINDOW_LOADED,
-    QUICK_MENU_SHOWN,
-    QUICK_MENU_CLOSED,
-    QUICK_MENU_ITEM_PRESSED,
-    SELFTEST_DONE,
-    DESKTOP_WINDOW_PAGE_CHANGED
-  }
+  /**
+   * The sequence number of the last event received before events of each type were last
+   * discarded.  Events up to it are stale, even if they are only posted afterwards.
+   */
+  private final Map<EventType, Long> staleUpTo = Maps.newEnumMap(EventType.class);
+  private final Supplier<EventDispatcher> dispatcher;
+  private final EventBacklog<EventType, EventItem> backlog =
+      new EventBacklog<EventType, EventItem>(EventType.class, BACKLOG_CAPACITY, BACKLOG_MAX_AGE,
+                                             TimeUnit.MILLISECONDS);
+
+  /**
+   * The futures of commands waiting for a response, by tag.  A future is removed as soon as it
+   * completes, whether by a response, an error, a lost connection or the waiter giving up, so
+   * responses arriving after their waiter timed out are dropped rather than kept around.
+   */
+  private final ConcurrentMap<Integer, SettableFuture<Response>> responses =
+      Maps.newConcurrentMap();
+  private final AtomicLong droppedResponses = new AtomicLong();
 
   public WaitState() {
+    this(Suppliers.<EventDispatcher>ofInstance(null));
+  }
+
+  /**
+   * @param dispatcher supplies the event dispatcher of the current connection, if any, which
+   *                   numbers the events as they are received
+   */
+  public WaitState(Supplier<EventDispatcher> dispatcher) {
+    this.dispatcher = dispatcher;
     connected = true;
     waitEvents = false;
+
+    for (EventType type : EventType.values()) {
+      waiters.put(type, Lists.<Waiter>newLinkedList());
+      staleUpTo.put(type, -1L);
+      backlog.setPolicy(type, MAILBOX_CAPACITY, Eviction.DROP_OLDEST);
+    }
+
+    // Waiting for these only needs to know that one arrived
+    backlog.setPolicy(EventType.HANDSHAKE, 1, Eviction.DROP_NEWEST);
+    backlog.setPolicy(EventType.OPERA_IDLE, 1, Eviction.DROP_NEWEST);
   }
 
   public void setWaitEvents(boolean waitEvents) {
-    this.waitEvents = waitEvents;
+    synchronized (lock) {
+      this.waitEvents = waitEvents;
+    }
   }
 
-  private void internalWait(long timeout) {
-    try {
+  /**
+   * Registers the tag of a command about to be sent.  The returned future is completed with the
+   * response to the command, with null if Opera responded with an error, or exceptionally if the
+   * connection is lost.  Cancelling the future forgets the tag.
+   *
+   * Events received before the command was sent are discarded, as they cannot be caused by it,
+   * unless idle events are being captured or wait events are enabled.  This includes events that
+   * were received before, but are only handled after the command was sent.
+   *
+   * @param tag the tag of the command
+   * @return the future response to the command
+   */
+  public ListenableFuture<Response> expectResponse(final int tag) {
+    SettableFuture<Response> future = SettableFuture.create();
+
+    synchronized (lock) {
       if (!connected) {
-        throw new CommunicationException("Waiting aborted - not connected!");
+        future.setException(new CommunicationException("Waiting aborted - not connected!"));
+        return future;
       }
-      lock.wait(timeout);
-    } catch (InterruptedException e) {
-      throw new ScopeException(e);
+      responses.put(tag, future);
+      discardStaleEvents();
     }
+
+    future.addListener(new Runnable() {
+      public void run() {
+        responses.remove(tag);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    return future;
   }
 
-  void onHandshake() {
-    synchronized (lock) {
-      logger.finest("Event: onHandshake");
-      events.add(new ResultItem(WaitResult.HANDSHAKE));
-      lock.notifyAll();
+  /**
+   * Registers the tag of a command about to be sent, like {@link #expectResponse(int)}, and fails
+   * the returned future with a {@link ResponseNotReceivedException} if no response has arrived by
+   * the deadline.
+   *
+   * @param tag     the tag of the command
+   * @param timeout time in milliseconds to wait for the response
+   * @return the future response to the command
+   */
+  public ListenableFuture<Response> expectResponse(final int tag, long timeout) {
+    ListenableFuture<Response> future = expectResponse(tag);
+    if (future.isDone()) {
+      return future;
+    }
+
+    // The deadline only refers to the tag, so that it does not hold on to the response
+    final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+      public void run() {
+        SettableFuture<Response> expired = responses.remove(tag);
+        if (expired != null) {
+          expired.setException(
+              new ResponseNotReceivedException("No response in a timely fashion"));
+        }
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+
+    future.addListener(new Runnable() {
+      public void run() {
+        deadline.cancel(false);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    return future;
+  }
+
+  /**
+   * Stops waiting for the response to a command, e.g. because it could not be sent.
+   *
+   * @param tag the tag of the command
+   */
+  public void cancelResponse(int tag) {
+    SettableFuture<Response> future = responses.remove(tag);
+    if (future != null) {
+      future.cancel(false);
     }
   }
 
-  void onResponse(int tag, Response response) {
-    synchronized (lock) {
-      logger.finest("Event: onResponse for " + tag);
-      events.add(new ResultItem(response, tag));
-      lock.notifyAll();
+  /**
+   * Waits for a response registered through {@link #expectResponse(int)}.  If no response arrives
+   * in time the future is cancelled, and a response arriving later will be dropped.
+   *
+   * @param response the future response
+   * @param timeout  time in milliseconds to wait for the response
+   * @return the response, or null if Opera responded with an error
+   * @throws ResponseNotReceivedException if no response was received in time
+   */
+  public Response waitFor(Future<Response> response, long timeout) {
+    try {
+      return response.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      response.cancel(false);
+      throw new ResponseNotReceivedException("No response in a timely fashion");
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      response.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new ScopeException(e);
     }
   }
 
-  void onError(int tag) {
+  /**
+   * @return the number of commands currently waiting for a response
+   */
+  public int getPendingResponses() {
+    return responses.size();
+  }
+
+  /**
+   * @return the number of responses dropped because nobody was waiting for them any longer
+   */
+  public long getDroppedResponses() {
+    return droppedResponses.get();
+  }
+
+  /**
+   * @return the number of events nobody waited for, dropped because the backlog was full or
+   *         because they were kept for too long
+   */
+  public long getDroppedEvents() {
     synchronized (lock) {
-      logger.finest("Got ERROR for " + tag);
-      events.add(new ResultItem(WaitResult.ERROR, tag));
-      lock.notifyAll();
+      return backlog.getDropped();
     }
   }
 
-  void onException(Exception e) {
-    synchronized (lock) {
-      events.add(new ResultItem(e));
-      connected = false;
-      lock.notifyAll();
+  public void onHandshake() {
+    logger.finest("Event: onHandshake");
+    post(new EventItem(EventType.HANDSHAKE));
+  }
+
+  public void onResponse(int tag, Response response) {
+    logger.finest("Event: onResponse for " + tag);
+    complete(tag, response);
+  }
+
+  public void onError(int tag) {
+    logger.finest("Got ERROR for " + tag);
+    complete(tag, null);
+  }
+
+  private void complete(int tag, Response response) {
+    SettableFuture<Response> future = responses.remove(tag);
+    if (future == null || !future.set(response)) {
+      logger.finer("Dropping response for " + tag + ", nobody is waiting for it");
+      droppedResponses.incrementAndGet();
     }
   }
 
-  void onDisconnected() {
+  public void onException(Exception e) {
+    disconnect(e, e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e));
+  }
+
+  public void onDisconnected() {
+    logger.finest("Event: onDisconnected");
+    CommunicationException e = new CommunicationException("Problem encountered: DISCONNECTED");
+    disconnect(e, e);
+  }
+
+  private void disconnect(Exception cause, RuntimeException e) {
     synchronized (lock) {
-      logger.finest("Event: onDisconnected");
-      events.add(new ResultItem(WaitResult.DISCONNECTED));
       connected = false;
-      lock.notifyAll();
+      failure = e;
+      failResponses(cause);
+
+      for (List<Waiter> waiting : waiters.values()) {
+        for (Waiter waiter : waiting) {
+          waiter.fail(e);
+        }
+        waiting.clear();
+      }
     }
   }
 
-  void onWindowLoaded(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_LOADED, windowId));
-      lock.notifyAll();
+  private void failResponses(Exception e) {
+    for (Integer tag : responses.keySet()) {
+      SettableFuture<Response> future = responses.remove(tag);
+      if (future != null) {
+        future.setException(e);
+      }
     }
   }
 
-  public void onRequest(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onRequest");
-      events.add(new ResultItem(WaitResult.EVENT_REQUEST_FIRED, windowId));
-      lock.notifyAll();
-    }
+  public void onWindowLoaded(int windowId) {
+    logger.finest("Event: onWindowLoaded");
+    post(new EventItem(EventType.WINDOW_LOADED, windowId));
   }
 
-  void onWindowClosed(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_CLOSED, windowId));
-      lock.notifyAll();
-    }
+  public void onRequest(int windowId) {
+    logger.finest("Event: onRequest");
+    post(new EventItem(EventType.REQUEST_FIRED, windowId));
   }
 
-  void onOperaIdle() {
+  public void onWindowClosed(int windowId) {
+    logger.finest("Event: onWindowClosed");
+
     synchronized (lock) {
-      logger.finest("Event: onOperaIdle");
-      events.add(new ResultItem(WaitResult.EVENT_OPERA_IDLE, 0));// 0 is
-      // important to match later
-      lock.notifyAll();
+      // Nobody waiting for the window to load will see it happen now
+      Iterator<Waiter> iterator = waiters.get(EventType.WINDOW_LOADED).iterator();
+      while (iterator.hasNext()) {
+        Waiter waiter = iterator.next();
+        if (waiter.id == windowId) {
+          iterator.remove();
+          waiter.fail(new CommunicationException("Window closed unexpectedly"));
+        }
+      }
+
+      post(new EventItem(EventType.WINDOW_CLOSED, windowId));
     }
   }
 
-  void onDesktopWindowClosed(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_CLOSED, info));
-      lock.notifyAll();
-    }
+  public void onOperaIdle() {
+    logger.finest("Event: onOperaIdle");
+    post(new EventItem(EventType.OPERA_IDLE));
   }
 
-  void onDesktopWindowActivated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowActivated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_ACTIVATED, info));
-      lock.notifyAll();
-    }
+  public void onDesktopWindowClosed(DesktopWindowInfo info) {
+    logger.finest("Event: onDesktopWindowClosed");
+    post(new EventItem(EventType.DESKTOP_WINDOW_CLOSED, info));
   }
 
-  void onDesktopWindowShown(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowShown");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_SHOWN, info));
-      lock.notifyAll();
-    }
+  public void onDesktopWindowActivated(DesktopWindowInfo info) {
+    logger.finest("Event: onDesktopWindowActivated");
+    post(new EventItem(EventType.DESKTOP_WINDOW_ACTIVATED, info));
   }
 
-  void onDesktopWindowUpdated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowUpdated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_UPDATED, info));
-      lock.notifyAll();
-    }
+  public void onDesktopWindowShown(DesktopWindowInfo info) {
+    logger.finest("Event: onDesktopWindowShown");
+    post(new EventItem(EventType.DESKTOP_WINDOW_SHOWN, info));
   }
 
-  void onDesktopWindowLoaded(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_LOADED, info));
-      lock.notifyAll();
-    }
+  public void onDesktopWindowUpdated(DesktopWindowInfo info) {
+    logger.finest("Event: onDesktopWindowUpdated");
+    post(new EventItem(EventType.DESKTOP_WINDOW_UPDATED, info));
   }
 
-  void onQuickMenuShown(QuickMenuInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuShown");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_SHOWN, info));
-      lock.notifyAll();
-    }
+  public void onDesktopWindowLoaded(DesktopWindowInfo info) {
+    logger.finest("Event: onDesktopWindowLoaded");
+    post(new EventItem(EventType.DESKTOP_WINDOW_LOADED, info));
   }
 
-  void onQuickMenuClosed(QuickMenuID id) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuClosed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_CLOSED, id));
-      lock.notifyAll();
-    }
+  public void onQuickMenuShown(QuickMenuInfo info) {
+    logger.finest("Event: onQuickMenuShown");
+    post(new EventItem(EventType.QUICK_MENU_SHOWN, info));
   }
 
-  void onQuickMenuItemPressed(QuickMenuItemID menuItemID) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuItemPressed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_ITEM_PRESSED, menuItemID));
-      lock.notifyAll();
-    }
+  public void onQuickMenuClosed(QuickMenuID id) {
+    logger.finest("Event: onQuickMenuClosed");
+    post(new EventItem(EventType.QUICK_MENU_CLOSED, id));
   }
 
-  void onSelftestDone() {
-    synchronized (lock) {
-      logger.finest("Event: onSelftestDone");
-      events.add(new ResultItem());
-      lock.notifyAll();
-    }
+  public void onQuickMenuItemPressed(QuickMenuItemID menuItemID) {
+    logger.finest("Event: onQuickMenuItemPressed");
+    post(new EventItem(EventType.QUICK_MENU_ITEM_PRESSED, menuItemID));
   }
 
-  void onDesktopWindowPageChanged(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.fine("Event: onDesktopPageChanged");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_PAGE_CHANGED, info));
-      lock.notifyAll();
-    }
+  public void onSelftestDone() {
+    logger.finest("Event: onSelftestDone");
+    post(new EventItem(EventType.SELFTEST_DONE));
   }
 
-  private ResultItem getResult() {
-    if (events.isEmpty()) {
-      return null;
-    }
+  public void onDesktopWindowPageChanged(DesktopWindowInfo info) {
+    logger.fine("Event: onDesktopPageChanged");
+    post(new EventItem(EventType.DESKTOP_WINDOW_PAGE_CHANGED, info));
+  }
 
-    // Test if we are listening to wait events
-    // We don't want to remove them from the list while we are
-    if (waitEvents) {
-      ResultItem resultItem = events.getFirst();
-      while (true) {
-        if (!resultItem.isEventToWaitFor()) {
-          events.remove(resultItem);
-          return resultItem;
+  /**
+   * Hands an event to the first waiter it matches, or puts it in the backlog if there is none.
+   */
+  private void post(EventItem event) {
+    synchronized (lock) {
+      Iterator<Waiter> iterator = waiters.get(event.type).iterator();
+      while (iterator.hasNext()) {
+        Waiter waiter = iterator.next();
+        if (waiter.apply(event)) {
+          iterator.remove();
+          waiter.complete(event);
+          return;
         }
+      }
 
-        if (!resultItem.wasSeen()) {
-          resultItem.seen = true;
-          return resultItem;
-        }
+      if (sequenceOfEvent() <= staleUpTo.get(event.type)) {
+        logger.finer("Dropping event received before the last command was sent: " + event);
+        return;
+      }
 
-        int index = events.indexOf(resultItem);
-        if (index + 1 >= events.size()) {
-          return null;
-        }
+      if (!backlog.add(event.type, event)) {
+        logger.finer("Backlog full, dropping event: " + event);
+      }
+    }
+  }
 
-        resultItem = events.get(index + 1);
+  private void discardStaleEvents() {
+    long received = eventsReceived();
+    for (EventType type : EventType.values()) {
+      if ((type == EventType.OPERA_IDLE && captureIdleEvents) ||
+          (type.isEventToWaitFor() && waitEvents)) {
+        continue;
       }
+      backlog.clear(type);
+      staleUpTo.put(type, received);
     }
+  }
+
+  /**
+   * @return the sequence number of the last event received, or -1 if events are not numbered
+   */
+  private long eventsReceived() {
+    EventDispatcher events = dispatcher.get();
+    return events == null ? -1 : events.getDispatched();
+  }
 
-    return events.removeFirst();
+  /**
+   * @return the sequence number of the event being posted, or the highest possible one if it is
+   *         not posted by the handler of a numbered event and so cannot be stale
+   */
+  private long sequenceOfEvent() {
+    EventDispatcher events = dispatcher.get();
+    long sequence = events == null ? -1 : events.getSequence();
+    return sequence < 0 ? Long.MAX_VALUE : sequence;
   }
 
   /**
-   * Checks for a result item. <p/> If no result item is available this method will wait for timeout
-   * milliseconds and try again. If still no result if available then a ResponseNotReceivedException
-   * is thrown.
+   * Takes the first matching event from the backlog, or waits for one to arrive.
    *
-   * @param timeout time in milliseconds to wait before retrying.
-   * @param idle    whether you are waiting for an Idle event. Changes error message.
-   * @return the result
+   * @param type    the type of event to wait for
+   * @param id      the window ID to match, for events without a name
+   * @param name    the name to match, or an empty string to match any name
+   * @param timeout time in milliseconds to wait for the event
+   * @return the event
+   * @throws ResponseNotReceivedException if no matching event was received in time
    */
-  private ResultItem pollResultItem(long timeout, boolean idle) {
-    ResultItem result = getResult();
-    if (result != null) {
-      result.remainingIdleTimeout = timeout;
-    }
-
-    if (result == null && timeout > 0) {
-      long start = System.currentTimeMillis();
-      internalWait(timeout);
-      long end = System.currentTimeMillis();
-      result = getResult();
-      if (result != null) {
-        result.remainingIdleTimeout = timeout - (end - start);
-        logger.finest("Remaining timeout: " + result.remainingIdleTimeout);
+  private EventItem waitFor(EventType type, int id, String name, long timeout) {
+    Waiter waiter = new Waiter(type, id, name);
+
+    synchronized (lock) {
+      EventItem event = backlog.take(type, waiter);
+      if (event != null) {
+        return event;
       }
-    }
 
-    if (result == null) {
-      if (idle) {
-        throw new ResponseNotReceivedException("No idle response in a timely fashion");
-      } else {
-        throw new ResponseNotReceivedException("No response in a timely fashion");
+      if (type == EventType.WINDOW_LOADED &&
+          backlog.take(EventType.WINDOW_CLOSED, waiter) != null) {
+        throw new CommunicationException("Window closed unexpectedly");
       }
+
+      if (!connected) {
+        throw failure != null ? failure
+                              : new CommunicationException("Waiting aborted - not connected!");
+      }
+
+      waiters.get(type).add(waiter);
     }
 
-    return result;
-  }
+    try {
+      waiter.signal.await(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      synchronized (lock) {
+        waiters.get(type).remove(waiter);
+      }
+      throw new ScopeException(e);
+    }
 
-  private ResultItem waitAndParseResult(long timeout, int match, String stringMatch,
-                                        final ResponseType type) {
     synchronized (lock) {
-      while (true) {
-        ResultItem result = pollResultItem(timeout, type == ResponseType.OPERA_IDLE);
-        timeout = result.remainingIdleTimeout;
-        WaitResult waitResult = result.waitResult;
-
-        switch (waitResult) {
-          case HANDSHAKE:
-            if (type == ResponseType.HANDSHAKE) {
-              return null;
-            }
-            break;
-
-          case RESPONSE:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return result;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expected handshake, got response");
-            }
-            break;
-
-          case ERROR:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return null;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expected handshake, got error");
-            }
-            break;
-
-          case EXCEPTION:
-            Throwables.propagate(result.getException());
-            break;
-
-          case DISCONNECTED:
-            throw new CommunicationException(String.format("Problem encountered: %s", waitResult));
-
-          case EVENT_WINDOW_LOADED:
-            if (result.data == match && type == ResponseType.WINDOW_LOADED) {
-              return null;
-            }
-            break;
-
-          case EVENT_WINDOW_CLOSED:
-            if (result.data == match && type == ResponseType.WINDOW_LOADED) {
-              throw new CommunicationException("Window closed unexpectedly");
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_SHOWN:
-            if (type == ResponseType.DESKTOP_WINDOW_SHOWN) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.finest("EVENT_DESKTOP_WINDOW_SHOWN: Name: "
-                              + result.desktopWindowInfo.getName() + " ID: "
-                              + result.desktopWindowInfo.getWindowID() + " OnScreen: "
-                              + result.desktopWindowInfo.getOnScreen());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_UPDATED:
-            if (type == ResponseType.DESKTOP_WINDOW_UPDATED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_UPDATED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_ACTIVATED:
-            if (type == ResponseType.DESKTOP_WINDOW_ACTIVATED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("DESKTOP_WINDOW_ACTIVATED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_CLOSED:
-            if (type == ResponseType.DESKTOP_WINDOW_CLOSED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_CLOSED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_LOADED:
-            if (type == ResponseType.DESKTOP_WINDOW_LOADED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_LOADED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_SHOWN:
-            if (type == ResponseType.QUICK_MENU_SHOWN) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_QUICK_MENU_SHOWN: Name: "
-                            + result.quickMenuInfo.getMenuId().getMenuName());
-
-                if (result.quickMenuInfo.getMenuId().getMenuName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_CLOSED:
-            if (type == ResponseType.QUICK_MENU_CLOSED) {
-              // empty stringMatch
-              if (stringMatch != null && stringMatch.length() == 0) {
-                return result;
-              } else {
-                if (result.quickMenuId.getMenuName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_ITEM_PRESSED:
-            if (type == ResponseType.QUICK_MENU_ITEM_PRESSED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("QUICK_MENU_ITEM_PRESSED: Text: "
-                            + result.quickMenuItemID.getMenuText());
-
-                if (result.quickMenuItemID.getMenuText().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_PAGE_CHANGED:
-            if (type == ResponseType.DESKTOP_WINDOW_PAGE_CHANGED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_PAGE_CHANGED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID() + " OnScreen: "
-                            + result.desktopWindowInfo.getOnScreen());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_REQUEST_FIRED:
-            if (result.data == match && type == ResponseType.REQUEST_FIRED) {
-              return null;
-            }
-            break;
-
-          case EVENT_OPERA_IDLE:
-            logger.finest("RECV EVENT_OPERA_IDLE!");
-            if (result.data == match && type == ResponseType.OPERA_IDLE) {
-              return null;
-            }
-            break;
-
-          case EVENT_SELFTEST_DONE:
-            logger.finest("RECV EVENT_SELFTEST_DONE");
-            if (type == ResponseType.SELFTEST_DONE) {
-              return null;
-            }
-            break;
+      // The event may have arrived between the timeout and taking the lock
+      if (waiter.signal.getCount() > 0) {
+        waiters.get(type).remove(waiter);
+        if (type == EventType.OPERA_IDLE) {
+          throw new ResponseNotReceivedException("No idle response in a timely fashion");
         }
+        throw new ResponseNotReceivedException("No response in a timely fashion");
       }
     }
+
+    if (waiter.failure != null) {
+      throw waiter.failure;
+    }
+
+    logger.finest("Received event: " + waiter.event);
+    return waiter.event;
   }
 
   public void waitForHandshake(long value) {
-    waitAndParseResult(value, 0, null, ResponseType.HANDSHAKE);
+    waitFor(EventType.HANDSHAKE, 0, null, value);
   }
 
   public void waitForWindowLoaded(int windowId, long timeout) {
     logger.finest(String.format("waitForWindowLoaded: activeWindowId=%d, timeout=%d",
                                 windowId, timeout));
-    waitAndParseResult(timeout, windowId, null, ResponseType.WINDOW_LOADED);
+    waitFor(EventType.WINDOW_LOADED, windowId, null, timeout);
   }
 
   /**
@@ -687,7 +701,11 @@ public class WaitState {
    * immediately.
    */
   public void captureOperaIdle() {
-    captureIdleEvents = true;
+    synchronized (lock) {
+      backlog.clear(EventType.OPERA_IDLE);
+      staleUpTo.put(EventType.OPERA_IDLE, eventsReceived());
+      captureIdleEvents = true;
+    }
   }
 
   /**
@@ -699,139 +717,67 @@ public class WaitState {
    * @param timeout time in milliseconds to wait before aborting
    */
   public void waitForOperaIdle(long timeout) {
-    if (captureIdleEvents && capturedIdleEvents > 0) {
-      logger.finer("Captured " + capturedIdleEvents + " idle event(s)");
-      // reset
+    synchronized (lock) {
+      boolean captured = captureIdleEvents && backlog.size(EventType.OPERA_IDLE) > 0;
       captureIdleEvents = false;
-      capturedIdleEvents = 0;
-      return;
-    }
+      backlog.clear(EventType.OPERA_IDLE);
 
-    // If we're waiting for an Idle event, then we don't need to capture them anymore.  If we've
-    // reached this far then capturedIdleEvents is already 0.
-    captureIdleEvents = false;
-    waitAndParseResult(timeout, 0 /*0 = no window id!*/, null, ResponseType.OPERA_IDLE);
-  }
-
-  public Response waitFor(int tag, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, tag, null, ResponseType.RESPONSE);
-
-    if (item != null) {
-      return item.response;
+      if (captured) {
+        logger.finer("Captured idle event");
+        return;
+      }
     }
 
-    return null;
+    waitFor(EventType.OPERA_IDLE, 0, null, timeout);
   }
 
   public int waitForDesktopWindowShown(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, windowName, ResponseType.DESKTOP_WINDOW_SHOWN);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_SHOWN, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public int waitForDesktopWindowUpdated(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_UPDATED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_UPDATED, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public int waitForDesktopWindowActivated(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_ACTIVATED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_ACTIVATED, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public int waitForDesktopWindowClosed(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_CLOSED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_CLOSED, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public int waitForDesktopWindowLoaded(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_LOADED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_LOADED, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public int waitForWindowPageChanged(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_PAGE_CHANGED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-    return 0;
+    EventItem item = waitFor(EventType.DESKTOP_WINDOW_PAGE_CHANGED, 0, windowName, timeout);
+    return item.desktopWindowInfo.getWindowID();
   }
 
   public String waitForQuickMenuShown(String menuName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, menuName, ResponseType.QUICK_MENU_SHOWN);
-
-    if (item != null) {
-      return item.quickMenuInfo.getMenuId().getMenuName();
-    }
-
-    return "";
+    EventItem item = waitFor(EventType.QUICK_MENU_SHOWN, 0, menuName, timeout);
+    return item.quickMenuInfo.getMenuId().getMenuName();
   }
 
   public String waitForQuickMenuClosed(String menuName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, menuName, ResponseType.QUICK_MENU_CLOSED);
-
-    if (item != null) {
-      return item.quickMenuId.getMenuName();
-    }
-
-    return "";
+    EventItem item = waitFor(EventType.QUICK_MENU_CLOSED, 0, menuName, timeout);
+    return item.quickMenuId.getMenuName();
   }
 
   public String waitForQuickMenuItemPressed(String menuItemText, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         menuItemText,
-                                         ResponseType.QUICK_MENU_ITEM_PRESSED);
-
-    if (item != null) {
-      return item.quickMenuItemID.getMenuText();
-    }
-
-    return "";
+    EventItem item = waitFor(EventType.QUICK_MENU_ITEM_PRESSED, 0, menuItemText, timeout);
+    return item.quickMenuItemId.getMenuText();
   }
 
   public void selftestDone(long timeout) {
-    waitAndParseResult(timeout, 0, null, ResponseType.SELFTEST_DONE);
+    waitFor(EventType.SELFTEST_DONE, 0, null, timeout);
   }
 
-}
\ No newline at end of file
+}
@@ -43,6 +43,7 @@ public class ScopeEventHandler implements EventHandler {
    * cleanup method in onRuntimeStarted.
    */
   public void onRuntimeStopped(Integer id) {
+    services.getNavigationEpochs().onRuntimeStopped(id);
     services.getDebugger().removeRuntime(id);
   }
 
@@ -62,21 +63,29 @@ public class ScopeEventHandler implements EventHandler {
    * are associated with it.
    */
   public void onWindowClosed(Integer id) {
+    services.getNavigationEpochs().onWindowClosed(id);
     services.onWindowClosed(id);
     services.getWindowManager().removeWindow(id);
     services.getDebugger().cleanUpRuntimes(id);
   }
 
+  /**
+   * Handles windows that have loaded a document.  The runtimes of the window are left as they are:
+   * the runtimes of the new document replace the old ones frame by frame as they are started, and
+   * the runtimes of frames that went away are removed as they are stopped.
+   */
   public void onWindowLoaded(int windowId) {
-    services.getDebugger().cleanUpRuntimes(windowId);
+    services.getNavigationEpochs().onWindowLoaded(windowId);
     services.onWindowLoaded(windowId);
   }
 
   public void onOperaIdle() {
+    services.getNavigationEpochs().onOperaIdle();
     services.onOperaIdle();
   }
 
   public void onRuntimeStarted(RuntimeInfo info) {
+    services.getNavigationEpochs().onRuntimeStarted(info.getRuntimeID(), info.getWindowID());
     services.getDebugger().addRuntime(info);
   }
 
@@ -93,6 +102,7 @@ public class ScopeEventHandler implements EventHandler {
   }
 
   public void onReadyStateChange(ReadyStateChange change) {
+    services.getNavigationEpochs().onReadyStateChanged(change.getRuntimeID());
     services.getDebugger().readyStateChanged(change);
   }
 
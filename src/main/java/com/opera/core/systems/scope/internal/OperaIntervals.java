@@ -147,7 +147,10 @@ public enum OperaIntervals {
    * While communicating with slow devices it may happean data is not received yet so retry read
    * operation after this timeout Based on experiences with slow BCM7351 it is advaisable to set
    * this to 150ms for linuxsdk (devices).
+   *
+   * @deprecated no longer used, the connection reads whenever the socket has data available
    */
+  @Deprecated
   SOCKET_READ_RETRY_TIMEOUT(new Duration(0, MILLISECONDS)),
 
   /**
@@ -63,4 +63,17 @@ public interface ConsoleLogger extends Service {
 
   void onConsoleMessage(ServiceCallback<ConsoleMessage> callback);
 
+  /**
+   * Starts receiving console messages as they are sent, passing them to the callback set through
+   * {@link #onConsoleMessage(ServiceCallback)}.  Messages are dropped unread unless somebody is
+   * subscribed.  Subscriptions are counted, so every call must be matched by a call to {@link
+   * #unsubscribe()}.
+   */
+  void subscribe();
+
+  /**
+   * Withdraws a subscription made through {@link #subscribe()}.
+   */
+  void unsubscribe();
+
 }
\ No newline at end of file
@@ -120,7 +120,8 @@ public abstract interface Debugger extends Service {
   void changeRuntime(String frameName);
 
   /**
-   * Cleanup possible dead/suspended runtimes on runtime-started or window-closed
+   * Forgets the runtimes of a window, e.g. when it has been closed, and has all runtimes listed
+   * again before they are next looked up.
    */
   void cleanUpRuntimes(int windowId);
 
@@ -150,6 +151,14 @@ public abstract interface Debugger extends Service {
    */
   void releaseObjects();
 
+  /**
+   * Makes the given objects available to gc in a single command, leaving all other objects
+   * protected.  Services that can only release all objects at once ignore this.
+   *
+   * @param objectIds the IDs of the objects to release
+   */
+  void releaseObjects(List<Integer> objectIds);
+
   /**
    * Finds a valid runtime and updates the runtime reference (active runtime)
    *
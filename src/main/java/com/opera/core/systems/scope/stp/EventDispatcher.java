@@ -0,0 +1,259 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.opera.core.systems.internal.LatencyRecorder;
+import com.opera.core.systems.scope.protos.UmsProtos.Event;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands events off from the STP thread to an executor, so that parsing events and running their
+ * handlers, which may call into user code, does not hold up the decoding of responses.
+ *
+ * All events of a connection are handled one at a time, in the order they were received, as they
+ * were when they were handled on the STP thread: handlers of one service may depend on events of
+ * another having been handled first, e.g. a window loading before the runtimes of its new document
+ * start, and were written to run on a single thread.  At most {@link #getCapacity()} events can be
+ * waiting to be handled; when the queue is full, further events are dropped and counted, as the STP
+ * thread must never block waiting for the handlers, which may themselves be waiting for responses
+ * only it can read.
+ *
+ * Every event is numbered in the order it was received.  Since responses are still handed over on
+ * the STP thread, events received before a command was sent may be handled after it was sent, so
+ * whoever discards stale events should compare their {@link #getSequence() numbers} with the
+ * {@link #getDispatched() number of events received} at the time of sending, rather than rely on
+ * the order in which they are handled.
+ */
+public class EventDispatcher {
+
+  /**
+   * The default maximum number of events waiting to be handled.
+   */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private static final ExecutorService sharedExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("stp-events-%d").setDaemon(true).build());
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final UmsEventParser parser;
+  private final Executor executor;
+  private final int capacity;
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicBoolean overflowing = new AtomicBoolean();
+  private final Queue<Entry> events = new ConcurrentLinkedQueue<Entry>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile Thread handlerThread;
+  private long handling = -1;
+  private final ConcurrentMap<String, LatencyRecorder> latencies = Maps.newConcurrentMap();
+
+  /**
+   * Creates a dispatcher running handlers on a thread pool shared by all connections.
+   *
+   * @param parser the parser that decodes events and passes them on to their handlers
+   */
+  public EventDispatcher(UmsEventParser parser) {
+    this(parser, sharedExecutor, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param parser   the parser that decodes events and passes them on to their handlers
+   * @param executor the executor to run handlers on
+   * @param capacity the maximum number of events waiting to be handled
+   */
+  public EventDispatcher(UmsEventParser parser, Executor executor, int capacity) {
+    this.parser = parser;
+    this.executor = executor;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Queues an event to be handled after all events received before it, or drops it if the queue is
+   * full.  Never blocks.
+   *
+   * @param service the index of the service sending the event, as numbered by {@link
+   *                UmsEventParser#bind(java.util.List)}
+   * @param event   the event to handle
+   */
+  public void dispatch(int service, Event event) {
+    if (depth.incrementAndGet() > capacity) {
+      depth.decrementAndGet();
+      dropped.incrementAndGet();
+      if (overflowing.compareAndSet(false, true)) {
+        logger.warning(String.format("Event queue is full (%d events), dropping events", capacity));
+      }
+      return;
+    }
+
+    overflowing.set(false);
+    events.offer(new Entry(dispatched.incrementAndGet(), service, event));
+    schedule();
+  }
+
+  /**
+   * @return the number of events received and queued so far, which is also the sequence number of
+   *         the last of them
+   */
+  public long getDispatched() {
+    return dispatched.get();
+  }
+
+  /**
+   * Gets the sequence number of the event being handled, when called from its handler.  Events are
+   * numbered from 1 in the order they were received.
+   *
+   * @return the sequence number of the event being handled, or -1 if not called from a handler
+   */
+  public long getSequence() {
+    return Thread.currentThread() == handlerThread ? handling : -1;
+  }
+
+  /**
+   * @return the number of events dropped because the queue was full
+   */
+  public long getDroppedEvents() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of events waiting to be, or being, handled
+   */
+  public int getQueueDepth() {
+    return depth.get();
+  }
+
+  /**
+   * @return the maximum number of events waiting to be handled
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Gets the time spent parsing and handling events, per event type.  The event type is the name
+   * of the service and the event's ID, e.g. <code>window-manager#8</code>.
+   *
+   * @return a live view of the latency recorders by event type
+   */
+  public Map<String, LatencyRecorder> getHandlerLatencies() {
+    return Collections.unmodifiableMap(latencies);
+  }
+
+  /**
+   * Gets the time spent parsing and handling events of the given type.
+   *
+   * @param service the name of the service sending the event
+   * @param eventId the ID of the event
+   * @return the latency recorder for the event type, or null if no such event has been handled
+   */
+  public LatencyRecorder getHandlerLatency(String service, int eventId) {
+    return latencies.get(typeOf(service, eventId));
+  }
+
+  private void handle(long sequence, int service, Event event) {
+    long start = System.nanoTime();
+    handling = sequence;
+
+    try {
+      parser.handleEvent(service, event);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Exception while handling event: " + e.getMessage(), e);
+    } finally {
+      latencyOf(event).record(System.nanoTime() - start);
+      handling = -1;
+      depth.decrementAndGet();
+    }
+  }
+
+  private LatencyRecorder latencyOf(Event event) {
+    String type = typeOf(event.getService(), event.getCommandID());
+    LatencyRecorder recorder = latencies.get(type);
+    if (recorder == null) {
+      LatencyRecorder created = new LatencyRecorder();
+      recorder = latencies.putIfAbsent(type, created);
+      if (recorder == null) {
+        recorder = created;
+      }
+    }
+    return recorder;
+  }
+
+  private static String typeOf(String service, int eventId) {
+    return service + "#" + eventId;
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(drain);
+    }
+  }
+
+  /**
+   * Handles the queued events in order.  At most one task drains the queue at any time, which
+   * keeps the events in order without tying up a thread while there are none.
+   */
+  private final Runnable drain = new Runnable() {
+    public void run() {
+      handlerThread = Thread.currentThread();
+
+      Entry entry;
+      while ((entry = events.poll()) != null) {
+        handle(entry.sequence, entry.service, entry.event);
+      }
+
+      handlerThread = null;
+      scheduled.set(false);
+
+      // An event may have been added after we found the queue empty, but before we cleared the flag
+      if (!events.isEmpty()) {
+        schedule();
+      }
+    }
+  };
+
+  private static class Entry {
+
+    private final long sequence;
+    private final int service;
+    private final Event event;
+
+    public Entry(long sequence, int service, Event event) {
+      this.sequence = sequence;
+      this.service = service;
+      this.event = event;
+    }
+
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which events anybody is interested in, by service name and event ID, so that the
+ * connection can drop the others after reading only the envelope of the event, without decoding its
+ * payload.
+ *
+ * When the connection receives the service list it {@link #bind(List)}s the registry to it, which
+ * numbers the services by their position in the list and compiles the subscriptions into a table
+ * indexed by those numbers.  Incoming events are then matched on the raw bytes of the service name
+ * and looked up by index, rather than by comparing strings.  Subscriptions may change at any time;
+ * the table is rebuilt when they do.
+ */
+public class EventSubscriptions {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int SERVICE_FIELD = 1;
+  private static final int COMMAND_ID_FIELD = 2;
+
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_FIXED64 = 1;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int WIRETYPE_FIXED32 = 5;
+
+  private final Map<String, Map<Integer, Integer>> subscriptions = Maps.newHashMap();
+  private final AtomicLong dropped = new AtomicLong();
+  private List<String> services = ImmutableList.of();
+  private volatile Table table = new Table(services, subscriptions);
+
+  /**
+   * Registers interest in an event.  Subscriptions are counted, so an event is delivered until it
+   * has been unsubscribed as many times as it was subscribed.
+   *
+   * @param service the name of the service sending the event
+   * @param eventId the ID of the event
+   */
+  public synchronized void subscribe(String service, int eventId) {
+    Map<Integer, Integer> events = subscriptions.get(service);
+    if (events == null) {
+      events = Maps.newHashMap();
+      subscriptions.put(service, events);
+    }
+
+    Integer count = events.get(eventId);
+    events.put(eventId, count == null ? 1 : count + 1);
+    rebuild();
+  }
+
+  /**
+   * Withdraws interest in an event registered through {@link #subscribe(String, int)}.
+   *
+   * @param service the name of the service sending the event
+   * @param eventId the ID of the event
+   */
+  public synchronized void unsubscribe(String service, int eventId) {
+    Map<Integer, Integer> events = subscriptions.get(service);
+    if (events == null || !events.containsKey(eventId)) {
+      return;
+    }
+
+    int count = events.get(eventId) - 1;
+    if (count > 0) {
+      events.put(eventId, count);
+    } else {
+      events.remove(eventId);
+      if (events.isEmpty()) {
+        subscriptions.remove(service);
+      }
+    }
+    rebuild();
+  }
+
+  /**
+   * @param service the name of the service sending the event
+   * @param eventId the ID of the event
+   * @return true if anybody is subscribed to the event
+   */
+  public synchronized boolean isSubscribed(String service, int eventId) {
+    Map<Integer, Integer> events = subscriptions.get(service);
+    return events != null && events.containsKey(eventId);
+  }
+
+  /**
+   * Numbers the services announced by the host by their position in the given list, which is the
+   * index subsequently returned by {@link #accept(byte[], int, int)}.
+   *
+   * @param services the names of the services available on the connection
+   */
+  public synchronized void bind(List<String> services) {
+    this.services = ImmutableList.copyOf(services);
+    rebuild();
+  }
+
+  /**
+   * @return the services in the order they were numbered by {@link #bind(List)}
+   */
+  public List<String> getServices() {
+    return table.services;
+  }
+
+  /**
+   * Reads the envelope of an encoded event and decides whether it should be delivered.
+   *
+   * @param buffer the array holding the encoded {@link com.opera.core.systems.scope.protos.UmsProtos.Event}
+   * @param offset the offset of the event in <code>buffer</code>
+   * @param length the length of the event
+   * @return the index of the event's service if somebody is subscribed to the event, or -1 if the
+   *         event should be dropped
+   */
+  public int accept(byte[] buffer, int offset, int length) {
+    Table current = table;
+    Cursor cursor = new Cursor(buffer, offset, offset + length);
+    int service = -1;
+    int eventId = -1;
+
+    // The service name and event ID come first, so we can stop before reaching the payload
+    while (cursor.hasRemaining() && (service < 0 || eventId < 0)) {
+      long tag = cursor.readVarint();
+      int field = (int) (tag >>> 3);
+      int wiretype = (int) (tag & 7);
+
+      if (field == SERVICE_FIELD && wiretype == WIRETYPE_LENGTH_DELIMITED) {
+        int size = (int) cursor.readVarint();
+        service = current.indexOf(buffer, cursor.position, Math.min(size, cursor.remaining()));
+        if (service < 0) {
+          break;
+        }
+        cursor.position += size;
+      } else if (field == COMMAND_ID_FIELD && wiretype == WIRETYPE_VARINT) {
+        eventId = (int) cursor.readVarint();
+      } else if (!cursor.skip(wiretype)) {
+        break;
+      }
+    }
+
+    if (service >= 0 && eventId >= 0 && current.isSubscribed(service, eventId)) {
+      return service;
+    }
+
+    dropped.incrementAndGet();
+    return -1;
+  }
+
+  /**
+   * @return the number of events dropped because nobody was subscribed to them
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  private void rebuild() {
+    table = new Table(services, subscriptions);
+  }
+
+  /**
+   * Reads protobuf wire format fields from an array.
+   */
+  private static class Cursor {
+
+    private final byte[] buffer;
+    private final int end;
+    private int position;
+
+    public Cursor(byte[] buffer, int position, int end) {
+      this.buffer = buffer;
+      this.position = position;
+      this.end = end;
+    }
+
+    public boolean hasRemaining() {
+      return position < end;
+    }
+
+    public int remaining() {
+      return end - position;
+    }
+
+    public long readVarint() {
+      long result = 0;
+      int shift = 0;
+
+      while (position < end && shift < 64) {
+        byte b = buffer[position++];
+        result |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          break;
+        }
+        shift += 7;
+      }
+
+      return result;
+    }
+
+    public boolean skip(int wiretype) {
+      switch (wiretype) {
+        case WIRETYPE_VARINT:
+          readVarint();
+          return true;
+        case WIRETYPE_FIXED64:
+          position += 8;
+          return true;
+        case WIRETYPE_LENGTH_DELIMITED:
+          int size = (int) readVarint();
+          position += size;
+          return true;
+        case WIRETYPE_FIXED32:
+          position += 4;
+          return true;
+        default:
+          return false;
+      }
+    }
+
+  }
+
+  /**
+   * An immutable snapshot of the subscriptions, indexed by service number and event ID.
+   */
+  private static class Table {
+
+    private final List<String> services;
+    private final byte[][] names;
+    private final boolean[][] subscribed;
+
+    public Table(List<String> services, Map<String, Map<Integer, Integer>> subscriptions) {
+      this.services = services;
+      names = new byte[services.size()][];
+      subscribed = new boolean[services.size()][];
+
+      for (int i = 0; i < services.size(); i++) {
+        names[i] = services.get(i).getBytes(UTF8);
+
+        Map<Integer, Integer> events = subscriptions.get(services.get(i));
+        int max = -1;
+        if (events != null) {
+          for (int eventId : events.keySet()) {
+            max = Math.max(max, eventId);
+          }
+        }
+
+        subscribed[i] = new boolean[max + 1];
+        if (events != null) {
+          for (int eventId : events.keySet()) {
+            if (eventId >= 0) {
+              subscribed[i][eventId] = true;
+            }
+          }
+        }
+      }
+    }
+
+    public int indexOf(byte[] buffer, int offset, int length) {
+      for (int i = 0; i < names.length; i++) {
+        byte[] name = names[i];
+        if (name.length != length) {
+          continue;
+        }
+
+        int j = 0;
+        while (j < length && name[j] == buffer[offset + j]) {
+          j++;
+        }
+
+        if (j == length) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    public boolean isSubscribed(int service, int eventId) {
+      boolean[] events = subscribed[service];
+      return eventId >= 0 && eventId < events.length && events[eventId];
+    }
+
+  }
+
+}
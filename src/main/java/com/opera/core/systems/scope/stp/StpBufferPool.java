@@ -0,0 +1,142 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size buffers used for outbound STP frames.
+ *
+ * Buffers are acquired by the threads sending commands and released by the selector thread once
+ * they have been written to the socket, so the pool is safe to use from several threads.  Requests
+ * for more than {@link #getBufferSize()} bytes, which are rare, are served by a newly allocated
+ * buffer that is dropped again on release.  The pool holds at most {@link #getMaxPooled()} idle
+ * buffers.
+ */
+public class StpBufferPool {
+
+  /**
+   * The default size of pooled buffers.  Most commands, including typical evals, fit easily.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  /**
+   * The default number of idle buffers kept in the pool.
+   */
+  public static final int DEFAULT_MAX_POOLED = 64;
+
+  private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final int bufferSize;
+  private final int maxPooled;
+
+  public StpBufferPool() {
+    this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+  }
+
+  public StpBufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * Returns a cleared buffer that can hold at least the given number of bytes.
+   *
+   * @param size the number of bytes needed
+   * @return a buffer with at least <code>size</code> bytes remaining
+   */
+  public ByteBuffer acquire(int size) {
+    if (size <= bufferSize) {
+      ByteBuffer buffer = pool.poll();
+      if (buffer != null) {
+        pooled.decrementAndGet();
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+      }
+      misses.incrementAndGet();
+      return ByteBuffer.allocate(bufferSize);
+    }
+
+    misses.incrementAndGet();
+    return ByteBuffer.allocate(size);
+  }
+
+  /**
+   * Returns a buffer to the pool.  Buffers that were not handed out by {@link #acquire(int)} or
+   * that are oversized are discarded, as are buffers released while the pool is full.
+   *
+   * @param buffer the buffer to return
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect()) {
+      return;
+    }
+
+    if (pooled.incrementAndGet() > maxPooled) {
+      pooled.decrementAndGet();
+      return;
+    }
+
+    pool.offer(buffer);
+  }
+
+  /**
+   * @return the number of times a buffer could be reused from the pool
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of times a buffer had to be allocated
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the ratio of acquired buffers that were served from the pool, between 0 and 1
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * @return the number of idle buffers currently held by the pool
+   */
+  public int getPooled() {
+    return pooled.get();
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getMaxPooled() {
+    return maxPooled;
+  }
+
+}
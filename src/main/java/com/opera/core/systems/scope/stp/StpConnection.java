@@ -18,10 +18,9 @@ package com.opera.core.systems.scope.stp;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 
-import com.opera.core.systems.scope.exceptions.ScopeException;
 import com.opera.core.systems.scope.handlers.ConnectionHandler;
 import com.opera.core.systems.scope.stp.services.messages.desktop.DesktopUtilsMessage;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
@@ -31,9 +30,9 @@ import com.opera.core.systems.scope.protos.UmsProtos.Error;
 import com.opera.core.systems.scope.protos.UmsProtos.Event;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
 import com.opera.core.systems.scope.protos.UmsProtos.Status;
+import com.opera.core.systems.internal.LatencyRecorder;
 import com.opera.core.systems.internal.SocketListener;
 import com.opera.core.systems.internal.SocketMonitor;
-import com.opera.core.systems.scope.internal.OperaIntervals;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -43,23 +42,43 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class StpConnection implements SocketListener {
 
+  /**
+   * The maximum number of queued frames written to the socket in one call.
+   */
+  private static final int MAX_WRITE_BATCH = 16;
+
   private final Logger logger = Logger.getLogger(getClass().getName());
   private SocketChannel socketChannel;
 
   // Outgoing send queue
   private final ArrayBlockingQueue<ByteBuffer> requests;
-  private ByteBuffer recvBuffer;
+  private final StpBufferPool bufferPool = new StpBufferPool();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong writeCalls = new AtomicLong();
+  private final AtomicBoolean writeInterest = new AtomicBoolean();
+  private final LatencyRecorder responseLatency = new LatencyRecorder();
+
+  // When the selector detected the data currently being read, only used by the selector
+  private long readyAt;
+
+  // Frames picked from the send queue for the next gathering write, only used by the selector
+  private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+  private int writeBatchSize = 0;
+  private final StpFrameDecoder decoder = new StpFrameDecoder();
 
   // For STP1
-  private final byte[] prefix = {'S', 'T', 'P', 1};
-  private ByteString stpPrefix = ByteString.copyFrom(prefix);
+  private final byte[] prefix = StpFrameDecoder.STP1_PREFIX;
 
   private EventHandler eventHandler;
-  private UmsEventParser stp1EventHandler;
+  private volatile EventDispatcher eventDispatcher;
+  private final EventSubscriptions eventSubscriptions = new EventSubscriptions();
   private ConnectionHandler connectionHandler;
 
   public enum State {
@@ -98,8 +117,7 @@ public class StpConnection implements SocketListener {
     this.eventHandler = eventHandler;
     this.monitor = monitor;
     requests = new ArrayBlockingQueue<ByteBuffer>(1024);
-    recvBuffer = ByteBuffer.allocateDirect(65536);
-    recvBuffer.limit(0);
+    UmsEventParser.subscribe(eventSubscriptions);
 
     socket.configureBlocking(false);
 
@@ -113,7 +131,9 @@ public class StpConnection implements SocketListener {
   }
 
   private void switchToStp1() {
-    stp1EventHandler = new UmsEventParser(eventHandler);
+    UmsEventParser parser = new UmsEventParser(eventHandler);
+    parser.bind(eventSubscriptions.getServices());
+    eventDispatcher = new EventDispatcher(parser);
     sendEnableStp1();
     setState(State.HANDSHAKE);
   }
@@ -125,26 +145,49 @@ public class StpConnection implements SocketListener {
    * @param command to add to the request queue
    */
   public void send(Command command) {
-    logger.finest(command.toString());
-    byte[] payload = command.toByteArray();
-    int totalSize = payload.length + 1; // increment 1 for message type
+    int payloadSize = command.getSerializedSize();
+    int totalSize = payloadSize + 1; // increment 1 for message type
 
-    ByteBuffer outMessageSize = encodeMessageSize(totalSize);
-
-    // create the message
-    ByteBuffer buffer = ByteBuffer.allocateDirect(prefix.length
-                                                  + outMessageSize.position() + 1 + payload.length);
+    // Serialize the whole frame straight into a pooled buffer
+    ByteBuffer buffer = bufferPool.acquire(
+        prefix.length + CodedOutputStream.computeRawVarint32Size(totalSize) + totalSize);
     buffer.put(prefix, 0, prefix.length);
-    outMessageSize.flip();
-    buffer.put(outMessageSize);
+    encodeMessageSize(buffer, totalSize);
     buffer.put((byte) 1);
-    buffer.put(payload);
+
+    try {
+      CodedOutputStream output = CodedOutputStream.newInstance(
+          buffer.array(), buffer.arrayOffset() + buffer.position(), payloadSize);
+      command.writeTo(output);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      bufferPool.release(buffer);
+      connectionHandler.onException(new CommunicationException(
+          "Unable to serialize command: " + e.getMessage()));
+      return;
+    }
+
+    buffer.position(buffer.position() + payloadSize);
+    buffer.flip();
 
     // Log what is being sent.
-    logger.finest("SEND: " + command);
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("SEND: " + command);
+    }
+
+    enqueue(buffer);
+  }
 
+  /**
+   * Adds a frame to the send queue and asks the monitor to watch for the socket becoming writable,
+   * unless it already does so.
+   */
+  private void enqueue(ByteBuffer buffer) {
     requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+    if (writeInterest.compareAndSet(false, true)) {
+      monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
   }
 
   public void sendEnableStp1() {
@@ -172,10 +215,10 @@ public class StpConnection implements SocketListener {
       connectionHandler.onException(e);
       return;
     }
-    ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+    ByteBuffer buffer = bufferPool.acquire(bytes.length);
     buffer.put(bytes);
-    requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    buffer.flip();
+    enqueue(buffer);
   }
 
   public boolean canRead(SelectableChannel channel) throws IOException {
@@ -189,83 +232,37 @@ public class StpConnection implements SocketListener {
       throw new IOException("Socket lost");
     }
 
-    // Read as much data as possible into buffer.
-    ByteBuffer readBuffer = ByteBuffer.allocateDirect(1000);
-    int readSize = 0;
-
-    // Continue to read data and read messages until there are no messages
-    boolean didNotFindAnyMessage = false;
-    while (!didNotFindAnyMessage) {
-      logger.finest("canReadLoop!");
-
-      // Read as much data as possible (until recvBuffer is full OR we don't get
-      // any more data)
-      do {
-        readBuffer.clear();
-        try {
-          // do we have a socket
-          if (socketChannel == null) {
-            readSize = -1;
-
-          // do we have room in our buffer?
-          } else {
-            readSize = socketChannel.read(readBuffer);
-
-            if (readSize == 0) {
-              try {
-                Thread.sleep(OperaIntervals.SOCKET_READ_RETRY_TIMEOUT.getMs());
-                readSize = socketChannel.read(readBuffer);
-              } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-              }
-            }
-
-            if (readSize > 0) {
-              readBuffer.limit(readSize);
-              readBuffer.position(0);
-            }
-          }
-        } catch (IOException e) {
-          logger.warning("Channel closed, causing exception: " + e.getMessage());
-          readSize = -1;  // same as error from socketChannel.read
-        }
+    readyAt = monitor.getSelectedAt();
+    int readSize;
+
+    // Drain the socket straight into the decoder's buffer until it has nothing more to give,
+    // decoding messages as they become complete so that the buffer does not have to hold more than
+    // one frame.  We are called again by the monitor when more data arrives.
+    do {
+      try {
+        readSize = socketChannel.read(decoder.inbound());
+      } catch (IOException e) {
+        logger.warning("Channel closed, causing exception: " + e.getMessage());
+        readSize = -1;  // same as error from socketChannel.read
+      }
 
-        if (readSize < 0) {
-          logger.finer(String.format("Channel closed: %s", socketChannel != null ? socketChannel
-              .socket().getInetAddress().getHostName() : "(unknown)"));
+      if (readSize < 0) {
+        logger.finer(String.format("Channel closed: %s", socketChannel != null ? socketChannel
+            .socket().getInetAddress().getHostName() : "(unknown)"));
 
-          connectionHandler.onDisconnect();
-          monitor.remove(socketChannel);
-          return false;
-        } else if (readSize > 0) {
-
-          // Double buffer size if needed!
-          if (recvBuffer.limit() + readBuffer.limit() >= recvBuffer.capacity()) {
-            logger.finest("Doubled the size of our recv buffer");
-            ByteBuffer newRecvBuffer = ByteBuffer.allocate(recvBuffer.capacity() * 2);
-            newRecvBuffer.clear();
-            recvBuffer.position(0);
-            newRecvBuffer.limit(recvBuffer.limit());
-            newRecvBuffer.position(0);
-            newRecvBuffer.put(recvBuffer);
-            newRecvBuffer.position(0);
-            recvBuffer = newRecvBuffer;
-          }
+        connectionHandler.onDisconnect();
+        monitor.remove(socketChannel);
+        return false;
+      } else if (readSize > 0) {
+        logger.finest(String.format("Read %d bytes, new buffer size is %d",
+                                    readSize, decoder.readableBytes()));
 
-          recvBuffer.position(recvBuffer.limit());
-          recvBuffer.limit(recvBuffer.limit() + readSize);// increase limit!
-          recvBuffer.put(readBuffer);
-          logger.finest(String.format("Read %d bytes, new buffer size is %d",
-                                      readSize, recvBuffer.limit()));
+        while (readMessages()) {
+          // Keep going until the buffer holds no more complete messages
         }
-      } while (readSize > 0);
-
-      // Read as many messages as possible, and only
-      didNotFindAnyMessage = true;
-      while (readMessage(recvBuffer)) {
-        didNotFindAnyMessage = false;
       }
-    }
+    } while (readSize > 0 && socketChannel != null);
+
     return true;
   }
 
@@ -274,27 +271,90 @@ public class StpConnection implements SocketListener {
       throw new IOException("Socket lost");
     }
 
-    int totalWritten = 0;
-    while (!requests.isEmpty()) {
-      ByteBuffer buffer = requests.poll();
-      buffer.flip();
-      int written = 0;
-
-      do {
-        written = socketChannel.write(buffer);
-        //for now assume written equals 0 only when previous write has not finished yet so retry will be successful and thus no endless loop
-        if (written < 0) {
-          break;
-        }
-        if (written > 0) {
-          totalWritten += written;
-        }
-      } while (buffer.hasRemaining());
+    long totalWritten = 0;
+
+    while (true) {
+      // Top up the batch, which may still hold partially written frames from the last call
+      ByteBuffer next;
+      while (writeBatchSize < writeBatch.length && (next = requests.poll()) != null) {
+        writeBatch[writeBatchSize++] = next;
+      }
+
+      if (writeBatchSize == 0) {
+        break;
+      }
+
+      long written = socketChannel.write(writeBatch, 0, writeBatchSize);
+      writeCalls.incrementAndGet();
+      if (written <= 0) {
+        // The socket's send buffer is full, wait until we are told it is writable again
+        break;
+      }
+
+      totalWritten += written;
+      bytesWritten.addAndGet(written);
+      releaseWrittenBuffers();
     }
 
     logger.finest("Wrote " + totalWritten + " bytes");
 
-    return (!requests.isEmpty());
+    if (writeBatchSize > 0) {
+      return true;
+    }
+
+    // We are about to drop write interest.  A frame queued after the queue was drained has either
+    // seen the flag set, in which case we pick it up here, or will register write interest itself.
+    writeInterest.set(false);
+    return !requests.isEmpty() && writeInterest.compareAndSet(false, true);
+  }
+
+  /**
+   * Releases the fully written buffers at the head of the write batch and moves the remaining ones
+   * to the front.
+   */
+  private void releaseWrittenBuffers() {
+    int done = 0;
+    while (done < writeBatchSize && !writeBatch[done].hasRemaining()) {
+      bufferPool.release(writeBatch[done]);
+      done++;
+    }
+
+    if (done > 0) {
+      System.arraycopy(writeBatch, done, writeBatch, 0, writeBatchSize - done);
+      for (int i = writeBatchSize - done; i < writeBatchSize; i++) {
+        writeBatch[i] = null;
+      }
+      writeBatchSize -= done;
+    }
+  }
+
+  /**
+   * @return the pool outbound frames are serialized into
+   */
+  public StpBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * @return the total number of bytes written to the socket
+   */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * @return the number of write calls made on the socket
+   */
+  public long getWriteCalls() {
+    return writeCalls.get();
+  }
+
+  /**
+   * @return the average number of bytes written per write call on the socket
+   */
+  public double getBytesPerWrite() {
+    long calls = getWriteCalls();
+    return calls == 0 ? 0 : (double) getBytesWritten() / calls;
   }
 
   /**
@@ -346,6 +406,7 @@ public class StpConnection implements SocketListener {
     }
 
     logger.fine(String.format("Available services: %s", services));
+    eventSubscriptions.bind(services);
     connectionHandler.onServiceList(services);
 
     if (!services.contains("stp-1")) {
@@ -357,164 +418,132 @@ public class StpConnection implements SocketListener {
   }
 
   private void signalResponse(int tag, Response response) {
+    responseLatency.record(System.nanoTime() - readyAt);
     connectionHandler.onResponseReceived(tag, response);
   }
 
-  private void signalEvent(Event event) {
-    logger.finest("EVENT " + event.toString());
-    stp1EventHandler.handleEvent(event);
+  /**
+   * Gets the dispatcher handling events received over this connection, which exposes the event
+   * queue depth and the time spent handling each type of event.
+   *
+   * @return the event dispatcher, or null if the connection has not switched to STP/1 yet
+   */
+  public EventDispatcher getEventDispatcher() {
+    return eventDispatcher;
   }
 
   /**
-   * Reads a message from the buffer, and pops the used data out of the buffer.
+   * Gets the registry of events handled on this connection.  Events nobody is subscribed to are
+   * dropped as soon as their envelope has been read.
    *
-   * @param buffer the buffer containing messages
-   * @return true if we got a message from the buffer
+   * @return the event subscriptions
    */
-  private boolean readMessage(ByteBuffer buffer) {
+  public EventSubscriptions getEventSubscriptions() {
+    return eventSubscriptions;
+  }
 
-    // logger.finest("readMessage: " + bytesRead + " bytes read, remaining=" +
-    // remainingBytes.length + ", state=" + state.toString() + ", recurse=" +
-    // recurse);
+  /**
+   * Gets the distribution of the time from the selector detecting that there is data to read until
+   * the response is handed to {@link ConnectionHandler#onResponseReceived(int, Response)}.  This
+   * covers reading, decoding and parsing the response, as well as any other messages read before
+   * it.
+   *
+   * @return the response latency recorder
+   */
+  public LatencyRecorder getResponseLatency() {
+    return responseLatency;
+  }
 
-    buffer.position(0);
-    int bytesWeHaveBeenReading = 0;
+  private void signalEvent(int service, Event event) {
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("EVENT " + event.toString());
+    }
+    eventDispatcher.dispatch(service, event);
+  }
 
+  /**
+   * Reads messages from the decoder's buffer for the current state of the connection.
+   *
+   * @return true if the state changed and there might be more to read from the buffer
+   */
+  private boolean readMessages() {
     switch (state) {
       case SERVICELIST:
-        StringBuilder builder = new StringBuilder();
-        builder.append(buffer.asCharBuffer());
-        parseServiceList(builder.toString());
-        buffer.position(0);// reset position!
-        bytesWeHaveBeenReading = buffer.limit(); // bytesWeHaveBeenreading = all
-        // bytes in buffer!
-        break;
+        int length = decoder.readableBytes() & ~1;  // UTF-16 code units
+        if (length == 0) {
+          return false;
+        }
+        parseServiceList(decoder.readString(length, "UTF-16BE"));
+        return false;
 
       case HANDSHAKE:
-        if (buffer.limit() >= 6) {
-          byte[] dst = new byte[6];
-          buffer.position(0);// read from start!
-          buffer.get(dst);
-          buffer.position(0);// reset position!
-          bytesWeHaveBeenReading = 6; // 6 bytes will be removed from buffer
-          String handShake = new String(dst);
-          if (!handShake.equals("STP/1\n")) {
-            close();
-            connectionHandler.onException(
-                new CommunicationException("Expected STP/1, got: " + handShake));
-          }
-          setState(State.EMPTY);
-          connectionHandler.onHandshake(true);
+        if (decoder.readableBytes() < 6) {
+          return false;
         }
-        break;
 
-      case EMPTY: // read 4 byte header: STP/0
-        if (buffer.limit() >= 4) {
-          byte[] headerPrefix = new byte[4];
-          buffer.get(headerPrefix);
-          buffer.position(0);
-          bytesWeHaveBeenReading = 4;
-          ByteString incomingPrefix = ByteString.copyFrom(headerPrefix);
-          if (stpPrefix.equals(incomingPrefix)) {
-            setState(State.STP);
-            /*
-            if(buffer.hasRemaining()){
-                buffer.compact();
-                readMessage(buffer, buffer.position(), true);
-            } else {
-                buffer.clear();
-            }
-            */
-          } else {
-            close();
-            connectionHandler.onException(
-                new CommunicationException("Expected empty header"));
-          }
+        String handShake = decoder.readString(6, "US-ASCII");
+        if (!handShake.equals("STP/1\n")) {
+          close();
+          connectionHandler.onException(
+              new CommunicationException("Expected STP/1, got: " + handShake));
+          return false;
         }
-        break;
 
+        setState(State.STP);
+        connectionHandler.onHandshake(true);
+        return true;
+
+      case EMPTY:
       case STP:
-        // Try to read size
-        buffer.position(0);
-        if (buffer.limit() <= 0) {
-          logger.finest("STP: Empty buffer");
-          break;
+        try {
+          int frames = decoder.decode(frameHandler);
+          logger.finest(String.format("Decoded %d message(s), %d bytes left in buffer",
+                                      frames, decoder.readableBytes()));
+        } catch (CommunicationException e) {
+          close();
+          connectionHandler.onException(e);
+        } catch (IOException e) {
+          close();
+          connectionHandler.onException(new CommunicationException(
+              "Error while processing the message: " + e.getMessage()));
         }
-        int messageSize = readRawVarint32(buffer);// read part of buffer
-        bytesWeHaveBeenReading = buffer.position();
-        buffer.position(0);
-
-        // If we got size, read more, if not just leave it!
-        if (buffer.limit() >= bytesWeHaveBeenReading + messageSize) {
-          buffer.position(bytesWeHaveBeenReading);
-
-          // Read type and Payload!
-          int messageType = buffer.get();
-          bytesWeHaveBeenReading += 1;
-
-          byte[] payload = new byte[--messageSize];
-          buffer.get(payload);
-          buffer.position(0);
-
-          bytesWeHaveBeenReading += messageSize; // 32 bits = 4 bytes :-)
+        return false;
+    }
 
-          setState(State.EMPTY);
+    return false;
+  }
 
-          try {
-            processMessage(messageType, payload);
-          } catch (IOException e) {
-            close();
-            connectionHandler.onException(new CommunicationException(
-                "Error while processing the message: " + e.getMessage()));
+  private final StpFrameDecoder.FrameHandler frameHandler = new StpFrameDecoder.FrameHandler() {
+    public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+      if (type == 3) {
+        // Look at the envelope of events first, so that we don't parse the ones nobody wants
+        int service = eventSubscriptions.accept(buffer, offset, length);
+        if (service < 0) {
+          if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Dropped event nobody is subscribed to");
           }
-        } else {
-          // 4 + messageSize because of the int at the beginning
-          logger.finest(String.format("Tried to read a message and expected %d bytes, but got %d",
-                                      (4 + messageSize), buffer.limit()));
-
-          buffer.position(0);
-          bytesWeHaveBeenReading = 0;
+          return;
         }
-        break;
-
-    }
-
-    // Pop number of read bytes from
-    if (bytesWeHaveBeenReading > 0) {
-
-      // Pop X bytes, and keep message for the rest
-      int rest = buffer.limit() - bytesWeHaveBeenReading;
-      if (rest <= 0) {
-        buffer.clear();
-        buffer.limit(0);
-      } else {
-        byte[] temp = new byte[rest];
-
-        buffer.position(bytesWeHaveBeenReading);
-        buffer.get(temp, 0, rest);
-
-        buffer.clear();
-        buffer.limit(rest);
-        buffer.position(0);
-        buffer.put(temp, 0, rest);
-        buffer.position(0);// set position back to start!
+        processEvent(service, CodedInputStream.newInstance(buffer, offset, length));
+        return;
       }
 
-      logger.finest(String.format("Did read message of %d bytes, new buffer size is %d",
-                                  bytesWeHaveBeenReading, buffer.limit()));
+      processMessage(type, CodedInputStream.newInstance(buffer, offset, length));
+    }
+  };
 
-      return true; // We did read a message :-)
-    } else {
-      if (buffer.limit() > 0) {
-        logger.finest("Did NOT read message from buffer of size " + buffer.limit());
-      } else {
-        logger.finest("No messages in empty buffer");
-      }
-      return false;
+  /**
+   * Parses the envelope of an event, leaving its payload undecoded until a handler needs it.
+   */
+  private void processEvent(int service, CodedInputStream payload) throws IOException {
+    Event event = Event.parseFrom(payload);
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("RECV EVENT: " + event.toString());
     }
+    signalEvent(service, event);
   }
 
-  private void processMessage(int stpType, byte[] payload) throws IOException {
+  private void processMessage(int stpType, CodedInputStream payload) throws IOException {
     logger.finest("processMessage: " + stpType);
 
     switch (stpType) {
@@ -523,18 +552,18 @@ public class StpConnection implements SocketListener {
       case 2: // response
         // Log what is being sent.
         Response response = Response.parseFrom(payload);
-        logger.finest("RECV RESPONSE: " + response.toString());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("RECV RESPONSE: " + response.toString());
+        }
         signalResponse(response.getTag(), response);
         break;
 
-      case 3: // event
-        Event event = Event.parseFrom(payload);
-        logger.finest("RECV EVENT: " + event.toString());
-        signalEvent(event);
-        break;
+      // case 3: events are handled by processEvent()
       case 4: // error
         Error error = Error.parseFrom(payload);
-        logger.finest("RECV ERROR: " + error.toString());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("RECV ERROR: " + error.toString());
+        }
 
         String service = error.getService();
         int status = error.getStatus();
@@ -560,48 +589,11 @@ public class StpConnection implements SocketListener {
     }
   }
 
-  // protobuf methods, taken from the protobuf library by Google
-  // explained: http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints
-  private int readRawVarint32(ByteBuffer bytes) {
-    byte tmp = bytes.get();
-    if (tmp >= 0) {
-      return tmp;
-    }
-    int result = tmp & 0x7f;
-    if ((tmp = bytes.get()) >= 0) {
-      result |= tmp << 7;
-    } else {
-      result |= (tmp & 0x7f) << 7;
-      if ((tmp = bytes.get()) >= 0) {
-        result |= tmp << 14;
-      } else {
-        result |= (tmp & 0x7f) << 14;
-        if ((tmp = bytes.get()) >= 0) {
-          result |= tmp << 21;
-        } else {
-          result |= (tmp & 0x7f) << 21;
-          result |= (tmp = bytes.get()) << 28;
-          if (tmp < 0) {
-            // Discard upper 32 bits.
-            for (int i = 0; i < 5; i++) {
-              if (bytes.get() >= 0) {
-                return result;
-              }
-            }
-            connectionHandler.onException(new ScopeException("Error while reading raw int"));
-          }
-        }
-      }
-    }
-    return result;
-  }
-
-  private ByteBuffer encodeMessageSize(int value) {
-    ByteBuffer buffer = ByteBuffer.allocateDirect(CodedOutputStream.computeRawVarint32Size(value));
+  private static void encodeMessageSize(ByteBuffer buffer, int value) {
     while (true) {
       if ((value & ~0x7F) == 0) {
         buffer.put((byte) (value));
-        return buffer;
+        return;
       } else {
         buffer.put((byte) ((value & 0x7F) | 0x80));
         value >>>= 7;
@@ -56,12 +56,6 @@ public class StpConnectionListener implements SocketListener {
     start();
   }
 
-  @Override
-  protected void finalize() throws Throwable {
-    stop();
-    super.finalize();
-  }
-
   /**
    * Shuts down and cleans up the STP connection to Opera.
    */
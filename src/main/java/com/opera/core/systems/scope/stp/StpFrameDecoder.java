@@ -0,0 +1,300 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.opera.core.systems.scope.exceptions.CommunicationException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for STP/1 frames.
+ *
+ * Incoming bytes are read straight into a single compacting buffer, obtained through {@link
+ * #inbound()}, and complete frames are handed to a {@link FrameHandler} as a slice of that buffer
+ * so that the payload can be parsed in place, without intermediate copies.  Readable data always
+ * lives between an internal read index and the buffer's position.  The unread tail of the buffer
+ * is only moved to the front when there is not enough room left to read into, and the buffer is
+ * only grown when a single frame does not fit in it.
+ *
+ * A frame consists of the 4 byte <code>STP\x01</code> prefix, a varint encoded size, a single byte
+ * message type and the payload.  The size includes the message type byte.  Any of these parts may
+ * arrive split over several reads.
+ */
+public class StpFrameDecoder {
+
+  /**
+   * The prefix of every STP/1 frame.
+   */
+  public static final byte[] STP1_PREFIX = {'S', 'T', 'P', 1};
+
+  /**
+   * The default size of the buffer, large enough to hold most responses.
+   */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /**
+   * The largest message size accepted in a frame.  Anything larger is taken to be corrupt data
+   * rather than allocating a buffer for it.
+   */
+  public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The minimum number of free bytes available to the channel when reading.
+   */
+  private static final int MIN_READ_SIZE = 4096;
+
+  /**
+   * The maximum number of bytes in a varint encoded 32-bit integer.
+   */
+  private static final int MAX_VARINT_SIZE = 5;
+
+  /**
+   * Receives complete frames from the decoder.
+   */
+  public interface FrameHandler {
+
+    /**
+     * Called for every complete frame.  The payload is only valid for the duration of the call,
+     * as the underlying array is reused for subsequent reads.
+     *
+     * @param type    the STP message type (2 = response, 3 = event, 4 = error)
+     * @param buffer  the array holding the payload
+     * @param offset  the offset of the payload in <code>buffer</code>
+     * @param length  the length of the payload
+     * @throws IOException if the payload could not be processed
+     */
+    void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+
+  }
+
+  private ByteBuffer buffer;
+  private int readIndex = 0;
+
+  public StpFrameDecoder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public StpFrameDecoder(int initialCapacity) {
+    buffer = ByteBuffer.allocate(Math.max(initialCapacity, MIN_READ_SIZE));
+  }
+
+  /**
+   * Returns the buffer to read incoming data into.  There is always some room left in the returned
+   * buffer, and its position marks the end of the data that is not yet decoded.
+   *
+   * @return the buffer to read into
+   */
+  public ByteBuffer inbound() {
+    ensureWritable(MIN_READ_SIZE);
+    return buffer;
+  }
+
+  /**
+   * @return the number of bytes that have been read but not yet consumed
+   */
+  public int readableBytes() {
+    return buffer.position() - readIndex;
+  }
+
+  /**
+   * @return the current capacity of the underlying buffer
+   */
+  public int capacity() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Consumes the given number of bytes as a string.  This is used for the STP/0 messages exchanged
+   * before switching to STP/1.
+   *
+   * @param length  the number of bytes to consume
+   * @param charset the name of the charset the string is encoded in
+   * @return the decoded string
+   * @throws IllegalArgumentException if fewer than <code>length</code> bytes are available
+   */
+  public String readString(int length, String charset) {
+    if (length > readableBytes()) {
+      throw new IllegalArgumentException(
+          String.format("Tried to read %d bytes, but only %d are available",
+                        length, readableBytes()));
+    }
+
+    try {
+      String string = new String(buffer.array(), buffer.arrayOffset() + readIndex, length, charset);
+      skip(length);
+      return string;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Decodes as many complete frames as are available in the buffer, passing each of them to the
+   * given handler.  An incomplete frame at the end of the buffer is left in place until more data
+   * has been read.
+   *
+   * @param handler the receiver of the decoded frames
+   * @return the number of frames decoded
+   * @throws CommunicationException if the data in the buffer is not a valid STP/1 frame
+   * @throws IOException            if the handler fails to process a frame
+   */
+  public int decode(FrameHandler handler) throws IOException {
+    int frames = 0;
+
+    while (true) {
+      int available = readableBytes();
+      if (available < STP1_PREFIX.length + 1) {
+        break;
+      }
+
+      byte[] array = buffer.array();
+      int start = buffer.arrayOffset() + readIndex;
+
+      for (int i = 0; i < STP1_PREFIX.length; i++) {
+        if (array[start + i] != STP1_PREFIX[i]) {
+          throw new CommunicationException("Expected empty header");
+        }
+      }
+
+      // Decode the message size, which may be incomplete
+      int position = start + STP1_PREFIX.length;
+      int end = start + available;
+      int size = 0;
+      int shift = 0;
+      boolean complete = false;
+
+      while (position < end) {
+        byte b = array[position++];
+        size |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          complete = true;
+          break;
+        }
+
+        shift += 7;
+        if (shift >= MAX_VARINT_SIZE * 7) {
+          throw new CommunicationException("Malformed message size in STP/1 frame");
+        }
+      }
+
+      if (!complete) {
+        break;
+      }
+
+      if (size < 1 || size > MAX_FRAME_SIZE) {
+        throw new CommunicationException(
+            "Invalid message size in STP/1 frame: " + (size & 0xffffffffL));
+      }
+
+      int headerLength = position - start;
+      int frameLength = headerLength + size;
+
+      if (available < frameLength) {
+        // Make sure we can hold the rest of the frame on subsequent reads
+        ensureCapacity(frameLength);
+        break;
+      }
+
+      int type = array[position];
+      skip(frameLength);
+      frames++;
+
+      handler.onFrame(type, array, position + 1, size - 1);
+    }
+
+    if (readableBytes() == 0) {
+      buffer.clear();
+      readIndex = 0;
+    }
+
+    return frames;
+  }
+
+  /**
+   * Discards any unconsumed data.
+   */
+  public void clear() {
+    buffer.clear();
+    readIndex = 0;
+  }
+
+  private void skip(int length) {
+    readIndex += length;
+  }
+
+  /**
+   * Makes sure the buffer can hold a frame of the given length, compacting or growing it if
+   * necessary.
+   */
+  private void ensureCapacity(int frameLength) {
+    if (buffer.capacity() - readIndex >= frameLength) {
+      return;
+    }
+
+    if (buffer.capacity() >= frameLength) {
+      compact();
+      return;
+    }
+
+    // The frame length is bounded by MAX_FRAME_SIZE, so this cannot overflow
+    int capacity = buffer.capacity();
+    while (capacity < frameLength) {
+      capacity <<= 1;
+    }
+
+    grow(capacity);
+  }
+
+  /**
+   * Makes sure at least the given number of bytes can be read into the buffer.
+   */
+  private void ensureWritable(int length) {
+    if (buffer.remaining() >= length) {
+      return;
+    }
+
+    if (readIndex > 0) {
+      compact();
+      if (buffer.remaining() >= length) {
+        return;
+      }
+    }
+
+    grow(buffer.capacity() << 1);
+  }
+
+  private void compact() {
+    int readable = readableBytes();
+    if (readable > 0) {
+      System.arraycopy(buffer.array(), buffer.arrayOffset() + readIndex,
+                       buffer.array(), buffer.arrayOffset(), readable);
+    }
+    buffer.clear();
+    buffer.position(readable);
+    readIndex = 0;
+  }
+
+  private void grow(int capacity) {
+    ByteBuffer grown = ByteBuffer.allocate(capacity);
+    grown.put(buffer.array(), buffer.arrayOffset() + readIndex, readableBytes());
+    buffer = grown;
+    readIndex = 0;
+  }
+
+}
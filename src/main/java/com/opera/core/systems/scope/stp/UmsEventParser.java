@@ -16,9 +16,11 @@ limitations under the License.
 
 package com.opera.core.systems.scope.stp;
 
+import com.google.common.collect.Maps;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import com.opera.core.systems.scope.Message;
 import com.opera.core.systems.scope.exceptions.ScopeException;
 import com.opera.core.systems.scope.handlers.EventHandler;
 import com.opera.core.systems.scope.protos.ConsoleLoggerProtos.ConsoleMessage;
@@ -34,182 +36,323 @@ import com.opera.core.systems.scope.protos.SelftestProtos.SelftestResult;
 import com.opera.core.systems.scope.protos.UmsProtos.Event;
 import com.opera.core.systems.scope.protos.WmProtos.WindowID;
 import com.opera.core.systems.scope.protos.WmProtos.WindowInfo;
+import com.opera.core.systems.scope.services.ConsoleLogger;
+import com.opera.core.systems.scope.services.Core;
+import com.opera.core.systems.scope.services.Ecmascript;
+import com.opera.core.systems.scope.services.EcmascriptDebugger;
+import com.opera.core.systems.scope.services.Selftest;
+import com.opera.core.systems.scope.services.WindowManager;
+import com.opera.core.systems.scope.services.desktop.DesktopWindowManager;
+import com.opera.core.systems.scope.stp.services.messages.ConsoleLoggerMessage;
 import com.opera.core.systems.scope.stp.services.messages.CoreMessage;
 import com.opera.core.systems.scope.stp.services.messages.desktop.DesktopWindowManagerMessage;
 import com.opera.core.systems.scope.stp.services.messages.EcmascriptDebuggerMessage;
+import com.opera.core.systems.scope.stp.services.messages.EcmascriptMessage;
 import com.opera.core.systems.scope.stp.services.messages.SelftestMessage;
 import com.opera.core.systems.scope.stp.services.messages.WindowManagerMessage;
 
+import java.util.List;
+import java.util.Map;
+
 public class UmsEventParser {
 
+  /**
+   * The services whose events are handled by the parser.
+   */
+  private enum Source {
+    ECMASCRIPT_DEBUGGER(EcmascriptDebugger.SERVICE_NAME),
+    WINDOW_MANAGER(WindowManager.SERVICE_NAME),
+    DESKTOP_WINDOW_MANAGER(DesktopWindowManager.SERVICE_NAME),
+    CONSOLE_LOGGER(ConsoleLogger.SERVICE_NAME),
+    ECMASCRIPT(Ecmascript.SERVICE_NAME),
+    HTTP_LOGGER("http-logger"),
+    CORE(Core.SERVICE_NAME),
+    SELFTEST(Selftest.SERVICE_NAME),
+    UNKNOWN(null);
+
+    private static final Map<String, Source> lookup = Maps.newHashMap();
+
+    static {
+      for (Source source : values()) {
+        if (source != UNKNOWN) {
+          lookup.put(source.serviceName, source);
+        }
+      }
+    }
+
+    private final String serviceName;
+
+    private Source(String serviceName) {
+      this.serviceName = serviceName;
+    }
+
+    public static Source get(String serviceName) {
+      Source source = lookup.get(serviceName);
+      return source == null ? UNKNOWN : source;
+    }
+  }
+
   private EventHandler eventHandler;
+  private volatile Source[] sources = new Source[0];
 
   public UmsEventParser(EventHandler eventHandler) {
     this.eventHandler = eventHandler;
   }
 
+  /**
+   * Subscribes to the events handled by the parser that are always needed.  Window updates and
+   * console messages are frequent and only needed some of the time, so they are subscribed to by
+   * whoever needs them, for as long as they do; see {@link
+   * com.opera.core.systems.scope.ScopeServices#subscribe(String,
+   * com.opera.core.systems.scope.Message)}.
+   *
+   * @param subscriptions the registry to add the subscriptions to
+   */
+  public static void subscribe(EventSubscriptions subscriptions) {
+    subscribe(subscriptions, EcmascriptDebugger.SERVICE_NAME,
+              EcmascriptDebuggerMessage.RUNTIME_STARTED, EcmascriptDebuggerMessage.RUNTIME_STOPPED);
+    subscribe(subscriptions, WindowManager.SERVICE_NAME,
+              WindowManagerMessage.WINDOW_ACTIVATED, WindowManagerMessage.WINDOW_CLOSED,
+              WindowManagerMessage.WINDOW_LOADED);
+    subscribe(subscriptions, DesktopWindowManager.SERVICE_NAME,
+              DesktopWindowManagerMessage.WINDOW_SHOWN,
+              DesktopWindowManagerMessage.WINDOW_ACTIVATED,
+              DesktopWindowManagerMessage.WINDOW_CLOSED,
+              DesktopWindowManagerMessage.WINDOW_PAGE_CHANGED,
+              DesktopWindowManagerMessage.WINDOW_LOADED, DesktopWindowManagerMessage.MENU_SHOWN,
+              DesktopWindowManagerMessage.MENU_CLOSED, DesktopWindowManagerMessage.MENU_PRESSED);
+    subscribe(subscriptions, Ecmascript.SERVICE_NAME, EcmascriptMessage.ON_READY_STATE_CHANGED);
+    subscriptions.subscribe(Source.HTTP_LOGGER.serviceName, 1);
+    subscribe(subscriptions, Core.SERVICE_NAME, CoreMessage.ON_IDLE);
+    subscribe(subscriptions, Selftest.SERVICE_NAME,
+              SelftestMessage.RESULT, SelftestMessage.FINISHED);
+  }
+
+  private static void subscribe(EventSubscriptions subscriptions, String service,
+                                Message... events) {
+    for (Message event : events) {
+      subscriptions.subscribe(service, event.getID());
+    }
+  }
+
+  /**
+   * Builds the table used to look up the service of an event by its index in the service list
+   * announced by the host.
+   *
+   * @param services the names of the services available on the connection
+   */
+  public void bind(List<String> services) {
+    Source[] table = new Source[services.size()];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = Source.get(services.get(i));
+    }
+    sources = table;
+  }
+
+  /**
+   * Decodes and handles an event, looking up its service by name.
+   *
+   * @param event the event to handle
+   */
   public void handleEvent(Event event) {
-    String service = event.getService();
+    handleEvent(Source.get(event.getService()), event);
+  }
+
+  /**
+   * Decodes and handles an event from the service at the given index of the list passed to {@link
+   * #bind(List)}.
+   *
+   * @param service the index of the service sending the event
+   * @param event   the event to handle
+   */
+  public void handleEvent(int service, Event event) {
+    Source[] table = sources;
+    handleEvent(service >= 0 && service < table.length ? table[service] : Source.UNKNOWN, event);
+  }
+
+  private void handleEvent(Source source, Event event) {
     int eventId = event.getCommandID();
 
-    if (service.equals("ecmascript-debugger")) {
-      switch (EcmascriptDebuggerMessage.get(eventId)) {
-        case RUNTIME_STARTED:
-          RuntimeInfo.Builder infoBuilder = RuntimeInfo.newBuilder();
-          buildPayload(event, infoBuilder);
-          eventHandler.onRuntimeStarted(infoBuilder.build());
-          break;
-        case RUNTIME_STOPPED:
-          RuntimeID.Builder idBuilder = RuntimeID.newBuilder();
-          buildPayload(event, idBuilder);
-          Integer id = idBuilder.build().getRuntimeID();
-          eventHandler.onRuntimeStopped(id);
-          break;
-        default:
-          break;
-      }
-    } else if (service.equals("window-manager")) {
-      switch (WindowManagerMessage.get(eventId)) {
-        case WINDOW_ACTIVATED:
-          WindowID.Builder activeWindowIdBuilder = WindowID.newBuilder();
-          buildPayload(event, activeWindowIdBuilder);
-          Integer activeWindowID = activeWindowIdBuilder.build().getWindowID();
-          eventHandler.onWindowActivated(activeWindowID);
-          break;
-        case WINDOW_CLOSED:
-          WindowID.Builder closedWindowBuilder = WindowID.newBuilder();
-          buildPayload(event, closedWindowBuilder);
-          Integer closedWindowID = closedWindowBuilder.build().getWindowID();
-          eventHandler.onWindowClosed(closedWindowID);
-          break;
-        case WINDOW_UPDATED:
-          WindowInfo.Builder windowInfoBuilder = WindowInfo.newBuilder();
-          buildPayload(event, windowInfoBuilder);
-          WindowInfo info = windowInfoBuilder.build();
-          eventHandler.onWindowUpdated(info);
-          break;
-        case WINDOW_LOADED:
-          WindowID.Builder loadedWindowBuilder = WindowID.newBuilder();
-          buildPayload(event, loadedWindowBuilder);
-          Integer loadedWindowID = loadedWindowBuilder.build().getWindowID();
-          eventHandler.onWindowLoaded(loadedWindowID.intValue());
-          break;
-        default:
-          break;
-      }
-    } else if (service.equals("desktop-window-manager")) {
-      switch (DesktopWindowManagerMessage.get(eventId)) {
-        case WINDOW_SHOWN:
-          DesktopWindowInfo.Builder shownDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, shownDWBuilder);
-          DesktopWindowInfo info_shown = shownDWBuilder.build();
-          eventHandler.onDesktopWindowShown(info_shown);
-          break;
-        case WINDOW_UPDATED:
-          DesktopWindowInfo.Builder updatedDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, updatedDWBuilder);
-          DesktopWindowInfo info_updated = updatedDWBuilder.build();
-          eventHandler.onDesktopWindowUpdated(info_updated);
-          break;
-        case WINDOW_ACTIVATED:
-          DesktopWindowInfo.Builder activatedDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, activatedDWBuilder);
-          DesktopWindowInfo info_activated = activatedDWBuilder.build();
-          eventHandler.onDesktopWindowActivated(info_activated);
-          break;
-        case WINDOW_CLOSED:
-          DesktopWindowInfo.Builder closedDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, closedDWBuilder);
-          DesktopWindowInfo info_closed = closedDWBuilder.build();
-          eventHandler.onDesktopWindowClosed(info_closed);
-          break;
-        case WINDOW_PAGE_CHANGED:
-          DesktopWindowInfo.Builder pageChangedDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, pageChangedDWBuilder);
-          DesktopWindowInfo changedInfoPage = pageChangedDWBuilder.build();
-          eventHandler.onDesktopWindowPageChanged(changedInfoPage);
-          break;
-        case WINDOW_LOADED:
-          DesktopWindowInfo.Builder loadedDWBuilder = DesktopWindowInfo.newBuilder();
-          buildPayload(event, loadedDWBuilder);
-          DesktopWindowInfo info_loaded = loadedDWBuilder.build();
-          eventHandler.onDesktopWindowLoaded(info_loaded);
-          break;
-        case MENU_SHOWN:
-          QuickMenuInfo.Builder shownQMBuilder = QuickMenuInfo.newBuilder();
-          buildPayload(event, shownQMBuilder);
-          QuickMenuInfo menuInfoShown = shownQMBuilder.build();
-          eventHandler.onQuickMenuShown(menuInfoShown);
-          break;
-        case MENU_CLOSED:
-          QuickMenuID.Builder closedQMBuilder = QuickMenuID.newBuilder();
-          buildPayload(event, closedQMBuilder);
-          QuickMenuID menuId = closedQMBuilder.build();
-          eventHandler.onQuickMenuClosed(menuId);
-          break;
-        case MENU_PRESSED:
-          QuickMenuItemID.Builder pressedQMIBuilder = QuickMenuItemID.newBuilder();
-          buildPayload(event, pressedQMIBuilder);
-          QuickMenuItemID menuItemID = pressedQMIBuilder.build();
-          eventHandler.onQuickMenuItemPressed(menuItemID);
-          break;
-        default:
-          break;
-      }
-    } else if (service.equals("console-logger")) {
-      // console logger only sends one message
-      ConsoleMessage.Builder messageBuilder = ConsoleMessage.newBuilder();
-      buildPayload(event, messageBuilder);
-      eventHandler.onConsoleMessage(messageBuilder.build());
-    } else if (service.equals("ecmascript")) {
-      // we have only one event for this one
-      ReadyStateChange.Builder builder = ReadyStateChange.newBuilder();
-      buildPayload(event, builder);
-      eventHandler.onReadyStateChange(builder.build());
-    } else if (service.equals("http-logger") && eventId == 1) {
-      // console logger only sends one message
-      // FIXME make generic
-      Header header;
-      try {
-        header = Header.parseFrom(event.getPayload());
-      } catch (InvalidProtocolBufferException e) {
-        throw new ScopeException("Exception while parsing event", e);
-      }
-      eventHandler.onRequest(header.getWindowID());
-    } else if (service.equals("core")) {
-      switch (CoreMessage.get(eventId)) {
-        case ON_ACTIVE:
-          // No active event handler...
-          // Opera only becomes active as reaction on other event
-          // sent from operadriver, so we already know.
-          break;
-        case ON_IDLE:
-          eventHandler.onOperaIdle();
-          break;
-      }
-    } else if (service.equals("selftest")) {
-      switch (SelftestMessage.get(eventId)) {
-        case RESULT:
-          SelftestResult.Builder builder = SelftestResult.newBuilder();
-          buildPayload(event, builder);
-          eventHandler.onSelftestResult(builder.build());
-          break;
-        case FINISHED:
-          eventHandler.onSelftestDone();
+    switch (source) {
+      case ECMASCRIPT_DEBUGGER:
+        switch (EcmascriptDebuggerMessage.get(eventId)) {
+          case RUNTIME_STARTED:
+            RuntimeInfo.Builder infoBuilder = RuntimeInfo.newBuilder();
+            buildPayload(event, infoBuilder);
+            eventHandler.onRuntimeStarted(infoBuilder.build());
+            break;
+          case RUNTIME_STOPPED:
+            RuntimeID.Builder idBuilder = RuntimeID.newBuilder();
+            buildPayload(event, idBuilder);
+            Integer id = idBuilder.build().getRuntimeID();
+            eventHandler.onRuntimeStopped(id);
+            break;
+          default:
+            break;
+        }
+        break;
+
+      case WINDOW_MANAGER:
+        switch (WindowManagerMessage.get(eventId)) {
+          case WINDOW_ACTIVATED:
+            WindowID.Builder activeWindowIdBuilder = WindowID.newBuilder();
+            buildPayload(event, activeWindowIdBuilder);
+            Integer activeWindowID = activeWindowIdBuilder.build().getWindowID();
+            eventHandler.onWindowActivated(activeWindowID);
+            break;
+          case WINDOW_CLOSED:
+            WindowID.Builder closedWindowBuilder = WindowID.newBuilder();
+            buildPayload(event, closedWindowBuilder);
+            Integer closedWindowID = closedWindowBuilder.build().getWindowID();
+            eventHandler.onWindowClosed(closedWindowID);
+            break;
+          case WINDOW_UPDATED:
+            WindowInfo.Builder windowInfoBuilder = WindowInfo.newBuilder();
+            buildPayload(event, windowInfoBuilder);
+            WindowInfo info = windowInfoBuilder.build();
+            eventHandler.onWindowUpdated(info);
+            break;
+          case WINDOW_LOADED:
+            WindowID.Builder loadedWindowBuilder = WindowID.newBuilder();
+            buildPayload(event, loadedWindowBuilder);
+            Integer loadedWindowID = loadedWindowBuilder.build().getWindowID();
+            eventHandler.onWindowLoaded(loadedWindowID.intValue());
+            break;
+          default:
+            break;
+        }
+        break;
+
+      case DESKTOP_WINDOW_MANAGER:
+        switch (DesktopWindowManagerMessage.get(eventId)) {
+          case WINDOW_SHOWN:
+            DesktopWindowInfo.Builder shownDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, shownDWBuilder);
+            DesktopWindowInfo info_shown = shownDWBuilder.build();
+            eventHandler.onDesktopWindowShown(info_shown);
+            break;
+          case WINDOW_UPDATED:
+            DesktopWindowInfo.Builder updatedDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, updatedDWBuilder);
+            DesktopWindowInfo info_updated = updatedDWBuilder.build();
+            eventHandler.onDesktopWindowUpdated(info_updated);
+            break;
+          case WINDOW_ACTIVATED:
+            DesktopWindowInfo.Builder activatedDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, activatedDWBuilder);
+            DesktopWindowInfo info_activated = activatedDWBuilder.build();
+            eventHandler.onDesktopWindowActivated(info_activated);
+            break;
+          case WINDOW_CLOSED:
+            DesktopWindowInfo.Builder closedDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, closedDWBuilder);
+            DesktopWindowInfo info_closed = closedDWBuilder.build();
+            eventHandler.onDesktopWindowClosed(info_closed);
+            break;
+          case WINDOW_PAGE_CHANGED:
+            DesktopWindowInfo.Builder pageChangedDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, pageChangedDWBuilder);
+            DesktopWindowInfo changedInfoPage = pageChangedDWBuilder.build();
+            eventHandler.onDesktopWindowPageChanged(changedInfoPage);
+            break;
+          case WINDOW_LOADED:
+            DesktopWindowInfo.Builder loadedDWBuilder = DesktopWindowInfo.newBuilder();
+            buildPayload(event, loadedDWBuilder);
+            DesktopWindowInfo info_loaded = loadedDWBuilder.build();
+            eventHandler.onDesktopWindowLoaded(info_loaded);
+            break;
+          case MENU_SHOWN:
+            QuickMenuInfo.Builder shownQMBuilder = QuickMenuInfo.newBuilder();
+            buildPayload(event, shownQMBuilder);
+            QuickMenuInfo menuInfoShown = shownQMBuilder.build();
+            eventHandler.onQuickMenuShown(menuInfoShown);
+            break;
+          case MENU_CLOSED:
+            QuickMenuID.Builder closedQMBuilder = QuickMenuID.newBuilder();
+            buildPayload(event, closedQMBuilder);
+            QuickMenuID menuId = closedQMBuilder.build();
+            eventHandler.onQuickMenuClosed(menuId);
+            break;
+          case MENU_PRESSED:
+            QuickMenuItemID.Builder pressedQMIBuilder = QuickMenuItemID.newBuilder();
+            buildPayload(event, pressedQMIBuilder);
+            QuickMenuItemID menuItemID = pressedQMIBuilder.build();
+            eventHandler.onQuickMenuItemPressed(menuItemID);
+            break;
+          default:
+            break;
+        }
+        break;
+
+      case CONSOLE_LOGGER:
+        // console logger only sends one message
+        ConsoleMessage.Builder messageBuilder = ConsoleMessage.newBuilder();
+        buildPayload(event, messageBuilder);
+        eventHandler.onConsoleMessage(messageBuilder.build());
+        break;
+
+      case ECMASCRIPT:
+        // we have only one event for this one
+        ReadyStateChange.Builder readyStateBuilder = ReadyStateChange.newBuilder();
+        buildPayload(event, readyStateBuilder);
+        eventHandler.onReadyStateChange(readyStateBuilder.build());
+        break;
+
+      case HTTP_LOGGER:
+        if (eventId != 1) {
           break;
-      }
+        }
+
+        // console logger only sends one message
+        // FIXME make generic
+        Header header;
+        try {
+          header = Header.parseFrom(event.getPayload());
+        } catch (InvalidProtocolBufferException e) {
+          throw new ScopeException("Exception while parsing event", e);
+        }
+        eventHandler.onRequest(header.getWindowID());
+        break;
+
+      case CORE:
+        switch (CoreMessage.get(eventId)) {
+          case ON_ACTIVE:
+            // No active event handler...
+            // Opera only becomes active as reaction on other event
+            // sent from operadriver, so we already know.
+            break;
+          case ON_IDLE:
+            eventHandler.onOperaIdle();
+            break;
+        }
+        break;
+
+      case SELFTEST:
+        switch (SelftestMessage.get(eventId)) {
+          case RESULT:
+            SelftestResult.Builder builder = SelftestResult.newBuilder();
+            buildPayload(event, builder);
+            eventHandler.onSelftestResult(builder.build());
+            break;
+          case FINISHED:
+            eventHandler.onSelftestDone();
+            break;
+        }
+        break;
+
+      default:
+        break;
     }
   }
 
+  /**
+   * Decodes the payload of an event.  This is only done once a subscribed handler needs it, and
+   * reads straight from the payload's bytes without copying them.
+   */
   private GeneratedMessage.Builder<?> buildPayload(Event event,
                                                    GeneratedMessage.Builder<?> builder) {
-    return buildMessage(builder, event.getPayload().toByteArray());
-  }
-
-  private GeneratedMessage.Builder<?> buildMessage(
-      GeneratedMessage.Builder<?> builder, byte[] message) {
     try {
-      return builder.mergeFrom(message);
+      return builder.mergeFrom(event.getPayload());
     } catch (InvalidProtocolBufferException e) {
       throw new ScopeException(String.format("Could not build %s: %s",
                                              builder.getDescriptorForType().getFullName(),
@@ -217,4 +360,4 @@ public class UmsEventParser {
     }
   }
 
-}
\ No newline at end of file
+}
@@ -111,6 +111,9 @@ public class MockEcmascriptDebugger implements Debugger {
   public void releaseObjects() {
   }
 
+  public void releaseObjects(List<Integer> objectIds) {
+  }
+
   public boolean updateRuntime() {
     return false;
   }
@@ -65,4 +65,12 @@ public class ScopeConsoleLogger extends AbstractService implements ConsoleLogger
     this.callback = callback;
   }
 
+  public void subscribe() {
+    services.subscribe(SERVICE_NAME, ConsoleLoggerMessage.ON_CONSOLE_MESSAGE);
+  }
+
+  public void unsubscribe() {
+    services.unsubscribe(SERVICE_NAME, ConsoleLoggerMessage.ON_CONSOLE_MESSAGE);
+  }
+
 }
\ No newline at end of file
@@ -22,6 +22,9 @@ import com.google.common.collect.Maps;
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.model.ScriptResult;
 import com.opera.core.systems.scope.AbstractEcmascriptService;
+import com.opera.core.systems.scope.ObjectExaminer;
+import com.opera.core.systems.scope.ObjectExaminer.ExaminedObject;
+import com.opera.core.systems.scope.RuntimeRegistry;
 import com.opera.core.systems.scope.ScopeServices;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.exceptions.ScopeException;
@@ -32,6 +35,7 @@ import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData.Variable;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalResult;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ExamineList;
+import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectInfo;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectInfo.Property;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectList;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectValue;
@@ -42,18 +46,13 @@ import com.opera.core.systems.scope.protos.UmsProtos.Response;
 import com.opera.core.systems.scope.services.EcmascriptDebugger;
 import com.opera.core.systems.scope.stp.services.messages.EcmascriptDebuggerMessage;
 
-import org.apache.commons.jxpath.Pointer;
 import org.openqa.selenium.NoSuchFrameException;
 import org.openqa.selenium.WebElement;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
 import static com.opera.core.systems.internal.OperaDefaults.SCRIPT_RETRIES;
@@ -67,7 +66,29 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
 
   private final AtomicStampedReference<RuntimeInfo> runtime =
       new AtomicStampedReference<RuntimeInfo>(null, 0);
-  private final ConcurrentMap<Integer, RuntimeInfo> runtimesList = Maps.newConcurrentMap();
+  private final RuntimeRegistry<RuntimeInfo> runtimesList = new RuntimeRegistry<RuntimeInfo>() {
+    protected int getRuntimeId(RuntimeInfo runtime) {
+      return runtime.getRuntimeID();
+    }
+
+    protected int getWindowId(RuntimeInfo runtime) {
+      return runtime.getWindowID();
+    }
+
+    protected String getFramePath(RuntimeInfo runtime) {
+      return runtime.getHtmlFramePath();
+    }
+  };
+
+  private final ObjectExaminer examiner = new ObjectExaminer() {
+    protected List<ExaminedObject> examine(List<Integer> objectIds) {
+      return examineAll(objectIds);
+    }
+
+    protected Object createElement(int objectId) {
+      return new OperaWebElement(driver, objectId);
+    }
+  };
 
   private RuntimeNode root;
 
@@ -120,7 +141,7 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
   }
 
   public void addRuntime(RuntimeInfo runtime) {
-    runtimesList.put(runtime.getRuntimeID(), runtime);
+    runtimesList.put(runtime);
   }
 
   public void removeRuntime(int runtimeId) {
@@ -128,15 +149,10 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
   }
 
   private List<RuntimeInfo> getRuntimesList() {
-    int windowId = services.getWindowManager().getActiveWindowId();
-    Iterator<?> iterator = xpathIterator(runtimesList.values(),
-                                         String.format("/.[windowID='%d'", windowId));
-
-    List<RuntimeInfo> runtimes = Lists.newArrayList();
-    while (iterator.hasNext()) {
-      runtimes.add((RuntimeInfo) ((Pointer) iterator.next()).getNode());
+    if (runtimesList.isOutOfSync()) {
+      createAllRuntimes();
     }
-    return runtimes;
+    return runtimesList.getWindow(services.getWindowManager().getActiveWindowId());
   }
 
   /**
@@ -189,11 +205,7 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
    * don't have script we can still inject to a "fake" runtime.
    */
   protected void createAllRuntimes() {
-    List<RuntimeInfo> runtimes = listRuntimes(true);
-    runtimesList.clear();
-    for (RuntimeInfo info : runtimes) {
-      runtimesList.put(info.getRuntimeID(), info);
-    }
+    runtimesList.replaceAll(listRuntimes(true));
   }
 
   public Object scriptExecutor(String script, Object... params) {
@@ -371,10 +383,13 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
   }
 
   protected RuntimeInfo findRuntime(int windowId) {
-    createAllRuntimes();
-    return (RuntimeInfo) xpathPointer(runtimesList.values(),
-                                      String.format("/.[htmlFramePath='%s' and windowID='%d']",
-                                                    currentFramePath, windowId)).getValue();
+    // Only list the runtimes in Opera if events have not told us about the one we want
+    RuntimeInfo runtime = runtimesList.get(windowId, currentFramePath);
+    if (runtime == null || runtimesList.isOutOfSync()) {
+      createAllRuntimes();
+      runtime = runtimesList.get(windowId, currentFramePath);
+    }
+    return runtime;
   }
 
   /**
@@ -391,7 +406,8 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
     root.setFrameName(rootPath);
     root.setRuntimeID(rootInfo.getRuntimeID());
 
-    List<RuntimeInfo> runtimesInfos = Lists.newArrayList(runtimesList.values());
+    List<RuntimeInfo> runtimesInfos =
+        Lists.newArrayList(runtimesList.getWindow(rootInfo.getWindowID()));
     runtimesInfos.remove(rootInfo);
 
     for (RuntimeInfo runtimeInfo : runtimesInfos) {
@@ -495,13 +511,10 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
   }
 
   public void cleanUpRuntimes(int windowId) {
-    // if we already have a runtime listed as _top with that window id,
-    // clean all runtimes with that window id
-    for (RuntimeInfo runtime : runtimesList.values()) {
-      if (runtime.getWindowID() == windowId) {
-        runtimesList.remove(runtime.getRuntimeID());
-      }
-    }
+    // The window may still hold runtimes we have not heard of, or start new ones before we hear of
+    // the old ones stopping, so the list must be made again before it is relied upon
+    runtimesList.removeWindow(windowId);
+    runtimesList.invalidate();
   }
 
   // TODO needs retry approach?
@@ -534,6 +547,10 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
     executeMessage(EcmascriptDebuggerMessage.RELEASE_OBJECTS, null);
   }
 
+  public void releaseObjects(List<Integer> objectIds) {
+    // not supported, silently ignore
+  }
+
   public void resetRuntimesList() {
     runtimesList.clear();
   }
@@ -568,57 +585,45 @@ public class ScopeEcmascriptDebugger extends AbstractEcmascriptService
   }
 
   public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
+    return examiner.resolve(id);
   }
 
   public void setFormElementValue(int objectId, String value) {
     throw new UnsupportedOperationException();
   }
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
-    if (visitedIDs.contains(id)) {
-      // cyclic reference - returning null for the inner most reference
-      return null;
-    }
-    visitedIDs.add(id);
-    ObjectList list = getObjectList(id);
-    String className = list.getObjectList(0).getValue().getName();
+  /**
+   * Examines the given objects in a single command.
+   *
+   * @param objectIds the IDs of the objects to examine
+   * @return the examined objects
+   */
+  protected List<ExaminedObject> examineAll(List<Integer> objectIds) {
+    ExamineList.Builder examine = ExamineList.newBuilder();
+    examine.setRuntimeID(getRuntimeId());
+    examine.addAllObjectList(objectIds);
+    Response response = executeMessage(EcmascriptDebuggerMessage.EXAMINE_OBJECTS, examine);
 
-    List<Property> properties = list.getObjectList(0).getPropertyListList();
+    ObjectList.Builder builder = ObjectList.newBuilder();
+    buildPayload(response, builder);
 
-    if (className.endsWith("Element")) {
-      return new OperaWebElement(driver, id);
-    } else if (className.equals("Array")) {
-      List<Object> result = Lists.newArrayList();
-
-      for (Property property : properties) {
-        if (property.getType().equals("number")
-            && property.getName().equals("length")) {
-          // ignore ?!?
-        } else if (property.getType().equals("object")) {
-          result.add(examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
-        } else {
-          result.add(parseValue(property.getType(), property.getValue()));
-        }
-      }
-      return result;
-    } else {
-      // we have a map
-      Map<String, Object> result = Maps.newHashMap();
-
-      for (Property property : properties) {
-        if (property.getType().equals("number")
-            && property.getName().equals("length")) {
-          // ignore ?!?
-        } else if (property.getType().equals("object")) {
-          result.put(property.getName(),
-                     examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+    List<ExaminedObject> objects = Lists.newArrayList();
+    for (ObjectInfo info : builder.build().getObjectListList()) {
+      ExaminedObject object =
+          new ExaminedObject(info.getValue().getObjectID(), info.getValue().getName());
+
+      for (Property property : info.getPropertyListList()) {
+        if (property.getType().equals("object")) {
+          object.addReference(property.getName(), property.getObjectValue().getObjectID());
         } else {
-          result.put(property.getName(), parseValue(property.getType(), property.getValue()));
+          object.addValue(property.getName(), parseValue(property.getType(), property.getValue()));
         }
       }
-      return result;
+
+      objects.add(object);
     }
+
+    return objects;
   }
 
   private ObjectList getObjectList(Integer id) {
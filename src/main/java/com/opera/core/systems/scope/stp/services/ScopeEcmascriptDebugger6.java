@@ -16,17 +16,22 @@ limitations under the License.
 
 package com.opera.core.systems.scope.stp.services;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.model.ScriptResult;
+import com.opera.core.systems.scope.ObjectExaminer.ExaminedObject;
 import com.opera.core.systems.scope.ScopeServices;
 import com.opera.core.systems.scope.exceptions.ScopeException;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.EvalResult;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ExamineList;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectChainList;
+import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectInfo;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectInfo.Property;
+import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectList;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectValue;
+import com.opera.core.systems.scope.protos.Esdbg6Protos.ReleaseObjectsArg;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData.Variable;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
@@ -35,11 +40,7 @@ import com.opera.core.systems.scope.stp.services.messages.EcmascriptDebuggerMess
 import org.openqa.selenium.WebElement;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * EcmaScript debugger 6.0 implementation handles injection and runtime management to the new
@@ -229,61 +230,49 @@ public class ScopeEcmascriptDebugger6 extends ScopeEcmascriptDebugger {
   }
 
   @Override
-  public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
-  }
+  protected List<ExaminedObject> examineAll(List<Integer> objectIds) {
+    List<ExaminedObject> objects = Lists.newArrayList();
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
-    if (visitedIDs.contains(id)) {
-      // cyclic reference - returning null for the inner most reference
-      return null;
-    }
-    visitedIDs.add(id);
-    ObjectChainList list = getChainList(id);
-    List<Property> properties =
-        list.getObjectChainList(0).getObjectListList().get(0).getPropertyListList();
+    for (ObjectList chain : getChainList(objectIds).getObjectChainListList()) {
+      ObjectInfo info = chain.getObjectList(0);
+      ExaminedObject object =
+          new ExaminedObject(info.getValue().getObjectID(), info.getValue().getClassName());
 
-    String className =
-        list.getObjectChainListList().get(0).getObjectList(0).getValue().getClassName();
-
-    if (className.endsWith("Element")) {
-      return new OperaWebElement(driver, id);
-    } else if (className.equals("Array")) {
-      List<Object> result = Lists.newArrayList();
-
-      for (Property property : properties) {
-        if (property.getType().equals("number") && property.getName().equals("length")) {
-          // ignore these, they just tell us about the length of the result
-        } else if (property.getType().equals("object")) {
-          result.add(examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+      for (Property property : info.getPropertyListList()) {
+        if (property.getType().equals("object")) {
+          object.addReference(property.getName(), property.getObjectValue().getObjectID());
         } else {
-          result.add(parseValue(property.getType(), property.getValue()));
+          object.addValue(property.getName(), parseValue(property.getType(), property.getValue()));
         }
       }
-      return result;
-    } else {
-      // we have a map
-      Map<String, Object> result = new HashMap<String, Object>();
-
-      for (Property property : properties) {
-        if (property.getType().equals("number") && property.getName().equals("length")) {
-          // ignore ?!?
-        } else if (property.getType().equals("object")) {
-          result.put(property.getName(),
-                     examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
-        } else {
-          result.put(property.getName(), parseValue(property.getType(), property.getValue()));
-        }
-      }
-      return result;
+
+      objects.add(object);
+    }
+
+    return objects;
+  }
+
+  @Override
+  public void releaseObjects(List<Integer> objectIds) {
+    // An empty list would release all objects
+    if (objectIds.isEmpty()) {
+      return;
     }
+
+    ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
+    builder.addAllObjectList(objectIds);
+    executeMessage(EcmascriptDebuggerMessage.RELEASE_OBJECTS, builder);
   }
 
   private ObjectChainList getChainList(Integer id) {
+    return getChainList(ImmutableList.of(id));
+  }
+
+  private ObjectChainList getChainList(List<Integer> ids) {
     ExamineList.Builder examine = ExamineList.newBuilder();
     examine.setExaminePrototypes(false);
     examine.setRuntimeID(getRuntimeId());
-    examine.addObjectList(id);
+    examine.addAllObjectList(ids);
     Response response = executeMessage(EcmascriptDebuggerMessage.EXAMINE_OBJECTS, examine);
 
     ObjectChainList.Builder builder = ObjectChainList.newBuilder();
@@ -19,11 +19,15 @@ package com.opera.core.systems.scope.stp.services;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.model.RuntimeNode;
 import com.opera.core.systems.model.ScriptResult;
 import com.opera.core.systems.scope.AbstractEcmascriptService;
+import com.opera.core.systems.scope.JsonScriptResult;
+import com.opera.core.systems.scope.ObjectExaminer;
+import com.opera.core.systems.scope.RuntimeRegistry;
 import com.opera.core.systems.scope.ScopeServices;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.exceptions.ScopeException;
@@ -36,6 +40,7 @@ import com.opera.core.systems.scope.protos.EcmascriptProtos.ExamineObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ListRuntimesArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.Object.Property;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ObjectList;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.PrototypeChain;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReleaseObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
@@ -49,20 +54,14 @@ import com.opera.core.systems.scope.services.Ecmascript;
 import com.opera.core.systems.scope.services.EcmascriptDebugger;
 import com.opera.core.systems.scope.stp.services.messages.EcmascriptMessage;
 
-import org.apache.commons.jxpath.Pointer;
 import org.openqa.selenium.NoSuchFrameException;
 import org.openqa.selenium.WebElement;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -78,10 +77,50 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
 
   private final AtomicStampedReference<Runtime> runtime =
       new AtomicStampedReference<Runtime>(null, 0);
-  private final ConcurrentMap<Integer, Runtime> runtimesList =
-      new ConcurrentHashMap<Integer, Runtime>();
-  private final Queue<Integer> runtimesQueue = Lists.newLinkedList();
-  private final Queue<Integer> garbageQueue = Lists.newLinkedList();
+  private final RuntimeRegistry<Runtime> runtimesList = new RuntimeRegistry<Runtime>() {
+    protected int getRuntimeId(Runtime runtime) {
+      return runtime.getRuntimeID();
+    }
+
+    protected int getWindowId(Runtime runtime) {
+      return runtime.getWindowID();
+    }
+
+    protected String getFramePath(Runtime runtime) {
+      return runtime.getHtmlFramePath();
+    }
+  };
+  // Filled by event handlers and drained by the user's thread
+  private final Queue<Integer> runtimesQueue = Queues.newConcurrentLinkedQueue();
+  private final Queue<Integer> garbageQueue = Queues.newConcurrentLinkedQueue();
+
+  private final ObjectExaminer examiner = new ObjectExaminer() {
+    protected List<ExaminedObject> examine(List<Integer> objectIds) {
+      List<ExaminedObject> objects = Lists.newArrayList();
+
+      for (PrototypeChain chain : getObjectList(objectIds).getPrototypeListList()) {
+        EcmascriptProtos.Object obj = chain.getObjectList(0);
+        ExaminedObject object = new ExaminedObject(obj.getObjectID(), obj.getClassName());
+
+        for (Property property : obj.getPropertyListList()) {
+          Value value = property.getValue();
+          if (value.getType() == Type.OBJECT) {
+            object.addReference(property.getName(), value.getObject().getObjectID());
+          } else {
+            object.addValue(property.getName(), parseValue(value.getType(), value));
+          }
+        }
+
+        objects.add(object);
+      }
+
+      return objects;
+    }
+
+    protected Object createElement(int objectId) {
+      return new OperaWebElement(driver, objectId);
+    }
+  };
 
   public ScopeEcmascriptService(ScopeServices services) {
     super(services, Ecmascript.SERVICE_NAME);
@@ -111,7 +150,7 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
     runtime.setObjectID(info.getObjectID());
     runtime.setUri(info.getUri());
 
-    runtimesList.put(info.getRuntimeID(), runtime.build());
+    runtimesList.put(runtime.build());
   }
 
   public void removeRuntime(int runtimeId) {
@@ -119,13 +158,10 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   private List<Runtime> getRuntimesList() {
-    int windowId = services.getWindowManager().getActiveWindowId();
-    Iterator<?> iterator = xpathIterator(runtimesList.values(), "/.[windowID='" + windowId + "']");
-    List<Runtime> runtimes = Lists.newArrayList();
-    while (iterator.hasNext()) {
-      runtimes.add((Runtime) ((Pointer) iterator.next()).getNode());
+    if (runtimesList.isOutOfSync()) {
+      createAllRuntimes();
     }
-    return runtimes;
+    return runtimesList.getWindow(services.getWindowManager().getActiveWindowId());
   }
 
   public void init() {
@@ -152,14 +188,9 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
     selection.setCreate(true);
     Response response = executeMessage(EcmascriptMessage.LIST_RUNTIMES, selection);
 
-    runtimesList.clear();
     RuntimeList.Builder builder = RuntimeList.newBuilder();
     buildPayload(response, builder);
-    List<Runtime> allRuntimes = builder.build().getRuntimeListList();
-
-    for (Runtime info : allRuntimes) {
-      runtimesList.put(info.getRuntimeID(), info);
-    }
+    runtimesList.replaceAll(builder.build().getRuntimeListList());
   }
 
   public Object scriptExecutor(String script, Object... params) {
@@ -167,7 +198,13 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
 
     List<WebElement> elements = Lists.newArrayList();
 
+    // Without parameters the script is sent as it is, and is evaluated at the top level of the
+    // page, so its result can only be serialized afterwards
+    boolean hasParams = params != null && params.length > 0;
     String toSend = buildEvalString(elements, script, params);
+    if (hasParams) {
+      toSend = JsonScriptResult.wrap(toSend);
+    }
     EvalArg.Builder evalBuilder = buildEval(toSend, getRuntimeId());
 
     for (WebElement webElement : elements) {
@@ -185,14 +222,82 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
     EvalResult result = parseEvalData(response);
 
     Object parsed = parseEvalReply(result);
-    if (parsed instanceof EcmascriptProtos.Object) {
+    if (hasParams && parsed instanceof String) {
+      return JsonScriptResult.decode((String) parsed, ImmutableList.of());
+    } else if (parsed instanceof EcmascriptProtos.Object) {
       EcmascriptProtos.Object data = (EcmascriptProtos.Object) parsed;
+
+      if (hasParams && data.getClassName().equals("Array")) {
+        Object decoded = decodeWithElements(data.getObjectID());
+        if (decoded != null) {
+          return decoded;
+        }
+      } else if (data.getClassName().equals("Array") || data.getClassName().equals("Object")) {
+        Object serialized = serialize(data.getObjectID());
+        if (serialized != null) {
+          return serialized;
+        }
+      }
+
       return new ScriptResult(data.getObjectID(), data.getClassName());
     } else {
       return parsed;
     }
   }
 
+  /**
+   * Serializes an array or object already returned by a script, as described in {@link
+   * JsonScriptResult}, in one more round trip rather than examining it object by object.
+   *
+   * @param objectId the ID of the array or object
+   * @return the decoded result, or null if it could not be serialized
+   */
+  private Object serialize(int objectId) {
+    Object serialized = callFunctionOnObject(JsonScriptResult.wrap("locator"), objectId, true);
+    if (serialized instanceof String) {
+      return JsonScriptResult.decode((String) serialized, ImmutableList.of());
+    } else if (serialized instanceof EcmascriptProtos.Object) {
+      // Either the elements in it along with the JSON, or the result itself if not serializable
+      return decodeWithElements(((EcmascriptProtos.Object) serialized).getObjectID());
+    }
+    return null;
+  }
+
+  /**
+   * Decodes a result serialized along with the elements in it, as described in {@link
+   * JsonScriptResult}.
+   *
+   * @param objectId the ID of the array of elements returned by the script
+   * @return the decoded result, or null if the array is not a serialized result but one that could
+   *         not be serialized
+   */
+  private Object decodeWithElements(int objectId) {
+    List<Property> properties =
+        getObjectList(objectId).getPrototypeList(0).getObjectList(0).getPropertyListList();
+
+    String json = null;
+    for (Property property : properties) {
+      if (property.getName().equals(JsonScriptResult.JSON_PROPERTY)
+          && property.getValue().getType() == Type.STRING) {
+        json = property.getValue().getStr();
+      }
+    }
+
+    if (json == null) {
+      return null;
+    }
+
+    Map<Integer, WebElement> elements = Maps.newTreeMap();
+    for (Property property : properties) {
+      if (property.getValue().getType() == Type.OBJECT && isNumber(property.getName())) {
+        elements.put(Integer.valueOf(property.getName()),
+                     new OperaWebElement(driver, property.getValue().getObject().getObjectID()));
+      }
+    }
+
+    return JsonScriptResult.decode(json, Lists.newArrayList(elements.values()));
+  }
+
   private EvalResult parseEvalData(Response response) {
     EvalResult.Builder builder = EvalResult.newBuilder();
     buildPayload(response, builder);
@@ -407,15 +512,13 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   protected Runtime findRuntime(int windowId) {
-    createAllRuntimes();
-    Pointer pointer =
-        xpathPointer(runtimesList.values(),
-                     String.format("/.[htmlFramePath='%s' and windowID='%d']", currentFramePath,
-                                   windowId));
-    if (pointer != null) {
-      return (Runtime) pointer.getValue();
+    // Only list the runtimes in Opera if events have not told us about the one we want
+    Runtime runtime = runtimesList.get(windowId, currentFramePath);
+    if (runtime == null || runtimesList.isOutOfSync()) {
+      createAllRuntimes();
+      runtime = runtimesList.get(windowId, currentFramePath);
     }
-    return null;
+    return runtime;
   }
 
   /**
@@ -428,7 +531,8 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
     root.setFrameName("_top");
     root.setRuntimeID(rootInfo.getRuntimeID());
 
-    List<Runtime> runtimeInfos = Lists.newArrayList(runtimesList.values());
+    List<Runtime> runtimeInfos =
+        Lists.newArrayList(runtimesList.getWindow(rootInfo.getWindowID()));
     runtimeInfos.remove(rootInfo);
 
     for (Runtime runtimeInfo : runtimeInfos) {
@@ -534,13 +638,10 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   public void cleanUpRuntimes(int windowId) {
-    // if we already have a runtime listed as _top with that window id, clean all runtimes with that
-    // window id
-    for (Runtime runtime : runtimesList.values()) {
-      if (runtime.getWindowID() == windowId) {
-        runtimesList.remove(runtime.getRuntimeID());
-      }
-    }
+    // The window may still hold runtimes we have not heard of, or start new ones before we hear of
+    // the old ones stopping, so the list must be made again before it is relied upon
+    runtimesList.removeWindow(windowId);
+    runtimesList.invalidate();
   }
 
   public List<Integer> examineObjects(Integer id) {
@@ -569,6 +670,17 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
     executeMessage(EcmascriptMessage.RELEASE_OBJECTS, builder);
   }
 
+  public void releaseObjects(List<Integer> objectIds) {
+    // An empty list would release all objects
+    if (objectIds.isEmpty()) {
+      return;
+    }
+
+    ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
+    builder.addAllObjectIDList(objectIds);
+    executeMessage(EcmascriptMessage.RELEASE_OBJECTS, builder);
+  }
+
   public void resetRuntimesList() {
     runtimesList.clear();
   }
@@ -576,9 +688,11 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   public void readyStateChanged(ReadyStateChange change) {
     // We should probably wait for AFTER_LOAD but it is reported to be broken, so we will just wait
     // until DOM_CONTENT_LOADED so we can interact with the page as soon as possible.
-    if (!runtimesList.containsKey(change.getRuntimeID())) {
-      // A new runtime that we don't know about has been loaded
+    if (runtimesList.get(change.getRuntimeID()) == null) {
+      // A new runtime that we don't know about has been loaded, which may have replaced one we do
+      // know about
       runtimesQueue.add(change.getRuntimeID());
+      runtimesList.invalidate();
     }
   }
 
@@ -606,55 +720,10 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
+    return examiner.resolve(id);
   }
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
-    if (visitedIDs.contains(id)) {
-      // cyclic reference - returning null for the inner most reference
-      return null;
-    }
-
-    visitedIDs.add(id);
-    ObjectList list = getObjectList(id);
-    EcmascriptProtos.Object obj = list.getPrototypeList(0).getObjectList(0);
-    String className = obj.getClassName();
-
-    List<Property> properties = obj.getPropertyListList();
-
-    if (className.endsWith("Element")) {
-      return new OperaWebElement(driver, id);
-    } else if (className.equals("Array")) {
-      List<Object> result = Lists.newArrayList();
-
-      for (Property property : properties) {
-        Type type = property.getValue().getType();
-        if (type == Type.NUMBER && property.getName().equals("length")) {
-          // ignore ?!?
-        } else {
-          result.add(parseValue(type, property.getValue(), visitedIDs));
-        }
-      }
-
-      return result;
-    } else {
-      // we have a map
-      Map<String, Object> result = Maps.newHashMap();
-
-      for (Property property : properties) {
-        Type type = property.getValue().getType();
-        if (type == Type.NUMBER && property.getName().equals("length")) {
-          // ignore ?!?
-        } else {
-          result.put(property.getName(), parseValue(type, property.getValue(), visitedIDs));
-        }
-      }
-
-      return result;
-    }
-  }
-
-  private Object parseValue(Type type, Value value, Set<Integer> visitedIDs) {
+  private Object parseValue(Type type, Value value) {
     switch (type) {
       case TRUE:
         return true;
@@ -668,8 +737,6 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
         return value.getNumber();
       case STRING:
         return value.getStr();
-      case OBJECT:
-        return examineScriptResult(value.getObject().getObjectID(), visitedIDs);
       case UNDEFINED:
       case NULL:
       case NAN:
@@ -693,23 +760,28 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   private void processNewRuntimes() {
-    while (!runtimesQueue.isEmpty()) {
-      Runtime runtime = getRuntime(runtimesQueue.poll());
+    Integer runtimeId;
+    while ((runtimeId = runtimesQueue.poll()) != null) {
+      Runtime runtime = getRuntime(runtimeId);
       if (runtime != null) {
         if (runtime.getHtmlFramePath().equals("_top")
             && windowManager.getActiveWindowId() == runtime.getWindowID()) {
           setRuntime(runtime);
         }
-        runtimesList.putIfAbsent(runtime.getRuntimeID(), runtime);
+        if (runtimesList.get(runtime.getRuntimeID()) == null) {
+          runtimesList.put(runtime);
+        }
       }
     }
   }
 
   private void processGcObjects() {
-    ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
-    builder.addAllObjectIDList(garbageQueue);
-    executeMessage(EcmascriptMessage.RELEASE_OBJECTS, builder);
-    garbageQueue.clear();
+    List<Integer> objectIds = Lists.newArrayList();
+    Integer objectId;
+    while ((objectId = garbageQueue.poll()) != null) {
+      objectIds.add(objectId);
+    }
+    releaseObjects(objectIds);
   }
 
   /**
@@ -731,10 +803,14 @@ public class ScopeEcmascriptService extends AbstractEcmascriptService implements
   }
 
   private ObjectList getObjectList(Integer id) {
+    return getObjectList(ImmutableList.of(id));
+  }
+
+  private ObjectList getObjectList(List<Integer> ids) {
     ExamineObjectsArg.Builder builder = ExamineObjectsArg.newBuilder();
     builder.setExaminePrototypes(false);
     builder.setRuntimeID(getRuntimeId());
-    builder.addObjectIDList(id);
+    builder.addAllObjectIDList(ids);
     Response response = executeMessage(EcmascriptMessage.EXAMINE_OBJECTS, builder);
 
     ObjectList.Builder objListBuilder = ObjectList.newBuilder();
@@ -72,6 +72,9 @@ public class ScopeWindowManager extends AbstractService implements WindowManager
   public ScopeWindowManager(ScopeServices services) {
     super(services, SERVICE_NAME);  // 2.1?
     services.setWindowManager(this);
+
+    // Keeps the titles and types of the windows current, which we look windows up by
+    services.subscribe(SERVICE_NAME, WindowManagerMessage.WINDOW_UPDATED);
   }
 
   public AtomicInteger getLastHttpResponseCode() {
@@ -0,0 +1,187 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+
+import com.opera.core.systems.scope.internal.ServiceCallback;
+import com.opera.core.systems.scope.protos.ConsoleLoggerProtos.ConsoleMessage;
+import com.opera.core.systems.scope.services.ConsoleLogger;
+import com.opera.core.systems.testing.Fake;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncScriptWaiterTest {
+
+  @Test
+  public void consoleIsSubscribedToWhileWaiting() {
+    final int[] subscriptions = new int[1];
+    ConsoleLogger console = new Fake<ConsoleLogger>(ConsoleLogger.class) {
+      protected Object answer(String method, Object[] args) {
+        if (method.equals("subscribe")) {
+          subscriptions[0]++;
+        } else if (method.equals("unsubscribe")) {
+          subscriptions[0]--;
+        }
+        return null;
+      }
+    }.create();
+    waiter = new AsyncScriptWaiter(null, console);
+
+    String first = waiter.expect();
+    String second = waiter.expect();
+    assertEquals(2, subscriptions[0]);
+
+    waiter.call(message(first));
+    assertTrue(waiter.await(first, 0));
+    waiter.cancel(second);
+    waiter.cancel(second);
+    assertEquals(0, subscriptions[0]);
+  }
+
+  private List<ConsoleMessage> delegated;
+  private AsyncScriptWaiter waiter;
+
+  @Before
+  public void beforeEach() {
+    delegated = Lists.newArrayList();
+    waiter = new AsyncScriptWaiter(new ServiceCallback<ConsoleMessage>() {
+      public void call(ConsoleMessage message) {
+        delegated.add(message);
+      }
+    });
+  }
+
+  @Test
+  public void tokensAreUnique() {
+    assertFalse(waiter.expect().equals(waiter.expect()));
+  }
+
+  @Test
+  public void callbackBeforeWaitingIsNotMissed() {
+    String token = waiter.expect();
+    waiter.call(message(token));
+
+    assertTrue(waiter.await(token, 0));
+    assertTrue(delegated.isEmpty());
+  }
+
+  @Test
+  public void callbackFromAnotherThreadEndsWait() {
+    final String token = waiter.expect();
+    new Thread() {
+      @Override
+      public void run() {
+        waiter.call(message(token));
+      }
+    }.start();
+
+    assertTrue(waiter.await(token, 10000));
+  }
+
+  @Test
+  public void timesOutWithoutCallback() {
+    String token = waiter.expect();
+    assertFalse(waiter.await(token, 10));
+  }
+
+  @Test
+  public void abandonedScriptIsNotWaitedForUntilTimeout() {
+    String token = waiter.expect();
+    long start = System.currentTimeMillis();
+
+    assertFalse(waiter.await(token, 10000, 10, Suppliers.ofInstance(true)));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  @Test
+  public void callbackEndsWaitThatMayBeAbandoned() {
+    String token = waiter.expect();
+    waiter.call(message(token));
+
+    assertTrue(waiter.await(token, 1000, 10, Suppliers.ofInstance(false)));
+  }
+
+  @Test
+  public void callbackForAnotherScriptDoesNotEndWait() {
+    String token = waiter.expect();
+    String other = waiter.expect();
+    waiter.call(message(other));
+
+    assertFalse(waiter.await(token, 10));
+  }
+
+  @Test
+  public void lateCallbackIsDropped() {
+    String token = waiter.expect();
+    waiter.await(token, 0);
+    waiter.call(message(token));
+
+    assertTrue(delegated.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cancelledScriptCannotBeWaitedFor() {
+    String token = waiter.expect();
+    waiter.cancel(token);
+    waiter.await(token, 0);
+  }
+
+  @Test
+  public void otherMessagesArePassedOn() {
+    ConsoleMessage message = message("Uncaught exception: ReferenceError");
+    waiter.call(message);
+
+    assertEquals(1, delegated.size());
+    assertEquals(message, delegated.get(0));
+  }
+
+  @Test
+  public void messageMentioningTokenDoesNotEndWait() {
+    String token = waiter.expect();
+    ConsoleMessage message = message("Uncaught exception: " + token + " is not defined");
+    waiter.call(message);
+
+    assertFalse(waiter.await(token, 10));
+    assertEquals(1, delegated.size());
+    assertEquals(message, delegated.get(0));
+  }
+
+  @Test
+  public void wrappedScriptAppendsCallbackToArguments() {
+    String wrapped = AsyncScriptWaiter.wrap("arguments[arguments.length - 1](1);");
+    assertTrue(wrapped.contains("args.push(function(value)"));
+    assertTrue(wrapped.contains("opera.postError(token)"));
+  }
+
+  private static ConsoleMessage message(String description) {
+    return ConsoleMessage.newBuilder()
+        .setWindowID(1)
+        .setTime(0)
+        .setDescription(description)
+        .build();
+  }
+
+}
@@ -24,9 +24,11 @@ import org.openqa.selenium.By;
 import org.openqa.selenium.WebDriverException;
 
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class EcmaScriptTest extends OperaDriverTestCase {
 
@@ -72,4 +74,18 @@ public class EcmaScriptTest extends OperaDriverTestCase {
     }
   }
 
-}
\ No newline at end of file
+  @Test
+  public void scriptWithoutReturnIsEvaluatedAtTopLevel() {
+    driver.executeScript("var ecmaScriptTestGlobal = 42");
+    assertEquals(42L, driver.executeScript("return window.ecmaScriptTestGlobal"));
+  }
+
+  @Test
+  public void scriptWithoutArgumentsReturnsPlainObject() {
+    Object result = driver.executeScript("return {a: [1, 'b']}");
+
+    assertTrue(result instanceof Map);
+    assertEquals(2, ((List<?>) ((Map<?, ?>) result).get("a")).size());
+  }
+
+}
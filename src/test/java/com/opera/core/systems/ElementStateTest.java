@@ -0,0 +1,71 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.model.ElementState;
+
+import org.junit.Test;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.Point;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElementStateTest {
+
+  @Test
+  public void emptyStateIsStale() {
+    assertTrue(ElementState.parse("").isStale());
+    assertTrue(ElementState.parse(null).isStale());
+  }
+
+  @Test
+  public void parsesFields() {
+    ElementState state = ElementState.parse("1,0,1,INPUT,10,20,30,40,text");
+
+    assertFalse(state.isStale());
+    assertTrue(state.isDisplayed());
+    assertFalse(state.isEnabled());
+    assertTrue(state.isReadOnly());
+    assertEquals("INPUT", state.getTagName());
+    assertEquals(new Point(10, 20), state.getLocation());
+    assertEquals(new Dimension(30, 40), state.getSize());
+    assertEquals("text", state.getType());
+  }
+
+  @Test
+  public void typeMayContainCommas() {
+    assertEquals("a,b", ElementState.parse("0,0,0,X,0,0,0,0,a,b").getType());
+  }
+
+  @Test
+  public void emptyTypeIsEmpty() {
+    assertEquals("", ElementState.parse("1,1,0,DIV,-5,0,0,0,").getType());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooFewFieldsIsMalformed() {
+    ElementState.parse("1,1,0,DIV");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nonNumericPositionIsMalformed() {
+    ElementState.parse("1,1,0,DIV,a,0,0,0,");
+  }
+
+}
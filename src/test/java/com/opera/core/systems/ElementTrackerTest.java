@@ -0,0 +1,163 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.Lists;
+
+import com.opera.core.systems.scope.services.Debugger;
+import com.opera.core.systems.testing.Fake;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElementTrackerTest {
+
+  private static final int BATCH_SIZE = 3;
+
+  private List<List<Integer>> released;
+  private ElementTracker tracker;
+
+  @Before
+  public void beforeEach() {
+    released = Lists.newArrayList();
+    tracker = new ElementTracker(releasingDebugger(), BATCH_SIZE);
+  }
+
+  @Test
+  public void tracksObjectOfElement() {
+    Object element = new Object();
+    tracker.track(element, 1);
+
+    assertTrue(tracker.isTracked(1));
+    assertFalse(tracker.isTracked(2));
+  }
+
+  @Test
+  public void forgetsAllObjects() {
+    Object element = new Object();
+    tracker.track(element, 1);
+    tracker.forgetAll();
+
+    assertFalse(tracker.isTracked(1));
+  }
+
+  @Test
+  public void objectOfCollectedElementIsUnreferenced() throws InterruptedException {
+    tracker.track(new Object(), 1);
+    collect(1);
+
+    assertFalse(tracker.isTracked(1));
+    assertTrue(released.isEmpty());
+  }
+
+  @Test
+  public void objectIsReferencedUntilLastElementIsCollected() throws InterruptedException {
+    Object element = new Object();
+    tracker.track(element, 1);
+    tracker.track(new Object(), 1);
+    tracker.track(new Object(), 2);
+    collect(1);
+
+    assertTrue(tracker.isTracked(1));
+    assertFalse(tracker.isTracked(2));
+    assertEquals(1, tracker.getUnreferencedCount());
+    assertTrue(element != null);
+  }
+
+  @Test
+  public void releasesUnreferencedObjectsInBatches() throws InterruptedException {
+    for (int i = 1; i <= BATCH_SIZE; i++) {
+      tracker.track(new Object(), i);
+    }
+    collect(BATCH_SIZE);
+
+    Object element = new Object();
+    tracker.track(element, 10);
+
+    assertEquals(1, released.size());
+    assertEquals(BATCH_SIZE, released.get(0).size());
+    assertEquals(0, tracker.getUnreferencedCount());
+    assertTrue(tracker.isTracked(10));
+  }
+
+  @Test
+  public void trackedAgainObjectIsNotReleased() throws InterruptedException {
+    tracker.track(new Object(), 1);
+    collect(1);
+
+    Object element = new Object();
+    tracker.track(element, 1);
+    assertTrue(tracker.isTracked(1));
+    assertEquals(0, tracker.getUnreferencedCount());
+
+    for (int i = 2; i <= BATCH_SIZE + 1; i++) {
+      tracker.track(new Object(), i);
+    }
+    collect(BATCH_SIZE);
+    tracker.track(new Object(), 10);
+
+    assertEquals(1, released.size());
+    assertFalse(released.get(0).contains(1));
+    assertTrue(tracker.isTracked(1));
+    assertTrue(element != null);
+  }
+
+  @Test
+  public void forgottenObjectsAreNotReleased() throws InterruptedException {
+    for (int i = 1; i <= BATCH_SIZE; i++) {
+      tracker.track(new Object(), i);
+    }
+    tracker.forgetAll();
+    System.gc();
+
+    for (int i = 1; i <= BATCH_SIZE; i++) {
+      tracker.track(new Object(), BATCH_SIZE + i);
+    }
+
+    assertTrue(released.isEmpty());
+  }
+
+  /**
+   * Collects garbage until the given number of objects are unreferenced.
+   */
+  private void collect(int unreferenced) throws InterruptedException {
+    for (int i = 0; i < 100 && tracker.getUnreferencedCount() < unreferenced; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(unreferenced, tracker.getUnreferencedCount());
+  }
+
+  private Debugger releasingDebugger() {
+    return new Fake<Debugger>(Debugger.class) {
+      @SuppressWarnings("unchecked")
+      protected Object answer(String method, Object[] args) {
+        if (method.equals("releaseObjects")) {
+          released.add(Lists.newArrayList((List<Integer>) args[0]));
+        }
+        return null;
+      }
+    }.create();
+  }
+
+}
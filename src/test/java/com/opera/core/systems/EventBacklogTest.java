@@ -0,0 +1,176 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Ticker;
+
+import com.opera.core.systems.internal.EventBacklog;
+import com.opera.core.systems.internal.EventBacklog.Eviction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventBacklogTest {
+
+  private enum Type {
+    LOADED, IDLE, SHOWN
+  }
+
+  private static final Predicate<Object> ANY = Predicates.alwaysTrue();
+
+  private FakeTicker ticker;
+  private EventBacklog<Type, String> backlog;
+
+  @Before
+  public void beforeEach() {
+    ticker = new FakeTicker();
+    backlog = new EventBacklog<Type, String>(Type.class, 4, 10, TimeUnit.SECONDS, ticker);
+  }
+
+  @Test
+  public void takesEventsInOrder() {
+    backlog.add(Type.LOADED, "a");
+    backlog.add(Type.LOADED, "b");
+
+    assertEquals("a", backlog.take(Type.LOADED, ANY));
+    assertEquals("b", backlog.take(Type.LOADED, ANY));
+    assertNull(backlog.take(Type.LOADED, ANY));
+  }
+
+  @Test
+  public void takesFirstMatchingEventOfType() {
+    backlog.add(Type.LOADED, "a");
+    backlog.add(Type.SHOWN, "b");
+    backlog.add(Type.LOADED, "b");
+
+    assertEquals("b", backlog.take(Type.LOADED, Predicates.equalTo("b")));
+    assertEquals(1, backlog.size(Type.LOADED));
+    assertEquals(1, backlog.size(Type.SHOWN));
+  }
+
+  @Test
+  public void dropsOldestEventOfFullType() {
+    backlog.setPolicy(Type.LOADED, 2, Eviction.DROP_OLDEST);
+    backlog.add(Type.LOADED, "a");
+    backlog.add(Type.LOADED, "b");
+
+    assertTrue(backlog.add(Type.LOADED, "c"));
+    assertEquals("b", backlog.take(Type.LOADED, ANY));
+    assertEquals(1, backlog.getDropped(Type.LOADED));
+  }
+
+  @Test
+  public void dropsNewEventOfFullType() {
+    backlog.setPolicy(Type.IDLE, 1, Eviction.DROP_NEWEST);
+    backlog.add(Type.IDLE, "a");
+
+    assertFalse(backlog.add(Type.IDLE, "b"));
+    assertEquals("a", backlog.take(Type.IDLE, ANY));
+    assertEquals(1, backlog.getDropped(Type.IDLE));
+  }
+
+  @Test
+  public void dropsOldestEventOfAnyTypeWhenFull() {
+    backlog.add(Type.SHOWN, "a");
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    backlog.add(Type.LOADED, "b");
+    backlog.add(Type.LOADED, "c");
+    backlog.add(Type.IDLE, "d");
+    backlog.add(Type.IDLE, "e");
+
+    assertEquals(4, backlog.size());
+    assertEquals(0, backlog.size(Type.SHOWN));
+    assertEquals(1, backlog.getDropped(Type.SHOWN));
+    assertEquals(1, backlog.getDropped());
+  }
+
+  @Test
+  public void dropsEventsTooOld() {
+    backlog.add(Type.LOADED, "a");
+    ticker.advance(6, TimeUnit.SECONDS);
+    backlog.add(Type.LOADED, "b");
+    ticker.advance(6, TimeUnit.SECONDS);
+
+    assertEquals("b", backlog.take(Type.LOADED, ANY));
+    assertEquals(1, backlog.getDropped(Type.LOADED));
+  }
+
+  @Test
+  public void clearDoesNotCountAsDropped() {
+    backlog.add(Type.LOADED, "a");
+    backlog.add(Type.SHOWN, "b");
+    backlog.clear(Type.LOADED);
+
+    assertEquals(1, backlog.size());
+    assertEquals(0, backlog.getDropped());
+  }
+
+  @Test
+  public void millionEventsDoNotGrowHeap() {
+    EventBacklog<Type, byte[]> events =
+        new EventBacklog<Type, byte[]>(Type.class, 256, 1, TimeUnit.MINUTES);
+    events.setPolicy(Type.LOADED, 64, Eviction.DROP_OLDEST);
+    events.setPolicy(Type.IDLE, 1, Eviction.DROP_NEWEST);
+
+    long before = usedHeap();
+
+    Type[] types = Type.values();
+    for (int i = 0; i < 1000000; i++) {
+      events.add(types[i % types.length], new byte[64]);
+    }
+
+    long growth = usedHeap() - before;
+
+    assertEquals(64 + 1 + 191, events.size());
+    assertEquals(1000000 - events.size(), events.getDropped());
+    // A million events of this size would take up well over 64 MB if they were all kept
+    assertTrue("Heap grew by " + growth + " bytes", growth < 8 * 1024 * 1024);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static class FakeTicker extends Ticker {
+
+    private long nanos;
+
+    public void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+  }
+
+}
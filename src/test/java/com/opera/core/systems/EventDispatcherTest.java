@@ -0,0 +1,222 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import com.opera.core.systems.scope.protos.UmsProtos.Event;
+import com.opera.core.systems.scope.stp.EventDispatcher;
+import com.opera.core.systems.scope.stp.UmsEventParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventDispatcherTest {
+
+  private static final long TIMEOUT = 5000;
+  private static final List<String> SERVICES =
+      ImmutableList.of("window-manager", "console-logger", "ecmascript");
+
+  private ExecutorService executor;
+  private List<Integer> handled;
+  private CountDownLatch blocked;
+  private CountDownLatch release;
+
+  @Before
+  public void beforeEach() {
+    executor = Executors.newCachedThreadPool();
+    handled = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    blocked = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void afterEach() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void handlesEventsOfServiceInOrder() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(100);
+    EventDispatcher dispatcher = new EventDispatcher(parser(done), executor, 1000);
+
+    for (int i = 0; i < 100; i++) {
+      dispatch(dispatcher, "window-manager", i);
+    }
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int) handled.get(i));
+    }
+  }
+
+  @Test
+  public void handlesEventsOfAllServicesInOrder() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(90);
+    EventDispatcher dispatcher = new EventDispatcher(parser(done), executor, 1000);
+
+    for (int i = 0; i < 90; i++) {
+      dispatch(dispatcher, SERVICES.get(i % SERVICES.size()), i);
+    }
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 90; i++) {
+      assertEquals(i, (int) handled.get(i));
+    }
+  }
+
+  @Test
+  public void slowServiceHoldsUpLaterEvents() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    EventDispatcher dispatcher = new EventDispatcher(parser(done), executor, 1000);
+
+    dispatch(dispatcher, "console-logger", -1);
+    assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    dispatch(dispatcher, "window-manager", 1);
+
+    assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+    assertTrue(handled.isEmpty());
+
+    release.countDown();
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertEquals(ImmutableList.of(1), handled);
+  }
+
+  @Test
+  public void numbersEventsInOrderReceived() throws InterruptedException {
+    final List<Long> sequences = Collections.synchronizedList(Lists.<Long>newArrayList());
+    final CountDownLatch done = new CountDownLatch(3);
+    final EventDispatcher[] dispatcher = new EventDispatcher[1];
+    dispatcher[0] = new EventDispatcher(new UmsEventParser(null) {
+      @Override
+      public void handleEvent(int service, Event event) {
+        sequences.add(dispatcher[0].getSequence());
+        done.countDown();
+      }
+    }, executor, 1000);
+
+    for (int i = 0; i < 3; i++) {
+      dispatch(dispatcher[0], SERVICES.get(i), i);
+    }
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertEquals(ImmutableList.of(1L, 2L, 3L), sequences);
+    assertEquals(3, dispatcher[0].getDispatched());
+    assertEquals(-1, dispatcher[0].getSequence());
+  }
+
+  @Test
+  public void recordsLatencyPerEventType() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(3);
+    EventDispatcher dispatcher = new EventDispatcher(parser(done), executor, 1000);
+
+    dispatch(dispatcher, "window-manager", 1);
+    dispatch(dispatcher, "window-manager", 1);
+    dispatch(dispatcher, "ecmascript", 1);
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    // The latency is recorded right after the handler returns
+    awaitQueueDepth(dispatcher, 0);
+
+    assertNotNull(dispatcher.getHandlerLatency("window-manager", 1));
+    assertEquals(2, dispatcher.getHandlerLatency("window-manager", 1).getCount());
+    assertEquals(1, dispatcher.getHandlerLatency("ecmascript", 1).getCount());
+    assertEquals(2, dispatcher.getHandlerLatencies().size());
+  }
+
+  @Test
+  public void dropsEventsWithoutBlockingWhenQueueIsFull() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    EventDispatcher dispatcher = new EventDispatcher(parser(done), executor, 2);
+
+    dispatch(dispatcher, "console-logger", -1);
+    assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    dispatch(dispatcher, "console-logger", 1);
+    dispatch(dispatcher, "console-logger", 2);
+
+    assertEquals(1, dispatcher.getDroppedEvents());
+    assertEquals(2, dispatcher.getDispatched());
+
+    release.countDown();
+    assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    awaitQueueDepth(dispatcher, 0);
+    assertEquals(ImmutableList.of(1), handled);
+  }
+
+  /**
+   * Creates a parser recording the value of each event's payload.  An event with a negative value
+   * blocks its service until the test ends.
+   */
+  private UmsEventParser parser(final CountDownLatch done) {
+    return new UmsEventParser(null) {
+      @Override
+      public void handleEvent(int service, Event event) {
+        int value = event.getPayload().isEmpty() ? -1 : event.getPayload().byteAt(0);
+        if (value == 127) {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return;
+        }
+
+        handled.add(value);
+        done.countDown();
+      }
+    };
+  }
+
+  private static void awaitQueueDepth(EventDispatcher dispatcher, int depth)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (dispatcher.getQueueDepth() > depth && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static void dispatch(EventDispatcher dispatcher, String service, int value) {
+    dispatcher.dispatch(SERVICES.indexOf(service), event(service, value));
+  }
+
+  private static Event event(String service, int value) {
+    return Event.newBuilder()
+        .setService(service)
+        .setCommandID(1)
+        .setFormat(0)
+        .setPayload(ByteString.copyFrom(new byte[]{(byte) (value < 0 ? 127 : value)}))
+        .build();
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import com.opera.core.systems.scope.protos.UmsProtos.Event;
+import com.opera.core.systems.scope.stp.EventSubscriptions;
+import com.opera.core.systems.scope.stp.UmsEventParser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventSubscriptionsTest {
+
+  private EventSubscriptions subscriptions;
+
+  @Before
+  public void beforeEach() {
+    subscriptions = new EventSubscriptions();
+    subscriptions.bind(ImmutableList.of("stp-1", "window-manager", "ecmascript"));
+  }
+
+  @Test
+  public void acceptReturnsIndexOfService() {
+    subscriptions.subscribe("window-manager", 7);
+    subscriptions.subscribe("ecmascript", 5);
+
+    assertEquals(1, accept("window-manager", 7));
+    assertEquals(2, accept("ecmascript", 5));
+    assertEquals(0, subscriptions.getDropped());
+  }
+
+  @Test
+  public void acceptDropsUnsubscribedEvents() {
+    subscriptions.subscribe("window-manager", 7);
+
+    assertEquals(-1, accept("window-manager", 4));
+    assertEquals(-1, accept("ecmascript", 7));
+    assertEquals(2, subscriptions.getDropped());
+  }
+
+  @Test
+  public void acceptDropsEventsOfUnknownServices() {
+    subscriptions.subscribe("http-logger", 1);
+    assertEquals(-1, accept("http-logger", 1));
+  }
+
+  @Test
+  public void acceptReadsEnvelopeInAnyOrder() {
+    subscriptions.subscribe("ecmascript", 5);
+
+    // Payload first, then the command ID and service name
+    byte[] encoded = new byte[]{
+        0x42, 2, 0x08, 0x01,
+        0x10, 5,
+        0x0a, 10, 'e', 'c', 'm', 'a', 's', 'c', 'r', 'i', 'p', 't'
+    };
+    assertEquals(2, subscriptions.accept(encoded, 0, encoded.length));
+  }
+
+  @Test
+  public void acceptHonoursOffsetAndLength() {
+    subscriptions.subscribe("window-manager", 7);
+
+    byte[] event = encode("window-manager", 7);
+    byte[] buffer = new byte[event.length + 20];
+    System.arraycopy(event, 0, buffer, 10, event.length);
+
+    assertEquals(1, subscriptions.accept(buffer, 10, event.length));
+    assertEquals(-1, subscriptions.accept(buffer, 10, 5));
+  }
+
+  @Test
+  public void subscriptionsAreCounted() {
+    subscriptions.subscribe("window-manager", 7);
+    subscriptions.subscribe("window-manager", 7);
+
+    subscriptions.unsubscribe("window-manager", 7);
+    assertTrue(subscriptions.isSubscribed("window-manager", 7));
+    assertEquals(1, accept("window-manager", 7));
+
+    subscriptions.unsubscribe("window-manager", 7);
+    assertFalse(subscriptions.isSubscribed("window-manager", 7));
+    assertEquals(-1, accept("window-manager", 7));
+  }
+
+  @Test
+  public void subscriptionsBeforeBindingApplyAfterwards() {
+    EventSubscriptions unbound = new EventSubscriptions();
+    unbound.subscribe("ecmascript", 5);
+
+    byte[] event = encode("ecmascript", 5);
+    assertEquals(-1, unbound.accept(event, 0, event.length));
+
+    unbound.bind(ImmutableList.of("ecmascript"));
+    assertEquals(0, unbound.accept(event, 0, event.length));
+  }
+
+  @Test
+  public void parserSubscribesToHandledEvents() {
+    UmsEventParser.subscribe(subscriptions);
+
+    assertTrue(subscriptions.isSubscribed("window-manager", 7));
+    assertTrue(subscriptions.isSubscribed("ecmascript", 5));
+    assertFalse(subscriptions.isSubscribed("window-manager", 1));
+  }
+
+  @Test
+  public void parserLeavesFrequentEventsToWhoeverNeedsThem() {
+    UmsEventParser.subscribe(subscriptions);
+
+    assertFalse(subscriptions.isSubscribed("console-logger", 1));
+    assertFalse(subscriptions.isSubscribed("window-manager", 4));
+    assertFalse(subscriptions.isSubscribed("desktop-window-manager", 6));
+  }
+
+  @Test
+  public void consoleMessageIsDroppedUnparsedUntilSubscribed() {
+    subscriptions.bind(ImmutableList.of("stp-1", "window-manager", "console-logger"));
+    UmsEventParser.subscribe(subscriptions);
+
+    // The payload is not a valid console message, so it would fail if it were parsed
+    byte[] event = new byte[]{
+        0x0a, 14, 'c', 'o', 'n', 's', 'o', 'l', 'e', '-', 'l', 'o', 'g', 'g', 'e', 'r',
+        0x10, 1,
+        0x42, 3, (byte) 0xff, (byte) 0xff, (byte) 0xff
+    };
+
+    assertEquals(-1, subscriptions.accept(event, 0, event.length));
+    assertEquals(1, subscriptions.getDropped());
+
+    subscriptions.subscribe("console-logger", 1);
+    assertEquals(2, subscriptions.accept(event, 0, event.length));
+
+    subscriptions.unsubscribe("console-logger", 1);
+    assertEquals(-1, subscriptions.accept(event, 0, event.length));
+  }
+
+  private int accept(String service, int eventId) {
+    byte[] event = encode(service, eventId);
+    return subscriptions.accept(event, 0, event.length);
+  }
+
+  private static byte[] encode(String service, int eventId) {
+    return Event.newBuilder()
+        .setService(service)
+        .setCommandID(eventId)
+        .setFormat(0)
+        .setPayload(ByteString.copyFromUtf8("[1]"))
+        .build()
+        .toByteArray();
+  }
+
+}
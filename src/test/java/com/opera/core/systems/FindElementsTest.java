@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems;
 
+import com.google.common.collect.ImmutableMap;
+
 import com.opera.core.systems.testing.OperaDriverTestCase;
 
 import junit.framework.Assert;
@@ -187,6 +189,15 @@ public class FindElementsTest extends OperaDriverTestCase {
     }
   }
 
+  @Test
+  public void findingElementsDoesNotLeakVariablesIntoPage() {
+    driver.findElements(By.tagName("input"));
+    ((OperaDriver) driver).findAll(ImmutableMap.of("inputs", By.tagName("input")));
+
+    assertEquals(false, driver.executeScript(
+        "return 'root' in window || 'elements' in window || 'results' in window"));
+  }
+
   // Special characters
   @Test
   public void testFindsElementsWithSingleQuotes() {
@@ -0,0 +1,65 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.openqa.selenium.By;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.remote.RemoteWebElement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FoundElementsTest {
+
+  @Test
+  public void firstElementIsElement() {
+    WebElement first = new RemoteWebElement();
+    FoundElements found =
+        FoundElements.found(By.id("foo"), ImmutableList.of(first, new RemoteWebElement()));
+
+    assertTrue(found.isValid());
+    assertTrue(found.isFound());
+    assertEquals(2, found.getElements().size());
+    assertSame(first, found.getElement());
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void noElementIsNotFound() {
+    FoundElements found = FoundElements.found(By.id("foo"), ImmutableList.<WebElement>of());
+
+    assertTrue(found.isValid());
+    assertFalse(found.isFound());
+    found.getElement();
+  }
+
+  @Test(expected = InvalidSelectorException.class)
+  public void invalidLocatorHasNoElements() {
+    FoundElements found =
+        FoundElements.invalid(By.xpath("]"), new InvalidSelectorException("Invalid XPath"));
+
+    assertFalse(found.isValid());
+    found.getElements();
+  }
+
+}
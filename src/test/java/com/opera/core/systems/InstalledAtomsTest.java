@@ -0,0 +1,199 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+import com.opera.core.systems.scope.NavigationEpochs;
+import com.opera.core.systems.scope.exceptions.ScopeException;
+import com.opera.core.systems.scope.services.Debugger;
+import com.opera.core.systems.testing.Fake;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InstalledAtomsTest {
+
+  private NavigationEpochs epochs;
+  private FakeDebugger fake;
+  private InstalledAtoms atoms;
+
+  @Before
+  public void beforeEach() {
+    epochs = new NavigationEpochs();
+    fake = new FakeDebugger();
+    atoms = new InstalledAtoms(fake.create(), epochs);
+  }
+
+  @Test
+  public void installsAtomOnFirstUse() {
+    assertEquals("__webdriver_atoms.GET_TEXT", atoms.get(OperaAtom.GET_TEXT));
+    assertEquals(1, fake.scripts.size());
+    assertTrue(fake.scripts.get(0).contains(OperaAtom.GET_TEXT.getValue()));
+  }
+
+  @Test
+  public void usesInstalledAtomByName() {
+    atoms.get(OperaAtom.GET_TEXT);
+    atoms.get(OperaAtom.GET_TEXT);
+
+    assertEquals(1, fake.scripts.size());
+  }
+
+  @Test
+  public void installsAtomInEachRuntime() {
+    atoms.get(OperaAtom.GET_TEXT);
+    fake.runtimeId = 2;
+    atoms.get(OperaAtom.GET_TEXT);
+
+    assertEquals(2, fake.scripts.size());
+  }
+
+  @Test
+  public void reinstallsAtomWhenRuntimeIsRecreated() {
+    epochs.onRuntimeStarted(1, 1);
+    atoms.get(OperaAtom.GET_TEXT);
+
+    epochs.onRuntimeStopped(1);
+    atoms.get(OperaAtom.GET_TEXT);
+
+    assertEquals(2, fake.scripts.size());
+  }
+
+  @Test
+  public void sendsAtomInFullIfInstallingFails() {
+    fake.fail = true;
+    assertEquals(OperaAtom.GET_TEXT.getValue(), atoms.get(OperaAtom.GET_TEXT));
+
+    fake.fail = false;
+    assertEquals("__webdriver_atoms.GET_TEXT", atoms.get(OperaAtom.GET_TEXT));
+  }
+
+  @Test
+  public void reinstallsLostAtomsAndRetries() {
+    String script = "return " + atoms.get(OperaAtom.GET_TEXT) + "(locator)";
+    fake.lost = true;
+    Page page = new Page(1);
+
+    assertEquals("text", atoms.run(script, page));
+    assertEquals(2, page.runs);
+    assertEquals(2, fake.scripts.size());
+    assertFalse(fake.lost);
+  }
+
+  @Test(expected = WebDriverException.class)
+  public void doesNotRetryIfAtomsAreInPlace() {
+    String script = "return " + atoms.get(OperaAtom.GET_TEXT) + "(locator)";
+    Page page = new Page(1);
+
+    try {
+      atoms.run(script, page);
+    } finally {
+      assertEquals(1, page.runs);
+      assertEquals(1, fake.scripts.size());
+    }
+  }
+
+  @Test(expected = WebDriverException.class)
+  public void doesNotRetryScriptsWithoutAtoms() {
+    fake.lost = true;
+    Page page = new Page(1);
+
+    try {
+      atoms.run("return foo()", page);
+    } finally {
+      assertEquals(1, page.runs);
+      assertEquals(0, fake.probes);
+    }
+  }
+
+  @Test(expected = WebDriverException.class)
+  public void retriesOnlyOnce() {
+    String script = "return " + atoms.get(OperaAtom.GET_TEXT) + "(locator)";
+    fake.lost = true;
+    Page page = new Page(2);
+
+    try {
+      atoms.run(script, page);
+    } finally {
+      assertEquals(2, page.runs);
+    }
+  }
+
+  /**
+   * Fails the first given number of times it is run.
+   */
+  private static class Page implements Function<String, String> {
+
+    private final int failures;
+    private int runs;
+
+    public Page(int failures) {
+      this.failures = failures;
+    }
+
+    public String apply(String script) {
+      if (runs++ < failures) {
+        throw new ScopeException("EcmaScript exception");
+      }
+      return "text";
+    }
+
+  }
+
+  private static class FakeDebugger extends Fake<Debugger> {
+
+    private final List<String> scripts = Lists.newArrayList();
+    private int runtimeId = 1;
+    private boolean fail;
+    private boolean lost;
+    private int probes;
+
+    public FakeDebugger() {
+      super(Debugger.class);
+    }
+
+    protected Object answer(String method, Object[] args) {
+      if (method.equals("getRuntimeId")) {
+        return runtimeId;
+      } else if (method.equals("executeScript")) {
+        if (fail) {
+          throw new ScopeException("EcmaScript exception");
+        }
+        String script = (String) args[0];
+        if (script.startsWith("!!window.")) {
+          probes++;
+          return !lost;
+        }
+        scripts.add(script);
+        lost = false;
+        return true;
+      }
+      throw new UnsupportedOperationException(method);
+    }
+
+  }
+
+}
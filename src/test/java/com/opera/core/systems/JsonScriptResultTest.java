@@ -0,0 +1,80 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import com.opera.core.systems.scope.JsonScriptResult;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonScriptResultTest {
+
+  private static final List<Object> NO_ELEMENTS = ImmutableList.of();
+
+  @Test
+  public void decodesString() {
+    assertEquals("a \"quoted\" string", JsonScriptResult.decode("\"a \\\"quoted\\\" string\"",
+                                                                NO_ELEMENTS));
+  }
+
+  @Test
+  public void decodesArraysAsLists() {
+    assertEquals(Arrays.<Object>asList("a", 1.0, true, null),
+                 JsonScriptResult.decode("[\"a\",1,true,null]", NO_ELEMENTS));
+  }
+
+  @Test
+  public void decodesObjectsAsMaps() {
+    Object result = JsonScriptResult.decode("{\"a\":{\"b\":[2]}}", NO_ELEMENTS);
+
+    assertTrue(result instanceof Map);
+    assertEquals(ImmutableMap.of("a", ImmutableMap.of("b", ImmutableList.of(2.0))), result);
+  }
+
+  @Test
+  public void replacesPlaceholdersWithElements() {
+    Object result = JsonScriptResult.decode(
+        "[{\"__webdriver_element\":1},{\"el\":{\"__webdriver_element\":0}}]",
+        ImmutableList.<Object>of("first", "second"));
+
+    assertEquals(ImmutableList.of("second", ImmutableMap.of("el", "first")), result);
+  }
+
+  @Test
+  public void keepsObjectsThatOnlyLookLikePlaceholders() {
+    Object result = JsonScriptResult.decode("{\"__webdriver_element\":0,\"other\":1}",
+                                            NO_ELEMENTS);
+
+    assertEquals(ImmutableMap.of("__webdriver_element", 0.0, "other", 1.0), result);
+  }
+
+  @Test
+  public void decodesNull() {
+    assertNull(JsonScriptResult.decode("null", NO_ELEMENTS));
+  }
+
+}
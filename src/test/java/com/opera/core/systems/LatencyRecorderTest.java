@@ -0,0 +1,88 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.internal.LatencyRecorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyRecorderTest {
+
+  private LatencyRecorder recorder;
+
+  @Before
+  public void beforeEach() {
+    recorder = new LatencyRecorder();
+  }
+
+  @Test
+  public void isEmptyByDefault() {
+    assertEquals(0, recorder.getCount());
+    assertEquals(0, recorder.getMean());
+    assertEquals(0, recorder.getMax());
+    assertEquals(0, recorder.getPercentile(0.99));
+  }
+
+  @Test
+  public void recordsCountMeanAndMax() {
+    recorder.record(100);
+    recorder.record(300);
+
+    assertEquals(2, recorder.getCount());
+    assertEquals(400, recorder.getTotal());
+    assertEquals(200, recorder.getMean());
+    assertEquals(300, recorder.getMax());
+  }
+
+  @Test
+  public void estimatesPercentilesWithinFactorOfTwo() {
+    for (int i = 0; i < 99; i++) {
+      recorder.record(1000);
+    }
+    recorder.record(1000000);
+
+    long median = recorder.getPercentile(0.5);
+    assertTrue(median >= 1000 && median < 2000);
+    assertEquals(1000000, recorder.getPercentile(1));
+  }
+
+  @Test
+  public void countsNegativeSamplesAsZero() {
+    recorder.record(-5);
+    assertEquals(1, recorder.getCount());
+    assertEquals(0, recorder.getMax());
+  }
+
+  @Test
+  public void resetDiscardsSamples() {
+    recorder.record(10);
+    recorder.reset();
+    assertEquals(0, recorder.getCount());
+    assertEquals(0, recorder.getPercentile(0.5));
+  }
+
+  @Test
+  public void stringRepresentation() {
+    assertNotNull(recorder.toString());
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.NavigationEpochs;
+import com.opera.core.systems.scope.services.Debugger;
+import com.opera.core.systems.testing.Fake;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.By;
+import org.openqa.selenium.support.pagefactory.ByChained;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocatorCompilerTest {
+
+  private InstalledAtoms atoms;
+
+  @Before
+  public void beforeEach() {
+    Debugger debugger = new Fake<Debugger>(Debugger.class) {
+      protected Object answer(String method, Object[] args) {
+        if (method.equals("executeScript")) {
+          return true;
+        } else if (method.equals("getRuntimeId")) {
+          return 1;
+        }
+        return null;
+      }
+    }.create();
+    atoms = new InstalledAtoms(debugger, new NavigationEpochs());
+  }
+
+  @Test
+  public void idIsFoundNatively() {
+    String script = LocatorCompiler.compile("id", "foo", false, atoms);
+    assertTrue(script.contains("document.getElementById(\"foo\")"));
+    assertFalse(script.contains(OperaAtom.FIND_ELEMENT.name()));
+  }
+
+  @Test
+  public void cssSelectorIsFoundNatively() {
+    assertTrue(LocatorCompiler.compile("css selector", "div > p", false, atoms)
+                   .contains("root.querySelector(\"div > p\")"));
+    assertTrue(LocatorCompiler.compile("css selector", "div > p", true, atoms)
+                   .contains("root.querySelectorAll(\"div > p\")"));
+  }
+
+  @Test
+  public void compoundClassNameIsLeftToAtom() {
+    assertFalse(LocatorCompiler.compile("class name", "foo", false, atoms)
+                    .contains(OperaAtom.FIND_ELEMENT.name()));
+    assertTrue(LocatorCompiler.compile("class name", "foo bar", false, atoms)
+                   .contains(OperaAtom.FIND_ELEMENT.name()));
+  }
+
+  @Test
+  public void linkTextIsLeftToAtom() {
+    assertTrue(LocatorCompiler.compile("link text", "foo", true, atoms)
+                   .contains(OperaAtom.FIND_ELEMENTS.name() + "({\"link text\": \"foo\"}"));
+  }
+
+  @Test
+  public void errorOfLostAtomIsNotTakenForInvalidLocator() {
+    assertTrue(LocatorCompiler.compile("link text", "foo", false, atoms)
+                   .contains("if (!(" + InstalledAtoms.probeScript(
+                       Arrays.asList(OperaAtom.FIND_ELEMENT)) + ")) { throw e; }"));
+    assertFalse(LocatorCompiler.compile("css selector", "p", false, atoms).contains("throw e;"));
+  }
+
+  @Test
+  public void xpathExpressionIsCachedInPage() {
+    String script = LocatorCompiler.compile("xpath", "//p", false, atoms);
+    assertTrue(script.contains(LocatorCompiler.XPATH_CACHE_PROPERTY));
+    assertTrue(script.contains("createExpression(\"//p\""));
+  }
+
+  @Test
+  public void singleElementIsCheckedForStaleness() {
+    assertTrue(LocatorCompiler.compile("tag name", "p", false, atoms)
+                   .contains("return r.parentNode ? r : false;"));
+  }
+
+  @Test
+  public void quotesInLocatorAreEscaped() {
+    String script = LocatorCompiler.compile("name", "a\"b", false, atoms);
+    assertTrue(script.contains("root.querySelector(\"[name=\\\"a\\\\\\\"b\\\"]\")"));
+  }
+
+  @Test
+  public void describesStandardLocators() {
+    assertArrayEquals(new String[]{"id", "foo"}, LocatorCompiler.describe(By.id("foo")));
+    assertArrayEquals(new String[]{"css selector", "p"},
+                      LocatorCompiler.describe(By.cssSelector("p")));
+    assertArrayEquals(new String[]{"partial link text", "foo"},
+                      LocatorCompiler.describe(By.partialLinkText("foo")));
+  }
+
+  @Test
+  public void chainedLocatorIsNotDescribed() {
+    assertNull(LocatorCompiler.describe(new ByChained(By.id("foo"), By.tagName("p"))));
+  }
+
+  @Test
+  public void batchRunsEachScriptWithRoot() {
+    String script = LocatorCompiler.compileBatch(Arrays.asList("return 1;", "return 2;"));
+    assertEquals("var root = arguments[0], results = [];\n"
+                 + "results.push((function() {\nreturn 1;\n})(root));\n"
+                 + "results.push((function() {\nreturn 2;\n})(root));\n"
+                 + "return results;", script);
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.NavigationEpochs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NavigationEpochsTest {
+
+  private NavigationEpochs epochs;
+
+  @Before
+  public void beforeEach() {
+    epochs = new NavigationEpochs();
+  }
+
+  @Test
+  public void unknownWindowKeepsItsEpoch() {
+    long epoch = epochs.getWindowEpoch(1);
+    assertEquals(epoch, epochs.getWindowEpoch(1));
+  }
+
+  @Test
+  public void windowLoadedAdvancesOnlyThatWindow() {
+    long first = epochs.getWindowEpoch(1);
+    long second = epochs.getWindowEpoch(2);
+
+    epochs.onWindowLoaded(1);
+
+    assertTrue(epochs.getWindowEpoch(1) > first);
+    assertEquals(second, epochs.getWindowEpoch(2));
+  }
+
+  @Test
+  public void runtimeEventsAdvanceTheirWindow() {
+    epochs.onRuntimeStarted(10, 1);
+    long started = epochs.getWindowEpoch(1);
+
+    epochs.onReadyStateChanged(10);
+    long ready = epochs.getWindowEpoch(1);
+    assertTrue(ready > started);
+
+    epochs.onRuntimeStopped(10);
+    assertTrue(epochs.getWindowEpoch(1) > ready);
+  }
+
+  @Test
+  public void runtimeEpochChangesWhenRuntimeStops() {
+    epochs.onRuntimeStarted(10, 1);
+    long epoch = epochs.getRuntimeEpoch(10);
+
+    epochs.onReadyStateChanged(10);
+    epochs.onWindowLoaded(1);
+    assertEquals(epoch, epochs.getRuntimeEpoch(10));
+
+    epochs.onRuntimeStopped(10);
+    assertTrue(epochs.getRuntimeEpoch(10) > epoch);
+  }
+
+  @Test
+  public void runtimeSeenBeforeConnectingChangesWhenItStops() {
+    epochs.onWindowLoaded(1);
+    long epoch = epochs.getRuntimeEpoch(10);
+
+    epochs.onRuntimeStopped(10);
+
+    assertTrue(epochs.getRuntimeEpoch(10) > epoch);
+  }
+
+  @Test
+  public void closedWindowNeverReturnsToEarlierEpoch() {
+    epochs.onWindowLoaded(1);
+    long loaded = epochs.getWindowEpoch(1);
+
+    epochs.onWindowClosed(1);
+
+    assertTrue(epochs.getWindowEpoch(1) > loaded);
+  }
+
+  @Test
+  public void settlesWhenIdleAfterNavigation() {
+    epochs.onWindowLoaded(1);
+    assertFalse(epochs.isSettled());
+
+    epochs.onOperaIdle();
+    assertTrue(epochs.isSettled());
+
+    epochs.onReadyStateChanged(10);
+    assertFalse(epochs.isSettled());
+  }
+
+}
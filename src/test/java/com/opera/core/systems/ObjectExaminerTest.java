@@ -0,0 +1,138 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.opera.core.systems.scope.ObjectExaminer;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ObjectExaminerTest {
+
+  private final Map<Integer, ObjectExaminer.ExaminedObject> objects = Maps.newHashMap();
+  private final List<List<Integer>> commands = Lists.newArrayList();
+
+  @Test
+  public void examinesEachLevelInOneCommand() {
+    ObjectExaminer.ExaminedObject array = add(1, "Array");
+    for (int i = 0; i < 500; i++) {
+      array.addReference(String.valueOf(i), 100 + i);
+      add(100 + i, "Object").addValue("index", (double) i);
+    }
+    array.addValue("length", 500.0);
+
+    List<?> result = (List<?>) examiner(32, 10000).resolve(1);
+
+    assertEquals(500, result.size());
+    assertEquals(ImmutableMap.of("index", 499.0), result.get(499));
+    assertEquals(2, commands.size());
+    assertEquals(500, commands.get(1).size());
+  }
+
+  @Test
+  public void resolvesNestedObjects() {
+    ObjectExaminer.ExaminedObject root = add(1, "Object");
+    root.addValue("name", "root");
+    root.addReference("child", 2);
+    add(2, "Array").addValue("0", true);
+
+    assertEquals(ImmutableMap.of("name", "root", "child", ImmutableList.of(true)),
+                 examiner(32, 10000).resolve(1));
+  }
+
+  @Test
+  public void cyclesAreNull() {
+    add(1, "Object").addReference("self", 1);
+
+    Map<?, ?> result = (Map<?, ?>) examiner(32, 10000).resolve(1);
+
+    assertEquals(1, result.size());
+    assertNull(result.get("self"));
+  }
+
+  @Test
+  public void elementsAreCreated() {
+    add(1, "Array").addReference("0", 2);
+    add(2, "HTMLDivElement").addReference("parentNode", 3);
+
+    assertEquals(ImmutableList.of("element 2"), examiner(32, 10000).resolve(1));
+    assertEquals(2, commands.size());
+  }
+
+  @Test
+  public void objectsDeeperThanLimitAreNull() {
+    add(1, "Object").addReference("a", 2);
+    add(2, "Object").addReference("b", 3);
+    add(3, "Object").addValue("c", "deep");
+
+    Map<?, ?> result = (Map<?, ?>) examiner(2, 10000).resolve(1);
+
+    Map<?, ?> child = (Map<?, ?>) result.get("a");
+    assertEquals(1, child.size());
+    assertNull(child.get("b"));
+    assertEquals(2, commands.size());
+  }
+
+  @Test
+  public void objectsBeyondLimitAreNull() {
+    ObjectExaminer.ExaminedObject array = add(1, "Array");
+    for (int i = 0; i < 5; i++) {
+      array.addReference(String.valueOf(i), 100 + i);
+      add(100 + i, "Object");
+    }
+
+    List<?> result = (List<?>) examiner(32, 3).resolve(1);
+
+    assertEquals(5, result.size());
+    assertEquals(ImmutableMap.of(), result.get(1));
+    assertNull(result.get(2));
+  }
+
+  private ObjectExaminer.ExaminedObject add(int objectId, String className) {
+    ObjectExaminer.ExaminedObject object = new ObjectExaminer.ExaminedObject(objectId, className);
+    objects.put(objectId, object);
+    return object;
+  }
+
+  private ObjectExaminer examiner(int maxDepth, int maxObjects) {
+    return new ObjectExaminer(maxDepth, maxObjects) {
+      protected List<ExaminedObject> examine(List<Integer> objectIds) {
+        commands.add(objectIds);
+        List<ExaminedObject> examined = Lists.newArrayList();
+        for (Integer objectId : objectIds) {
+          examined.add(objects.get(objectId));
+        }
+        return examined;
+      }
+
+      protected Object createElement(int objectId) {
+        return "element " + objectId;
+      }
+    };
+  }
+
+}
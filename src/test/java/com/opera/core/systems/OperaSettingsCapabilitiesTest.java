@@ -39,6 +39,8 @@ import static com.opera.core.systems.OperaSettings.Capability.ARGUMENTS;
 import static com.opera.core.systems.OperaSettings.Capability.AUTOSTART;
 import static com.opera.core.systems.OperaSettings.Capability.BACKEND;
 import static com.opera.core.systems.OperaSettings.Capability.BINARY;
+import static com.opera.core.systems.OperaSettings.Capability.BROWSER_LOGS;
+import static com.opera.core.systems.OperaSettings.Capability.CACHE_TAG_NAMES;
 import static com.opera.core.systems.OperaSettings.Capability.DETACH;
 import static com.opera.core.systems.OperaSettings.Capability.DISPLAY;
 import static com.opera.core.systems.OperaSettings.Capability.HOST;
@@ -48,11 +50,13 @@ import static com.opera.core.systems.OperaSettings.Capability.LOGGING_LEVEL;
 import static com.opera.core.systems.OperaSettings.Capability.NO_QUIT;
 import static com.opera.core.systems.OperaSettings.Capability.NO_RESTART;
 import static com.opera.core.systems.OperaSettings.Capability.OPERAIDLE;
+import static com.opera.core.systems.OperaSettings.Capability.PIPELINED_STARTUP;
 import static com.opera.core.systems.OperaSettings.Capability.PORT;
 import static com.opera.core.systems.OperaSettings.Capability.PRODUCT;
 import static com.opera.core.systems.OperaSettings.Capability.PROFILE;
 import static com.opera.core.systems.OperaSettings.Capability.PROXY;
 import static com.opera.core.systems.OperaSettings.Capability.RUNNER;
+import static com.opera.core.systems.OperaSettings.Capability.SHARED_SOCKET_MONITOR;
 import static com.opera.core.systems.internal.OperaDefaults.SERVER_DEFAULT_PORT;
 import static com.opera.core.systems.internal.OperaDefaults.SERVER_DEFAULT_PORT_IDENTIFIER;
 import static com.opera.core.systems.internal.OperaDefaults.SERVER_RANDOM_PORT_IDENTIFIER;
@@ -545,6 +549,50 @@ public class OperaSettingsCapabilitiesTest extends OperaDriverTestCase {
     assertTrue((Boolean) NO_QUIT.sanitize(1));
   }
 
+  @Test
+  public void sharedSocketMonitorHasFalseAsDefaultValue() {
+    assertTrue(SHARED_SOCKET_MONITOR.getDefaultValue() instanceof Boolean);
+    assertFalse((Boolean) SHARED_SOCKET_MONITOR.getDefaultValue());
+  }
+
+  @Test
+  public void sharedSocketMonitorSanitizeString() {
+    assertTrue((Boolean) SHARED_SOCKET_MONITOR.sanitize("true"));
+  }
+
+  @Test
+  public void pipelinedStartupHasFalseAsDefaultValue() {
+    assertTrue(PIPELINED_STARTUP.getDefaultValue() instanceof Boolean);
+    assertFalse((Boolean) PIPELINED_STARTUP.getDefaultValue());
+  }
+
+  @Test
+  public void pipelinedStartupSanitizeString() {
+    assertTrue((Boolean) PIPELINED_STARTUP.sanitize("true"));
+  }
+
+  @Test
+  public void browserLogsHasTrueAsDefaultValue() {
+    assertTrue(BROWSER_LOGS.getDefaultValue() instanceof Boolean);
+    assertTrue((Boolean) BROWSER_LOGS.getDefaultValue());
+  }
+
+  @Test
+  public void browserLogsSanitizeString() {
+    assertFalse((Boolean) BROWSER_LOGS.sanitize("false"));
+  }
+
+  @Test
+  public void cacheTagNamesHasFalseAsDefaultValue() {
+    assertTrue(CACHE_TAG_NAMES.getDefaultValue() instanceof Boolean);
+    assertFalse((Boolean) CACHE_TAG_NAMES.getDefaultValue());
+  }
+
+  @Test
+  public void cacheTagNamesSanitizeString() {
+    assertTrue((Boolean) CACHE_TAG_NAMES.sanitize("true"));
+  }
+
   @Test
   public void detachHasFalseAsDefaultValue() {
     assertTrue(DETACH.getDefaultValue() instanceof Boolean);
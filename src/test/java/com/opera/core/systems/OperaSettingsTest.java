@@ -376,6 +376,50 @@ public class OperaSettingsTest extends OperaDriverTestCase {
     assertTrue(settings.hasDetach());
   }
 
+  @Test
+  public void sharedSocketMonitorIsFalse() {
+    assertFalse(settings.useSharedSocketMonitor());
+  }
+
+  @Test
+  public void sharedSocketMonitorCanBeSet() {
+    settings.setSharedSocketMonitor(true);
+    assertTrue(settings.useSharedSocketMonitor());
+  }
+
+  @Test
+  public void pipelinedStartupIsFalse() {
+    assertFalse(settings.usePipelinedStartup());
+  }
+
+  @Test
+  public void pipelinedStartupCanBeSet() {
+    settings.setPipelinedStartup(true);
+    assertTrue(settings.usePipelinedStartup());
+  }
+
+  @Test
+  public void browserLogsAreCollected() {
+    assertTrue(settings.collectBrowserLogs());
+  }
+
+  @Test
+  public void browserLogsCanBeSet() {
+    settings.setBrowserLogs(false);
+    assertFalse(settings.collectBrowserLogs());
+  }
+
+  @Test
+  public void tagNamesAreNotCached() {
+    assertFalse(settings.cacheTagNames());
+  }
+
+  @Test
+  public void cacheTagNamesCanBeSet() {
+    settings.setCacheTagNames(true);
+    assertTrue(settings.cacheTagNames());
+  }
+
   @Test
   public void productIsDesktop() {
     assertEquals(DESKTOP, settings.getProduct());
@@ -0,0 +1,101 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PropertyTableTest {
+
+  private static final List<ElementProperty> COLUMNS =
+      ImmutableList.of(ElementProperty.text(), ElementProperty.attribute("href").within("a"));
+
+  @Test
+  public void scriptKeepsItsVariablesInFunction() {
+    String script =
+        PropertyTable.compile("arguments[0]", ImmutableList.<ElementProperty>of(), null);
+
+    assertTrue(script.startsWith("return (function(rows) {\n"));
+    assertTrue(script.endsWith("\n})(arguments[0]);"));
+  }
+
+  @Test
+  public void decodesCellsRowByRow() {
+    PropertyTable table = PropertyTable.decode("2;3:one3:two5:three4:four", COLUMNS);
+
+    assertEquals(2, table.getRowCount());
+    assertEquals("one", table.get(0, 0));
+    assertEquals("two", table.get(0, 1));
+    assertEquals("three", table.get(1, 0));
+    assertEquals("four", table.get(1, 1));
+  }
+
+  @Test
+  public void valuesMayHoldSeparators() {
+    PropertyTable table = PropertyTable.decode("1;4:a;1:3:-:-", COLUMNS);
+
+    assertEquals("a;1:", table.get(0, 0));
+    assertEquals("-:-", table.get(0, 1));
+  }
+
+  @Test
+  public void dashIsNoValue() {
+    PropertyTable table = PropertyTable.decode("1;0:-", COLUMNS);
+
+    assertEquals("", table.get(0, 0));
+    assertNull(table.get(0, 1));
+  }
+
+  @Test(expected = InvalidSelectorException.class)
+  public void errorIsInvalidSelector() {
+    PropertyTable.decode("EUnknown pseudo-class", COLUMNS);
+  }
+
+  @Test(expected = WebDriverException.class)
+  public void truncatedTableIsMalformed() {
+    PropertyTable.decode("2;3:one3:two", COLUMNS);
+  }
+
+  @Test
+  public void colorsAreConvertedToRgba() {
+    PropertyTable table = PropertyTable.decode(
+        "1;14:rgb(0, 128, 0)", ImmutableList.of(ElementProperty.cssValue("color")));
+
+    assertEquals("rgba(0, 128, 0, 1)", table.get(0, 0));
+  }
+
+  @Test
+  public void rectIsLocationAndSize() {
+    PropertyTable table =
+        PropertyTable.decode("1;13:10,20.4,30,40", ImmutableList.of(ElementProperty.rect()));
+
+    assertEquals(new Point(10, 20), table.getLocation(0, 0));
+    assertEquals(new Dimension(30, 40), table.getSize(0, 0));
+  }
+
+}
@@ -0,0 +1,163 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import com.opera.core.systems.scope.RuntimeRegistry;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RuntimeRegistryTest {
+
+  private RuntimeRegistry<Runtime> registry;
+
+  @Before
+  public void beforeEach() {
+    registry = new RuntimeRegistry<Runtime>() {
+      protected int getRuntimeId(Runtime runtime) {
+        return runtime.getRuntimeID();
+      }
+
+      protected int getWindowId(Runtime runtime) {
+        return runtime.getWindowID();
+      }
+
+      protected String getFramePath(Runtime runtime) {
+        return runtime.getHtmlFramePath();
+      }
+    };
+  }
+
+  @Test
+  public void isOutOfSyncUntilReplaced() {
+    assertTrue(registry.isOutOfSync());
+
+    registry.replaceAll(ImmutableList.of(runtime(1, 1, "_top")));
+    assertFalse(registry.isOutOfSync());
+
+    registry.invalidate();
+    assertTrue(registry.isOutOfSync());
+    assertEquals(1, registry.get(1, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void findsRuntimeByWindowAndFramePath() {
+    Runtime top = runtime(1, 1, "_top");
+    Runtime frame = runtime(2, 1, "_top/frame[0]");
+    registry.put(top);
+    registry.put(frame);
+    registry.put(runtime(3, 2, "_top"));
+
+    assertSame(top, registry.get(1, "_top"));
+    assertSame(frame, registry.get(1, "_top/frame[0]"));
+    assertSame(frame, registry.get(2));
+    assertEquals(2, registry.getWindow(1).size());
+    assertNull(registry.get(3, "_top"));
+  }
+
+  @Test
+  public void newRuntimeReplacesOldInSameFrame() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top"));
+
+    assertEquals(2, registry.get(1, "_top").getRuntimeID());
+    assertNull(registry.get(1));
+  }
+
+  @Test
+  public void removingReplacedRuntimeKeepsItsSuccessor() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top"));
+
+    registry.remove(1);
+
+    assertEquals(2, registry.get(1, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void loadedDocumentReplacesRuntimesFrameByFrame() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top/frame[0]"));
+
+    registry.put(runtime(3, 1, "_top"));
+    registry.remove(1);
+    registry.remove(2);
+
+    assertEquals(3, registry.get(1, "_top").getRuntimeID());
+    assertEquals(1, registry.getWindow(1).size());
+  }
+
+  @Test
+  public void removesRuntime() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.remove(1);
+
+    assertNull(registry.get(1, "_top"));
+    assertTrue(registry.isEmpty());
+  }
+
+  @Test
+  public void removesWindow() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top/frame[0]"));
+    registry.put(runtime(3, 2, "_top"));
+
+    registry.removeWindow(1);
+
+    assertTrue(registry.getWindow(1).isEmpty());
+    assertNull(registry.get(2));
+    assertEquals(3, registry.get(2, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void replacingForgetsUnlistedRuntimes() {
+    registry.put(runtime(1, 1, "_top"));
+    registry.replaceAll(ImmutableList.of(runtime(2, 2, "_top")));
+
+    assertNull(registry.get(1));
+    assertEquals(2, registry.get(2, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void clearingForgetsEverything() {
+    registry.replaceAll(ImmutableList.of(runtime(1, 1, "_top")));
+    registry.clear();
+
+    assertTrue(registry.isEmpty());
+    assertTrue(registry.isOutOfSync());
+  }
+
+  private static Runtime runtime(int runtimeId, int windowId, String framePath) {
+    return Runtime.newBuilder()
+        .setRuntimeID(runtimeId)
+        .setWindowID(windowId)
+        .setHtmlFramePath(framePath)
+        .setObjectID(0)
+        .setUri("")
+        .build();
+  }
+
+}
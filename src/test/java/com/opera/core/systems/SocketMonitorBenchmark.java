@@ -0,0 +1,119 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.internal.SocketListener;
+import com.opera.core.systems.internal.SocketMonitor;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast several threads can queue interest changes on a {@link SocketMonitor} while
+ * another thread polls it, which is what happens when many threads send commands over the same
+ * connection.  Reports the number of changes per second and how many times the selector had to be
+ * woken up.
+ *
+ * Run with <code>java -cp ... com.opera.core.systems.SocketMonitorBenchmark [threads] [changes per
+ * thread]</code>.
+ */
+public class SocketMonitorBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int changes = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    // Warm up
+    run(threads, changes / 10);
+
+    for (int producers = 1; producers <= threads; producers *= 2) {
+      run(producers, changes);
+    }
+  }
+
+  private static void run(int producers, final int changes) throws Exception {
+    final SocketMonitor monitor = new SocketMonitor();
+    final Pipe pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+
+    final SocketListener listener = new SocketListener() {
+      public boolean canRead(SelectableChannel channel) {
+        return true;
+      }
+
+      public boolean canWrite(SelectableChannel channel) {
+        return false;
+      }
+    };
+
+    monitor.add(pipe.source(), listener, SelectionKey.OP_READ);
+
+    Thread poller = new Thread(new Runnable() {
+      public void run() {
+        while (monitor.poll(TimeUnit.SECONDS.toMillis(1))) {
+          // Keep polling until the monitor is stopped
+        }
+      }
+    });
+    poller.start();
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(producers);
+
+    for (int i = 0; i < producers; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < changes; j++) {
+              monitor.modify(pipe.source(), listener, SelectionKey.OP_READ);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+
+    monitor.stop();
+    poller.join();
+    close(pipe);
+
+    long total = (long) producers * changes;
+    System.out.println(String.format(
+        "%2d producer(s)  %12.0f changes/s  %8d wakeups  %6.3f wakeups/change",
+        producers, total / (elapsed / 1e9), monitor.getWakeups(),
+        (double) monitor.getWakeups() / total));
+  }
+
+  private static void close(Pipe pipe) throws IOException {
+    pipe.source().close();
+    pipe.sink().close();
+  }
+
+}
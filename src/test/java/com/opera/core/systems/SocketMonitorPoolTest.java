@@ -0,0 +1,146 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.internal.SocketListener;
+import com.opera.core.systems.internal.SocketMonitor;
+import com.opera.core.systems.internal.SocketMonitorPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SocketMonitorPoolTest {
+
+  private SocketMonitorPool pool;
+
+  @Before
+  public void beforeEach() {
+    pool = new SocketMonitorPool(2);
+  }
+
+  @Test
+  public void assignsMonitorsRoundRobin() {
+    SocketMonitor first = pool.acquire();
+    SocketMonitor second = pool.acquire();
+    SocketMonitor third = pool.acquire();
+
+    assertNotSame(first, second);
+    assertSame(first, third);
+    assertEquals(3, pool.getSessions());
+
+    release(first, second, third);
+  }
+
+  @Test
+  public void stopsMonitorsWhenLastSessionIsReleased() {
+    SocketMonitor first = pool.acquire();
+    SocketMonitor second = pool.acquire();
+
+    pool.release(first);
+    assertTrue(second.isOpen());
+
+    pool.release(second);
+    assertFalse(first.isOpen());
+    assertFalse(second.isOpen());
+    assertEquals(0, pool.getSessions());
+  }
+
+  @Test
+  public void restartsAfterBeingStopped() {
+    SocketMonitor monitor = pool.acquire();
+    pool.release(monitor);
+
+    SocketMonitor restarted = pool.acquire();
+    assertNotSame(monitor, restarted);
+    assertTrue(restarted.isOpen());
+
+    pool.release(restarted);
+  }
+
+  @Test
+  public void failingListenerDoesNotStopOtherSessions() throws IOException, InterruptedException {
+    pool = new SocketMonitorPool(1);
+    SocketMonitor failing = pool.acquire();
+    SocketMonitor working = pool.acquire();
+    assertSame(failing, working);
+
+    final CountDownLatch read = new CountDownLatch(1);
+    Pipe broken = open(failing, new SocketListener() {
+      public boolean canRead(SelectableChannel channel) {
+        throw new IllegalStateException("Listener failed");
+      }
+
+      public boolean canWrite(SelectableChannel channel) {
+        return false;
+      }
+    });
+    Pipe fine = open(working, new SocketListener() {
+      public boolean canRead(SelectableChannel channel) throws IOException {
+        ((ReadableByteChannel) channel).read(ByteBuffer.allocate(1));
+        read.countDown();
+        return true;
+      }
+
+      public boolean canWrite(SelectableChannel channel) {
+        return false;
+      }
+    });
+
+    broken.sink().write(ByteBuffer.wrap(new byte[]{1}));
+    Thread.sleep(50);
+    fine.sink().write(ByteBuffer.wrap(new byte[]{1}));
+
+    assertTrue(read.await(5, TimeUnit.SECONDS));
+    assertTrue(working.isOpen());
+
+    release(failing, working);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void requiresAtLeastOneMonitor() {
+    new SocketMonitorPool(0);
+  }
+
+  private static Pipe open(SocketMonitor monitor, SocketListener listener) throws IOException {
+    Pipe pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+    monitor.add(pipe.source(), listener, SelectionKey.OP_READ);
+    return pipe;
+  }
+
+  private void release(SocketMonitor... monitors) {
+    for (SocketMonitor monitor : monitors) {
+      pool.release(monitor);
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import com.opera.core.systems.internal.StartupTimeline;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTimelineTest {
+
+  private StartupTimeline timeline;
+
+  @Before
+  public void beforeEach() {
+    timeline = new StartupTimeline();
+  }
+
+  @Test
+  public void isEmptyInitially() {
+    assertTrue(timeline.getDurations().isEmpty());
+    assertEquals(0, timeline.getTotal());
+  }
+
+  @Test
+  public void startingPhaseEndsPreviousPhase() throws InterruptedException {
+    timeline.start("handshake");
+    Thread.sleep(10);
+    timeline.start("connect");
+
+    assertEquals(ImmutableList.of("handshake"),
+                 ImmutableList.copyOf(timeline.getDurations().keySet()));
+    assertTrue(timeline.getDuration("handshake") >= TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(0, timeline.getDuration("connect"));
+  }
+
+  @Test
+  public void finishEndsCurrentPhase() {
+    timeline.start("handshake");
+    timeline.start("connect");
+    timeline.finish();
+
+    assertEquals(ImmutableList.of("handshake", "connect"),
+                 ImmutableList.copyOf(timeline.getDurations().keySet()));
+    assertEquals(timeline.getDuration("handshake") + timeline.getDuration("connect"),
+                 timeline.getTotal());
+  }
+
+  @Test
+  public void repeatedPhasesAreAddedUp() throws InterruptedException {
+    timeline.start("connect");
+    Thread.sleep(5);
+    timeline.start("enable-services");
+    timeline.start("connect");
+    Thread.sleep(5);
+    timeline.finish();
+
+    assertEquals(2, timeline.getDurations().size());
+    assertTrue(timeline.getDuration("connect") >= TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void finishWithoutPhaseDoesNothing() {
+    timeline.finish();
+    assertTrue(timeline.getDurations().isEmpty());
+  }
+
+  @Test
+  public void toStringListsPhasesAndTotal() {
+    timeline.start("handshake");
+    timeline.finish();
+
+    String string = timeline.toString();
+    assertTrue(string, string.startsWith("handshake="));
+    assertTrue(string, string.endsWith("ms"));
+    assertTrue(string, string.contains("total="));
+  }
+
+}
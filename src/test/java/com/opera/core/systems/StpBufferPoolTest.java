@@ -0,0 +1,78 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.stp.StpBufferPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StpBufferPoolTest {
+
+  private StpBufferPool pool;
+
+  @Before
+  public void beforeEach() {
+    pool = new StpBufferPool(1024, 2);
+  }
+
+  @Test
+  public void reusesReleasedBuffers() {
+    ByteBuffer buffer = pool.acquire(100);
+    buffer.put((byte) 1);
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquire(200);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(1024, reused.remaining());
+    assertEquals(1, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    assertEquals(0.5, pool.getHitRate(), 0.001);
+  }
+
+  @Test
+  public void allocatesOversizedBuffers() {
+    ByteBuffer buffer = pool.acquire(4096);
+    assertTrue(buffer.capacity() >= 4096);
+
+    pool.release(buffer);
+    assertEquals(0, pool.getPooled());
+    assertNotSame(buffer, pool.acquire(4096));
+  }
+
+  @Test
+  public void boundsIdleBuffers() {
+    pool.release(pool.acquire(1));
+    pool.release(ByteBuffer.allocate(1024));
+    pool.release(ByteBuffer.allocate(1024));
+    assertEquals(2, pool.getPooled());
+  }
+
+  @Test
+  public void hitRateIsZeroWhenUnused() {
+    assertEquals(0.0, pool.getHitRate(), 0.0);
+  }
+
+}
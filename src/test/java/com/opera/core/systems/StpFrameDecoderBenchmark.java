@@ -0,0 +1,306 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+import com.opera.core.systems.scope.stp.StpFrameDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares {@link StpFrameDecoder} with the decoding scheme previously used by {@link
+ * com.opera.core.systems.scope.stp.StpConnection}, which read into a fresh 1000 byte direct buffer,
+ * copied it into a receive buffer, moved the unread tail to the front through a temporary array
+ * after every message, and copied every payload before parsing it.
+ *
+ * Run with <code>java -cp ... com.opera.core.systems.StpFrameDecoderBenchmark [iterations]</code>.
+ * The same stream of frames, mixing small responses with large ones such as screenshots, is fed to
+ * both decoders in socket sized chunks.
+ */
+public class StpFrameDecoderBenchmark {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    byte[] stream = buildStream();
+
+    // Warm up
+    run(new NewDecoder(), stream, iterations / 4);
+    run(new LegacyDecoder(), stream, iterations / 4);
+
+    report("legacy", new LegacyDecoder(), stream, iterations);
+    report("StpFrameDecoder", new NewDecoder(), stream, iterations);
+  }
+
+  private static void report(String name, Decoder decoder, byte[] stream, int iterations)
+      throws IOException {
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    long frames = run(decoder, stream, iterations);
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+
+    System.out.println(String.format(
+        "%-16s %8d frames  %10.1f ns/frame  %8.1f MB/s  %10d bytes allocated/frame",
+        name, frames, (double) elapsed / frames,
+        (stream.length * (double) iterations) / (elapsed / 1e9) / (1024 * 1024),
+        allocatedBefore < 0 ? -1 : allocated / frames));
+  }
+
+  private static long run(Decoder decoder, byte[] stream, int iterations) throws IOException {
+    long frames = 0;
+    for (int i = 0; i < iterations; i++) {
+      int offset = 0;
+      while (offset < stream.length) {
+        int length = Math.min(CHUNK_SIZE, stream.length - offset);
+        frames += decoder.feed(stream, offset, length);
+        offset += length;
+      }
+    }
+    return frames;
+  }
+
+  private static byte[] buildStream() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    int tag = 0;
+
+    for (int i = 0; i < 100; i++) {
+      stream.write(frame(response(++tag, 64)));
+      stream.write(frame(response(++tag, 512)));
+      stream.write(frame(response(++tag, 4096)));
+    }
+
+    // A couple of large replies, e.g. screenshots or big EXAMINE_OBJECTS results
+    stream.write(frame(response(++tag, 256 * 1024)));
+    stream.write(frame(response(++tag, 1024 * 1024)));
+
+    return stream.toByteArray();
+  }
+
+  private static Response response(int tag, int payloadSize) {
+    return Response.newBuilder()
+        .setService("ecmascript")
+        .setCommandID(1)
+        .setFormat(0)
+        .setTag(tag)
+        .setPayload(ByteString.copyFrom(new byte[payloadSize]))
+        .build();
+  }
+
+  private static byte[] frame(Response response) throws IOException {
+    byte[] payload = response.toByteArray();
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(StpFrameDecoder.STP1_PREFIX);
+    CodedOutputStream output = CodedOutputStream.newInstance(stream);
+    output.writeRawVarint32(payload.length + 1);
+    output.flush();
+    stream.write(2);
+    stream.write(payload);
+    return stream.toByteArray();
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    try {
+      Method method = bean.getClass().getMethod("getThreadAllocatedBytes", long.class);
+      method.setAccessible(true);
+      return (Long) method.invoke(bean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private interface Decoder {
+
+    int feed(byte[] bytes, int offset, int length) throws IOException;
+
+  }
+
+  private static class NewDecoder implements Decoder, StpFrameDecoder.FrameHandler {
+
+    private final StpFrameDecoder decoder = new StpFrameDecoder();
+    private int tags;
+
+    public int feed(byte[] bytes, int offset, int length) throws IOException {
+      int frames = 0;
+      while (length > 0) {
+        ByteBuffer inbound = decoder.inbound();
+        int chunk = Math.min(length, inbound.remaining());
+        inbound.put(bytes, offset, chunk);
+        offset += chunk;
+        length -= chunk;
+        frames += decoder.decode(this);
+      }
+      return frames;
+    }
+
+    public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+      tags += Response.parseFrom(CodedInputStream.newInstance(buffer, offset, length)).getTag();
+    }
+
+  }
+
+  /**
+   * The receive path of StpConnection before it was replaced by {@link StpFrameDecoder}.
+   */
+  private static class LegacyDecoder implements Decoder {
+
+    private ByteBuffer recvBuffer = ByteBuffer.allocateDirect(65536);
+    private boolean prefixRead = false;
+    private int tags;
+
+    LegacyDecoder() {
+      recvBuffer.limit(0);
+    }
+
+    public int feed(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        // Simulates socketChannel.read() into a fresh buffer
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(1000);
+        int readSize = Math.min(length, readBuffer.capacity());
+        readBuffer.put(bytes, offset, readSize);
+        readBuffer.limit(readSize);
+        readBuffer.position(0);
+        offset += readSize;
+        length -= readSize;
+
+        if (recvBuffer.limit() + readBuffer.limit() >= recvBuffer.capacity()) {
+          ByteBuffer newRecvBuffer = ByteBuffer.allocate(recvBuffer.capacity() * 2);
+          newRecvBuffer.clear();
+          recvBuffer.position(0);
+          newRecvBuffer.limit(recvBuffer.limit());
+          newRecvBuffer.position(0);
+          newRecvBuffer.put(recvBuffer);
+          newRecvBuffer.position(0);
+          recvBuffer = newRecvBuffer;
+        }
+
+        recvBuffer.position(recvBuffer.limit());
+        recvBuffer.limit(recvBuffer.limit() + readSize);
+        recvBuffer.put(readBuffer);
+      }
+
+      int frames = 0;
+      int read;
+      while ((read = readMessage(recvBuffer)) != 0) {
+        if (read > 0) {
+          frames++;
+        }
+      }
+      return frames;
+    }
+
+    /**
+     * @return 1 if a message was read, -1 if only the prefix was read, 0 if nothing was read
+     */
+    private int readMessage(ByteBuffer buffer) throws IOException {
+      buffer.position(0);
+      int bytesWeHaveBeenReading = 0;
+      int result = 0;
+
+      if (!prefixRead) {
+        if (buffer.limit() >= 4) {
+          byte[] headerPrefix = new byte[4];
+          buffer.get(headerPrefix);
+          buffer.position(0);
+          bytesWeHaveBeenReading = 4;
+          prefixRead = true;
+          result = -1;
+        }
+      } else if (buffer.limit() > 0) {
+        int messageSize = readRawVarint32(buffer);
+        bytesWeHaveBeenReading = buffer.position();
+        buffer.position(0);
+
+        if (buffer.limit() >= bytesWeHaveBeenReading + messageSize) {
+          buffer.position(bytesWeHaveBeenReading);
+          buffer.get();
+          bytesWeHaveBeenReading += 1;
+
+          byte[] payload = new byte[--messageSize];
+          buffer.get(payload);
+          buffer.position(0);
+          bytesWeHaveBeenReading += messageSize;
+          prefixRead = false;
+
+          tags += Response.parseFrom(payload).getTag();
+          result = 1;
+        } else {
+          buffer.position(0);
+          bytesWeHaveBeenReading = 0;
+        }
+      }
+
+      if (bytesWeHaveBeenReading > 0) {
+        int rest = buffer.limit() - bytesWeHaveBeenReading;
+        if (rest <= 0) {
+          buffer.clear();
+          buffer.limit(0);
+        } else {
+          byte[] temp = new byte[rest];
+          buffer.position(bytesWeHaveBeenReading);
+          buffer.get(temp, 0, rest);
+          buffer.clear();
+          buffer.limit(rest);
+          buffer.position(0);
+          buffer.put(temp, 0, rest);
+          buffer.position(0);
+        }
+        return result;
+      }
+
+      return 0;
+    }
+
+    private int readRawVarint32(ByteBuffer bytes) {
+      byte tmp = bytes.get();
+      if (tmp >= 0) {
+        return tmp;
+      }
+      int result = tmp & 0x7f;
+      if ((tmp = bytes.get()) >= 0) {
+        result |= tmp << 7;
+      } else {
+        result |= (tmp & 0x7f) << 7;
+        if ((tmp = bytes.get()) >= 0) {
+          result |= tmp << 14;
+        } else {
+          result |= (tmp & 0x7f) << 14;
+          if ((tmp = bytes.get()) >= 0) {
+            result |= tmp << 21;
+          } else {
+            result |= (tmp & 0x7f) << 21;
+            result |= bytes.get() << 28;
+          }
+        }
+      }
+      return result;
+    }
+
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import com.opera.core.systems.scope.exceptions.CommunicationException;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+import com.opera.core.systems.scope.stp.StpFrameDecoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StpFrameDecoderTest {
+
+  private StpFrameDecoder decoder;
+  private List<Response> responses;
+  private StpFrameDecoder.FrameHandler handler;
+
+  @Before
+  public void beforeEach() {
+    decoder = new StpFrameDecoder();
+    responses = Lists.newArrayList();
+    handler = new StpFrameDecoder.FrameHandler() {
+      public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        assertEquals(2, type);
+        responses.add(Response.parseFrom(CodedInputStream.newInstance(buffer, offset, length)));
+      }
+    };
+  }
+
+  @Test
+  public void decodesSingleFrame() throws IOException {
+    feed(frame(response(1, 10)));
+    assertEquals(1, decoder.decode(handler));
+    assertEquals(1, responses.get(0).getTag());
+    assertEquals(0, decoder.readableBytes());
+  }
+
+  @Test
+  public void decodesMultipleFramesFromOneRead() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (int i = 1; i <= 5; i++) {
+      stream.write(frame(response(i, 100 * i)));
+    }
+
+    feed(stream.toByteArray());
+    assertEquals(5, decoder.decode(handler));
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i + 1, responses.get(i).getTag());
+      assertEquals(100 * (i + 1), responses.get(i).getPayload().size());
+    }
+  }
+
+  @Test
+  public void decodesFramesSplitAtEveryByte() throws IOException {
+    // A payload larger than 127 bytes gives a multi-byte varint header
+    byte[] bytes = frame(response(7, 300));
+
+    for (byte b : bytes) {
+      feed(new byte[]{b});
+      decoder.decode(handler);
+    }
+
+    assertEquals(1, responses.size());
+    assertEquals(7, responses.get(0).getTag());
+    assertEquals(300, responses.get(0).getPayload().size());
+  }
+
+  @Test
+  public void leavesPartialFrameInBuffer() throws IOException {
+    byte[] bytes = frame(response(3, 50));
+    feed(Arrays.copyOfRange(bytes, 0, bytes.length - 1));
+
+    assertEquals(0, decoder.decode(handler));
+    assertEquals(bytes.length - 1, decoder.readableBytes());
+
+    feed(Arrays.copyOfRange(bytes, bytes.length - 1, bytes.length));
+    assertEquals(1, decoder.decode(handler));
+    assertEquals(0, decoder.readableBytes());
+  }
+
+  @Test
+  public void growsForFramesLargerThanBuffer() throws IOException {
+    byte[] bytes = frame(response(9, StpFrameDecoder.DEFAULT_CAPACITY * 3));
+
+    int offset = 0;
+    while (offset < bytes.length) {
+      ByteBuffer inbound = decoder.inbound();
+      int length = Math.min(inbound.remaining(), bytes.length - offset);
+      inbound.put(bytes, offset, length);
+      offset += length;
+      decoder.decode(handler);
+    }
+
+    assertEquals(1, responses.size());
+    assertEquals(StpFrameDecoder.DEFAULT_CAPACITY * 3, responses.get(0).getPayload().size());
+    assertTrue(decoder.capacity() >= bytes.length);
+  }
+
+  @Test
+  public void readsStringsBeforeFrames() throws IOException {
+    feed("STP/1\n".getBytes("US-ASCII"));
+    feed(frame(response(4, 1)));
+
+    assertEquals("STP/1\n", decoder.readString(6, "US-ASCII"));
+    assertEquals(1, decoder.decode(handler));
+  }
+
+  @Test(expected = CommunicationException.class)
+  public void rejectsInvalidPrefix() throws IOException {
+    feed(new byte[]{'S', 'T', 'P', 0, 1, 2});
+    decoder.decode(handler);
+  }
+
+  @Test(expected = CommunicationException.class)
+  public void rejectsOversizedFrame() throws IOException {
+    // A message size of 128 MiB
+    feed(new byte[]{'S', 'T', 'P', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x40, 2});
+    decoder.decode(handler);
+  }
+
+  @Test(expected = CommunicationException.class)
+  public void rejectsSizeOverflowingInteger() throws IOException {
+    // A message size of 2^31, which does not fit in an int
+    feed(new byte[]{'S', 'T', 'P', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 2});
+    decoder.decode(handler);
+  }
+
+  private void feed(byte[] bytes) {
+    decoder.inbound().put(bytes);
+  }
+
+  private static Response response(int tag, int payloadSize) {
+    return Response.newBuilder()
+        .setService("ecmascript")
+        .setCommandID(1)
+        .setFormat(0)
+        .setTag(tag)
+        .setPayload(ByteString.copyFrom(new byte[payloadSize]))
+        .build();
+  }
+
+  private static byte[] frame(Response response) throws IOException {
+    byte[] payload = response.toByteArray();
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(StpFrameDecoder.STP1_PREFIX);
+    CodedOutputStream output = CodedOutputStream.newInstance(stream);
+    output.writeRawVarint32(payload.length + 1);
+    output.flush();
+    stream.write(2);
+    stream.write(payload);
+    return stream.toByteArray();
+  }
+
+}
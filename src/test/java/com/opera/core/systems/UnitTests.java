@@ -23,8 +23,21 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses(
     {
         ArchitectureTest.class,
+        AsyncScriptWaiterTest.class,
         CanvasTest.class,
         ColorResultTest.class,
+        ElementStateTest.class,
+        ElementTrackerTest.class,
+        EventBacklogTest.class,
+        EventDispatcherTest.class,
+        EventSubscriptionsTest.class,
+        FoundElementsTest.class,
+        InstalledAtomsTest.class,
+        JsonScriptResultTest.class,
+        LatencyRecorderTest.class,
+        LocatorCompilerTest.class,
+        NavigationEpochsTest.class,
+        ObjectExaminerTest.class,
         OperaBinaryTest.class,
         OperaColorTest.class,
         OperaExtensionsTest.class,
@@ -34,7 +47,14 @@ import org.junit.runners.Suite;
         OperaSettingsCapabilitiesTest.class,
         OperaSettingsTest.class,
         OperaStringsTest.class,
-        VersionUtilsTest.class
+        PropertyTableTest.class,
+        RuntimeRegistryTest.class,
+        SocketMonitorPoolTest.class,
+        StartupTimelineTest.class,
+        StpBufferPoolTest.class,
+        StpFrameDecoderTest.class,
+        VersionUtilsTest.class,
+        WaitStateTest.class
     }
 )
 public class UnitTests {
@@ -0,0 +1,268 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import com.opera.core.systems.scope.WaitState;
+import com.opera.core.systems.scope.exceptions.CommunicationException;
+import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
+import com.opera.core.systems.scope.protos.DesktopWmProtos.DesktopWindowInfo;
+import com.opera.core.systems.scope.protos.UmsProtos.Event;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+import com.opera.core.systems.scope.stp.EventDispatcher;
+import com.opera.core.systems.scope.stp.UmsEventParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WaitStateTest {
+
+  private static final long TIMEOUT = 5000;
+
+  private ExecutorService executor;
+  private CountDownLatch blocked;
+  private CountDownLatch release;
+  private EventDispatcher dispatcher;
+  private WaitState state;
+
+  @Before
+  public void beforeEach() {
+    executor = Executors.newCachedThreadPool();
+    blocked = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+    state = new WaitState(new Supplier<EventDispatcher>() {
+      public EventDispatcher get() {
+        return dispatcher;
+      }
+    });
+    dispatcher = new EventDispatcher(parser(state), executor, 1000);
+  }
+
+  @After
+  public void afterEach() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void responsesMayArriveOutOfOrder() {
+    Future<Response> first = state.expectResponse(1);
+    Future<Response> second = state.expectResponse(2);
+    state.onResponse(2, response(2));
+    state.onResponse(1, response(1));
+
+    assertEquals(2, state.waitFor(second, TIMEOUT).getTag());
+    assertEquals(1, state.waitFor(first, TIMEOUT).getTag());
+    assertEquals(0, state.getPendingResponses());
+  }
+
+  @Test
+  public void responseArrivingAfterTimeoutIsDropped() {
+    Future<Response> future = state.expectResponse(1);
+    try {
+      state.waitFor(future, 10);
+      fail("Expected no response in time");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+    assertEquals(0, state.getPendingResponses());
+
+    state.onResponse(1, response(1));
+    assertEquals(1, state.getDroppedResponses());
+  }
+
+  @Test
+  public void responseMissingItsDeadlineIsDropped() {
+    Future<Response> future = state.expectResponse(1, 10);
+    try {
+      state.waitFor(future, TIMEOUT);
+      fail("Expected no response by the deadline");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+
+    state.onResponse(1, response(1));
+    assertEquals(1, state.getDroppedResponses());
+  }
+
+  @Test
+  public void cancelledResponseIsDropped() {
+    Future<Response> future = state.expectResponse(1);
+    state.cancelResponse(1);
+
+    assertTrue(future.isCancelled());
+    assertEquals(0, state.getPendingResponses());
+
+    state.onResponse(1, response(1));
+    assertEquals(1, state.getDroppedResponses());
+  }
+
+  @Test
+  public void disconnectingFailsAllPendingResponses() {
+    Future<Response> first = state.expectResponse(1);
+    Future<Response> second = state.expectResponse(2);
+    state.onDisconnected();
+
+    assertEquals(0, state.getPendingResponses());
+    for (Future<Response> future : ImmutableList.of(first, second)) {
+      try {
+        state.waitFor(future, TIMEOUT);
+        fail("Expected response to fail");
+      } catch (CommunicationException e) {
+        // expected
+      }
+    }
+    assertTrue(state.expectResponse(3).isDone());
+  }
+
+  @Test
+  public void matchesWindowEventsById() {
+    state.onWindowLoaded(1);
+    state.onWindowLoaded(2);
+
+    state.waitForWindowLoaded(2, TIMEOUT);
+    state.waitForWindowLoaded(1, TIMEOUT);
+    try {
+      state.waitForWindowLoaded(1, 10);
+      fail("Expected event to be taken only once");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void matchesDesktopWindowEventsByName() {
+    state.onDesktopWindowShown(desktopWindow(1, "Document Window"));
+    state.onDesktopWindowShown(desktopWindow(2, "Preferences Dialog"));
+    state.onDesktopWindowShown(desktopWindow(3, "Document Window"));
+
+    assertEquals(2, state.waitForDesktopWindowShown("Preferences Dialog", TIMEOUT));
+    assertEquals(1, state.waitForDesktopWindowShown("", TIMEOUT));
+    assertEquals(3, state.waitForDesktopWindowShown("Document Window", TIMEOUT));
+  }
+
+  @Test
+  public void windowClosingWhileWaitingForItToLoadFailsWait() throws InterruptedException {
+    Future<?> waiting = executor.submit(new Runnable() {
+      public void run() {
+        state.waitForWindowLoaded(1, TIMEOUT);
+      }
+    });
+    state.onWindowClosed(1);
+
+    try {
+      waiting.get(TIMEOUT, TimeUnit.MILLISECONDS);
+      fail("Expected wait to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CommunicationException);
+      assertTrue(e.getCause().getMessage().startsWith("Window closed unexpectedly"));
+    } catch (TimeoutException e) {
+      fail("Expected wait to fail before timing out");
+    }
+  }
+
+  @Test
+  public void dropsEventsReceivedBeforeCommandButHandledAfter() throws InterruptedException {
+    dispatch(-1);
+    assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    dispatch(1);
+
+    state.expectResponse(1);
+    release.countDown();
+    dispatch(2);
+
+    state.waitForWindowLoaded(2, TIMEOUT);
+    try {
+      state.waitForWindowLoaded(1, 50);
+      fail("Expected stale event to be dropped");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void keepsEventsReceivedAfterCommand() {
+    state.expectResponse(1);
+    dispatch(1);
+
+    state.waitForWindowLoaded(1, TIMEOUT);
+  }
+
+  private static DesktopWindowInfo desktopWindow(int id, String name) {
+    return DesktopWindowInfo.newBuilder().setWindowID(id).setName(name).buildPartial();
+  }
+
+  private static Response response(int tag) {
+    return Response.newBuilder()
+        .setService("ecmascript")
+        .setCommandID(1)
+        .setFormat(0)
+        .setTag(tag)
+        .setPayload(ByteString.EMPTY)
+        .build();
+  }
+
+  private void dispatch(int windowId) {
+    dispatcher.dispatch(0, Event.newBuilder()
+        .setService("window-manager")
+        .setCommandID(1)
+        .setFormat(0)
+        .setPayload(ByteString.copyFrom(new byte[]{(byte) windowId}))
+        .build());
+  }
+
+  /**
+   * Creates a parser posting a window loaded event for the window ID in each event's payload.  An
+   * event with a negative ID blocks all services until the test ends.
+   */
+  private UmsEventParser parser(final WaitState state) {
+    return new UmsEventParser(null) {
+      @Override
+      public void handleEvent(int service, Event event) {
+        int windowId = event.getPayload().byteAt(0);
+        if (windowId < 0) {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return;
+        }
+
+        state.onWindowLoaded(windowId);
+      }
+    };
+  }
+
+}
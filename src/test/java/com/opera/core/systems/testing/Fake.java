@@ -0,0 +1,59 @@
+/*
+Copyright 2013 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.testing;
+
+import com.google.common.base.Defaults;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * A fake implementation of an interface, e.g. of a scope service, which answers calls by method
+ * name.  Calls answered with null return the default value of the method's return type, so that
+ * fakes only need to answer the calls their test cares about.
+ *
+ * @param <T> the interface faked
+ */
+public abstract class Fake<T> implements InvocationHandler {
+
+  private final Class<T> type;
+
+  protected Fake(Class<T> type) {
+    this.type = type;
+  }
+
+  /**
+   * @return an implementation of the interface calling back {@link #answer(String, Object[])}
+   */
+  public T create() {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this));
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    Object answer = answer(method.getName(), args == null ? new Object[0] : args);
+    return answer == null ? Defaults.defaultValue(method.getReturnType()) : answer;
+  }
+
+  /**
+   * @param method the name of the method called
+   * @param args   the arguments of the call
+   * @return the value to return, or null for the default value of the return type
+   */
+  protected abstract Object answer(String method, Object[] args);
+
+}